@@ -0,0 +1,235 @@
+package es.unex.srt.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/**
+ * Registro de actividad de la ventana principal, de tamaño acotado.
+ * <p>
+ * Guarda las últimas líneas en un búfer circular y las añade al documento del
+ * <code>JTextArea</code> de forma incremental: los textos que llegan seguidos se agrupan y se
+ * insertan de una vez en el EDT, y las líneas más antiguas se eliminan del documento. Así el coste
+ * de cada actualización no depende de lo larga que sea la sesión. Opcionalmente vuelca todo a un
+ * fichero que rota al superar un tamaño.
+ */
+public class ActivityLog {
+
+	/**
+	 * Últimas líneas completas (búfer circular)
+	 */
+	private final String[] lineas;
+
+	/**
+	 * Posición de la línea más antigua en <code>lineas</code>
+	 */
+	private int primera = 0;
+
+	/**
+	 * Número de líneas guardadas en <code>lineas</code>
+	 */
+	private int total = 0;
+
+	/**
+	 * Línea en curso, todavía sin salto de línea
+	 */
+	private final StringBuilder lineaActual = new StringBuilder();
+
+	/**
+	 * Texto pendiente de añadir al documento
+	 */
+	private final StringBuilder pendiente = new StringBuilder();
+
+	/**
+	 * Indica si ya hay un volcado al documento programado en el EDT
+	 */
+	private boolean volcadoProgramado = false;
+
+	/**
+	 * Área de texto donde se muestra el registro
+	 */
+	private JTextArea area;
+
+	/**
+	 * Fichero de volcado, o null si no se vuelca
+	 */
+	private File fichero;
+
+	/**
+	 * Escritor del fichero de volcado
+	 */
+	private Writer escritor;
+
+	/**
+	 * Bytes escritos en el fichero de volcado actual y máximo antes de rotar
+	 */
+	private long escritos, maximoFichero;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maximoLineas Líneas que se conservan en memoria y en pantalla
+	 */
+	public ActivityLog(int maximoLineas) {
+		lineas = new String[maximoLineas];
+	}
+
+	/**
+	 * Asocia el área de texto donde se muestra el registro. Debe llamarse desde el EDT.
+	 *
+	 * @param area Área de texto
+	 */
+	public synchronized void attach(JTextArea area) {
+		this.area = area;
+		StringBuilder inicial = new StringBuilder();
+		for (String linea : getLines()) {
+			inicial.append(linea).append('\n');
+		}
+		area.setText(inicial.toString());
+		pendiente.setLength(0);
+	}
+
+	/**
+	 * Activa el volcado a un fichero. Al superar <code>maximoBytes</code> se renombra a
+	 * <code>nombre.1</code> (sustituyendo al anterior) y se empieza uno nuevo.
+	 *
+	 * @param fichero     Fichero de volcado
+	 * @param maximoBytes Tamaño máximo antes de rotar
+	 * @throws IOException si no se puede abrir el fichero
+	 */
+	public synchronized void setSpillFile(File fichero, long maximoBytes) throws IOException {
+		cerrarFichero();
+		this.fichero = fichero;
+		this.maximoFichero = maximoBytes;
+		abrirFichero();
+	}
+
+	/**
+	 * Añade texto al registro. Puede llamarse desde cualquier hilo.
+	 *
+	 * @param texto Texto a añadir; puede contener varias líneas o ninguna completa
+	 */
+	public synchronized void append(String texto) {
+		for (int i = 0; i < texto.length(); i++) {
+			char c = texto.charAt(i);
+			if (c == '\n') {
+				guardarLinea(lineaActual.toString());
+				lineaActual.setLength(0);
+			} else {
+				lineaActual.append(c);
+			}
+		}
+		if (escritor != null) {
+			volcarAFichero(texto);
+		}
+		if (area != null) {
+			pendiente.append(texto);
+			if (!volcadoProgramado) {
+				volcadoProgramado = true;
+				SwingUtilities.invokeLater(this::volcar);
+			}
+		}
+	}
+
+	/**
+	 * @return Copia de las líneas conservadas, de la más antigua a la más reciente
+	 */
+	public synchronized List<String> getLines() {
+		List<String> copia = new ArrayList<>(total + 1);
+		for (int i = 0; i < total; i++) {
+			copia.add(lineas[(primera + i) % lineas.length]);
+		}
+		if (lineaActual.length() > 0) {
+			copia.add(lineaActual.toString());
+		}
+		return copia;
+	}
+
+	/**
+	 * Guarda una línea completa en el búfer circular, descartando la más antigua si está lleno
+	 */
+	private void guardarLinea(String linea) {
+		if (total < lineas.length) {
+			lineas[(primera + total) % lineas.length] = linea;
+			total++;
+		} else {
+			lineas[primera] = linea;
+			primera = (primera + 1) % lineas.length;
+		}
+	}
+
+	/**
+	 * Añade al documento el texto pendiente y recorta las líneas sobrantes. Se ejecuta en el EDT.
+	 */
+	private void volcar() {
+		String texto;
+		synchronized (this) {
+			texto = pendiente.toString();
+			pendiente.setLength(0);
+			volcadoProgramado = false;
+			if (escritor != null) {
+				try {
+					escritor.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		Document documento = area.getDocument();
+		try {
+			documento.insertString(documento.getLength(), texto, null);
+			Element raiz = documento.getDefaultRootElement();
+			int sobrantes = raiz.getElementCount() - lineas.length;
+			if (sobrantes > 0) {
+				documento.remove(0, raiz.getElement(sobrantes - 1).getEndOffset());
+			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Escribe en el fichero de volcado, rotándolo si hace falta
+	 */
+	private void volcarAFichero(String texto) {
+		try {
+			escritor.write(texto);
+			escritos += texto.getBytes(StandardCharsets.UTF_8).length;
+			if (escritos > maximoFichero) {
+				cerrarFichero();
+				File anterior = new File(fichero.getPath() + ".1");
+				anterior.delete();
+				fichero.renameTo(anterior);
+				abrirFichero();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			escritor = null;
+		}
+	}
+
+	private void abrirFichero() throws IOException {
+		escritos = fichero.length();
+		escritor = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(fichero, true), StandardCharsets.UTF_8));
+	}
+
+	private void cerrarFichero() throws IOException {
+		if (escritor != null) {
+			escritor.close();
+			escritor = null;
+		}
+	}
+}
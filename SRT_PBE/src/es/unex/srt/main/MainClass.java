@@ -1,18 +1,52 @@
 package es.unex.srt.main;
 
+import es.unex.srt.utility.AppendMAC;
+import es.unex.srt.utility.BatchSigner;
+import es.unex.srt.utility.BlockChecksums;
+import es.unex.srt.utility.Coordinator;
+import es.unex.srt.utility.CryptoWarmup;
+import es.unex.srt.utility.IntegrityAudit;
+import es.unex.srt.utility.IterationCalibrator;
+import es.unex.srt.utility.JobScheduler;
+import es.unex.srt.utility.KeyPrefetch;
+import es.unex.srt.utility.KeyStoreCache;
+import es.unex.srt.utility.LoadGenerator;
+import es.unex.srt.utility.MemoryBudget;
+import es.unex.srt.utility.MerkleTree;
 import es.unex.srt.utility.Options;
+import es.unex.srt.utility.ResourceLimits;
+import es.unex.srt.utility.SimpleArchive;
 import es.unex.srt.utility.SimpleCipher;
 import es.unex.srt.utility.SimpleHash;
 import es.unex.srt.utility.SimpleMAC;
+import es.unex.srt.utility.SimplePublicCipher;
+import es.unex.srt.utility.SimpleVolumes;
+import es.unex.srt.utility.SpotCheck;
+import es.unex.srt.utility.WatchDaemon;
+import es.unex.srt.utility.Worker;
 
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -23,6 +57,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.WindowConstants;
 
 /**
@@ -46,11 +81,52 @@ public class MainClass {
 	 * Contador de iteraciones
 	 */
 	private static final Integer IT_COUNT = 1024;
+	/**
+	 * Iteraciones para los ficheros nuevos. Se guardan en su cabecera; IT_COUNT solo se usa
+	 * con ficheros antiguos que no las llevan
+	 */
+	private Integer iteraciones = IT_COUNT;
+	/**
+	 * Instante de arranque del programa, para medir el tiempo hasta la primera operacin
+	 */
+	private static final long ARRANQUE = System.nanoTime();
+
+	/**
+	 * Lneas del registro de actividad que se conservan en pantalla
+	 */
+	private static final int MAX_LINEAS = 1000;
+
+	/**
+	 * Bytes del contenido descifrado que se muestran en el registro
+	 */
+	private static final int MAX_VISTA = 64 * 1024;
+
+	/**
+	 * Tamao mximo de un trabajo interactivo en la prueba de carga con planificador
+	 */
+	private static final long UMBRAL_INTERACTIVO = 1024 * 1024;
+
+	/**
+	 * Tamao mximo del fichero de registro antes de rotarlo
+	 */
+	private static final long MAX_FICHERO_REGISTRO = 1024 * 1024;
 
 	/**
-	 * Almacena los textos que van saliendo por pantalla
+	 * Trabajos interactivos y por lotes que admite en espera el planificador de las operaciones en
+	 * modo comando
 	 */
-	private String informacion = "";
+	private static final int MAX_INTERACTIVOS = 16;
+	private static final int MAX_LOTES = 256;
+
+	/**
+	 * Planificador de las operaciones en modo comando, creado la primera vez que se usa
+	 */
+	private static JobScheduler planificador;
+
+	/**
+	 * Registro de los textos que van saliendo por pantalla
+	 */
+	private final ActivityLog log = new ActivityLog(MAX_LINEAS);
 
 	/**
 	 * Modo de uso del usuario
@@ -76,6 +152,91 @@ public class MainClass {
 	 * Algoritmo Hash/Hmac
 	 */
 	private String HashHmac = "MD2";
+
+	/**
+	 * Calentamiento de los proveedores criptogrficos lanzado al arrancar
+	 */
+	private CryptoWarmup calentamiento;
+
+	/**
+	 * Indica si ya se ha completado alguna operacin
+	 */
+	private boolean operacionRealizada = false;
+
+	/**
+	 * Ventana de opciones de cifrado, construida la primera vez que se abre
+	 */
+	private JFrame ventanaOpciones;
+
+	/**
+	 * Indica si al proteger un fichero se guardan tambin sus sumas CRC para la comprobacin rpida
+	 */
+	private boolean sumasCrc = false;
+
+	/**
+	 * Almacn de claves para el cifrado de clave pblica, cargado la primera vez que se usa
+	 */
+	private KeyStoreCache almacen;
+
+	/**
+	 * Tamao en MB de cada volumen al cifrar; 0 cifra en un nico fichero
+	 */
+	private long tamVolumen = 0;
+
+	/**
+	 * Clave que se est derivando en segundo plano para la operacin en curso, o null
+	 */
+	private KeyPrefetch especulacion;
+
+	/**
+	 * Lanza en segundo plano el calentamiento de los algoritmos seleccionados
+	 */
+	private void calentar() {
+		calentamiento = new CryptoWarmup(iteraciones, mode, HashHmac).start();
+	}
+
+	/**
+	 * Calibra las iteraciones de la derivacin de clave para esta mquina con los algoritmos
+	 * seleccionados y las usa en adelante
+	 *
+	 * @param milisegundos Tiempo objetivo de cada derivacin
+	 */
+	private void calibrar(long milisegundos) {
+		int calibradas = IterationCalibrator.calibrate(mode, milisegundos);
+		if (Options.isTypeAlgorithm(Options.macAlgorithms, HashHmac)) {
+			calibradas = Math.min(calibradas, IterationCalibrator.calibrate(HashHmac, milisegundos));
+		}
+		iteraciones = calibradas;
+		log.append("Iteraciones calibradas para " + milisegundos + " ms: " + iteraciones + "\n");
+		new CryptoWarmup(iteraciones, mode, HashHmac).start();
+	}
+
+	/**
+	 * Registra el fin de una operacin e informa del tiempo hasta la primera
+	 */
+	private void registrarOperacion() {
+		if (!operacionRealizada) {
+			operacionRealizada = true;
+			long ms = (System.nanoTime() - ARRANQUE) / 1000000;
+			log.append("Primera operacin completada a los " + ms + " ms del arranque (calentamiento: "
+					+ (calentamiento.isDone() ? calentamiento.getElapsedMillis() + " ms" : "en curso") + ") \n");
+		}
+		if (ResourceLimits.isLimited()) {
+			log.append(ResourceLimits.report() + " \n");
+		}
+	}
+
+	/**
+	 * Fija los lmites de recursos de las operaciones
+	 *
+	 * @param lectura   MB/s de lectura; 0 sin lmite
+	 * @param escritura MB/s de escritura; 0 sin lmite
+	 * @param hilos     Operaciones a la vez; 0 sin lmite
+	 */
+	private static void limitar(double lectura, double escritura, int hilos) {
+		ResourceLimits.set((long) (lectura * 1024 * 1024), (long) (escritura * 1024 * 1024), hilos);
+		ResourceLimits.resetStats();
+	}
 	
 	/**
 	 * Mtodo que realiza el cifrado en el programa principal
@@ -87,18 +248,25 @@ public class MainClass {
 			valid = valid || Options.cipherAlgorithms[i].equals(mode); // Lo buscamos entre los conocidos
 		}
 		if (!valid) { // Si no estaba, mostramos los algoritmos vlidos
-			informacion = informacion + "Algoritmos vlidos: \n";
+			log.append("Algoritmos vlidos: \n");
 			for (int i = 1; i < Options.cipherAlgorithms.length; i++) {
-				informacion = informacion + Options.cipherAlgorithms[i] + "\n";
+				log.append(Options.cipherAlgorithms[i] + "\n");
 			}
 			System.exit(-1);
 		} else {
+			if (tamVolumen > 0) {
+				cifrarVolumenes();
+				return;
+			}
 			try {
 				InputStream in = new FileInputStream(dirCifrado); // Cargamos el archivo
-				SimpleCipher cipher = new SimpleCipher(in, mode, passwordUser, IT_COUNT);
-				OutputStream out = new FileOutputStream(dirDestCifrado + ".cph");
+				KeyPrefetch clave = tomarEspeculacion();
+				SimpleCipher cipher = clave != null ? new SimpleCipher(in, clave)
+						: new SimpleCipher(in, mode, passwordUser, iteraciones);
+				OutputStream out = abrirSalida(dirDestCifrado + ".cph");
 				cipher.save(out); // Ciframos el archivo con SimpleCipher
-				informacion = informacion + "Archivo cifrado con xito! \n" + "Bscalo como " + dirDestCifrado + ".cph \n"; 
+				log.append("Archivo cifrado con xito! \n" + "Bscalo como " + dirDestCifrado + ".cph \n"); 
+				registrarOperacion();
 				// Fin de la ejecucin
 			} catch (FileNotFoundException e) {
 				System.err.println("Archivo no encontrado");
@@ -124,10 +292,14 @@ public class MainClass {
 		if(esMac) {	
 			try {
 				InputStream in = new FileInputStream(dirCifrado); // Cargamos el archivo
-				SimpleMAC cipher = new SimpleMAC(in, HashHmac, passwordUser, IT_COUNT);
-				OutputStream out = new FileOutputStream(dirDestCifrado + ".cph");
+				KeyPrefetch clave = tomarEspeculacion();
+				SimpleMAC cipher = clave != null ? new SimpleMAC(in, clave)
+						: new SimpleMAC(in, HashHmac, passwordUser, iteraciones);
+				OutputStream out = abrirSalida(dirDestCifrado + ".cph");
 				cipher.save(out); // Ciframos el archivo con SimpleMAC
-				informacion = informacion + "Archivo cifrado con xito con Algoritmo MAc"+ HashHmac +  "\n" + "Bscalo como " + dirDestCifrado + ".cph \n"; 
+				cerrar(out);
+				log.append("Archivo cifrado con xito con Algoritmo MAc"+ HashHmac +  "\n" + "Bscalo como " + dirDestCifrado + ".cph \n"); 
+				registrarOperacion();
 				// Fin de la ejecucin
 			} catch (FileNotFoundException e) {
 				System.err.println("Archivo no encontrado");
@@ -140,9 +312,11 @@ public class MainClass {
 			try {
 				InputStream in = new FileInputStream(dirCifrado); // Cargamos el archivo
 				SimpleHash cipher = new SimpleHash(in, HashHmac, passwordUser);
-				OutputStream out = new FileOutputStream(dirDestCifrado + ".cph");
+				OutputStream out = abrirSalida(dirDestCifrado + ".cph");
 				cipher.save(out); // Ciframos el archivo con SimpleHash
-				informacion = informacion + "Archivo cifrado con xito con Algortimo Hash " + HashHmac + "\n" + "Bscalo como " + dirDestCifrado + ".cph \n"; 
+				cerrar(out);
+				log.append("Archivo cifrado con xito con Algortimo Hash " + HashHmac + "\n" + "Bscalo como " + dirDestCifrado + ".cph \n"); 
+				registrarOperacion();
 				// Fin de la ejecucin
 			} catch (FileNotFoundException e) {
 				System.err.println("Archivo no encontrado");
@@ -172,23 +346,26 @@ public class MainClass {
 			SimpleHash simpleHash = new SimpleHash(inputStream1, passwordUser);
 			
 			if (simpleHash.verify()) {
-				informacion = informacion + "Todo funciona guay \n";
+				log.append("Todo funciona guay \n");
 			} else {
-				informacion = informacion + "Esto no funciona \n";
+				log.append("Esto no funciona \n");
 			}
 			}
 			
 			if(esMac) {
-				SimpleMAC simpleMAC = new SimpleMAC(inputStream1, passwordUser, IT_COUNT);
+				KeyPrefetch clave = tomarEspeculacion();
+				SimpleMAC simpleMAC = clave != null ? new SimpleMAC(inputStream1, clave)
+						: new SimpleMAC(inputStream1, passwordUser, IT_COUNT);
 				
 				if (simpleMAC.verify()) {
-					informacion = informacion + "Todo funciona guay \n";
+					log.append("Todo funciona guay \n");
 				} else {
-					informacion = informacion + "Esto no funciona \n";
+					log.append("Esto no funciona \n");
 				}
 				
 			}
 			inputStream1.close();
+			registrarOperacion();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -200,19 +377,344 @@ public class MainClass {
 	 * Mtodo que realiza el descifrado en el programa principal
 	 */
 	public void descifrar() {
+		if (dirCifrado.endsWith(".001")) {
+			descifrarVolumenes();
+			return;
+		}
+		// Se deriva la clave una vez, o se usa la preparada, y se descifra con todos los ncleos
+		KeyPrefetch clave = tomarEspeculacion();
+		File origen = new File(dirCifrado);
+		File destino = new File(dirDestCifrado + ".clr");
+		int hilos = Runtime.getRuntime().availableProcessors();
+		boolean descifrado = clave != null ? SimpleCipher.saveParallel(origen, destino, clave, hilos)
+				: SimpleCipher.saveParallel(origen, destino, passwordUser, IT_COUNT, hilos);
+		if (descifrado) {
+			log.append("Archivo descifrado con xito! \n" + "Bscalo como " + dirDestCifrado + ".clr \n");
+			registrarOperacion();
+		} else {
+			log.append("No se pudo descifrar: la contrasea no es vlida o el archivo est daado \n");
+		}
+	}
+
+	/**
+	 * Cifra <code>dirCifrado</code> en volmenes de <code>tamVolumen</code> MB, escritos en paralelo
+	 */
+	private void cifrarVolumenes() {
 		try {
-			InputStream in = new FileInputStream(dirCifrado); // Cargamos el archivo
-			SimpleCipher cipher = new SimpleCipher(in, passwordUser, IT_COUNT);
-			OutputStream out = new FileOutputStream(dirDestCifrado + ".clr");
-			cipher.save(out); // Desciframos el archivo con SimpleCipher
-			informacion = informacion +"Archivo descifrado con xito! \n" + "Bscalo como " + dirDestCifrado + ".clr \n";
-			
-		} catch (
+			SimpleVolumes volumenes = new SimpleVolumes(new File(dirCifrado), mode, passwordUser, iteraciones,
+					tamVolumen * 1024 * 1024);
+			if (volumenes.save(new File(dirDestCifrado + ".cph"), Runtime.getRuntime().availableProcessors())) {
+				log.append("Archivo cifrado con xito en " + volumenes.getVolumeCount() + " volmenes! \n"
+						+ "Bscalos como " + dirDestCifrado + ".cph.001, ... \n");
+				registrarOperacion();
+			} else {
+				log.append("No se pudieron escribir los volmenes \n");
+			}
+		} catch (IOException e) {
+			log.append("No se pudo cifrar en volmenes: " + e.getMessage() + " \n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Descifra el conjunto de volmenes cuyo primer volumen es <code>dirCifrado</code>, leyendo los
+	 * volmenes en paralelo
+	 */
+	private void descifrarVolumenes() {
+		try {
+			SimpleVolumes volumenes = new SimpleVolumes(new File(dirCifrado), passwordUser, IT_COUNT);
+			if (volumenes.save(new File(dirDestCifrado + ".clr"), Runtime.getRuntime().availableProcessors())) {
+				log.append("Archivo descifrado con xito de " + volumenes.getVolumeCount() + " volmenes! \n"
+						+ "Bscalo como " + dirDestCifrado + ".clr \n");
+				registrarOperacion();
+			} else {
+				log.append("Falta algn volumen o est alterado \n");
+			}
+		} catch (IOException e) {
+			log.append("No se pudo descifrar: " + e.getMessage() + " \n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Descifra <code>dirCifrado</code> en memoria y muestra el principio del contenido en el registro,
+	 * sin escribir ningn <code>.clr</code>
+	 */
+	private void verContenido() {
+		try (InputStream in = new FileInputStream(dirCifrado)) {
+			KeyPrefetch clave = tomarEspeculacion();
+			SimpleCipher cipher = clave != null ? new SimpleCipher(in, clave) : new SimpleCipher(in, passwordUser, IT_COUNT);
+			InputStream contenido = cipher.getInputStream();
+			if (contenido == null) {
+				log.append("No se pudo descifrar el archivo \n");
+				return;
+			}
+			byte[] vista = new byte[MAX_VISTA];
+			int leidos = 0, n;
+			while (leidos < vista.length && (n = contenido.read(vista, leidos, vista.length - leidos)) > 0) {
+				leidos += n;
+			}
+			log.append("Contenido de " + new File(dirCifrado).getName() + (leidos == MAX_VISTA ? " (principio)" : "")
+					+ ": \n" + new String(vista, 0, leidos) + " \n");
+			registrarOperacion();
+		} catch (IOException e) {
+			log.append("No se pudo descifrar: la contrasea no es vlida o el archivo est daado \n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Mtodo que empaqueta varios ficheros en un nico archivo cifrado
+	 *
+	 * @param ficheros Ficheros a empaquetar
+	 */
+	private void empaquetar(File[] ficheros) {
+		try (SimpleArchive archivo = new SimpleArchive(new File(dirDestCifrado + ".arc"), mode, passwordUser, iteraciones)) {
+			for (File fichero : ficheros) {
+				if (!archivo.add(fichero)) {
+					log.append("No se pudo aadir " + fichero.getName() + "\n");
+				}
+			}
+			log.append("Archivo empaquetado con xito! \n" + "Bscalo como " + dirDestCifrado + ".arc \n");
+			registrarOperacion();
+		} catch (IOException e) {
+			log.append("No se pudo crear el archivo: " + e.getMessage() + "\n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Mtodo que extrae todas las entradas de un archivo cifrado en un directorio
+	 */
+	private void desempaquetar() {
+		try (SimpleArchive archivo = new SimpleArchive(new File(dirCifrado), passwordUser, IT_COUNT)) {
+			File destino = new File(dirDestCifrado);
+			destino.mkdirs();
+			for (String nombre : archivo.list()) {
+				try (OutputStream out = new FileOutputStream(new File(destino, new File(nombre).getName()))) {
+					if (!archivo.extract(nombre, out)) {
+						log.append("La entrada " + nombre + " est alterada \n");
+					}
+				}
+			}
+			log.append("Archivo extrado con xito en " + dirDestCifrado + "! \n");
+			registrarOperacion();
+		} catch (IOException e) {
+			log.append("No se pudo extraer el archivo: " + e.getMessage() + "\n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Pide el almacn de claves la primera vez y lo deja en <code>almacen</code>
+	 *
+	 * @return False si el usuario cancela o no se puede cargar
+	 */
+	private boolean cargarAlmacen() {
+		if (almacen != null) {
+			return true;
+		}
+		JFileChooser fc = new JFileChooser();
+		fc.setDialogTitle("Almacn de claves (JKS o PKCS12)");
+		if (fc.showOpenDialog(fc) != JFileChooser.APPROVE_OPTION) {
+			return false;
+		}
+		String contrasenia = JOptionPane.showInputDialog("Introduce la contrasea del almacn");
+		if (contrasenia == null) {
+			return false;
+		}
+		try {
+			almacen = KeyStoreCache.get(fc.getSelectedFile(), contrasenia.toCharArray());
+			return true;
+		} catch (IOException e) {
+			log.append("No se pudo cargar el almacn: " + e.getMessage() + " \n");
+			return false;
+		}
+	}
 
-		FileNotFoundException e) {
+	/**
+	 * Cifra <code>dirCifrado</code> para el destinatario <code>alias</code> del almacn
+	 *
+	 * @param alias Alias del destinatario
+	 */
+	private void cifrarPublica(String alias) {
+		try (InputStream in = new FileInputStream(dirCifrado)) {
+			SimplePublicCipher cipher = new SimplePublicCipher(in, almacen, alias);
+			if (cipher.save(abrirSalida(dirDestCifrado + ".cph"))) {
+				log.append("Archivo cifrado con xito para " + alias + "! \n" + "Bscalo como " + dirDestCifrado + ".cph \n");
+				registrarOperacion();
+			} else {
+				log.append("No se pudo cifrar para " + alias + " \n");
+			}
+		} catch (IOException e) {
 			System.err.println("Archivo no encontrado");
 			e.printStackTrace();
-			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Descifra <code>dirCifrado</code> con la clave privada del almacn
+	 *
+	 * @param contrasenia Contrasea de la clave privada
+	 */
+	private void descifrarPrivada(String contrasenia) {
+		try (InputStream in = new FileInputStream(dirCifrado)) {
+			SimplePublicCipher cipher = new SimplePublicCipher(in, almacen, contrasenia.toCharArray());
+			if (cipher.save(new FileOutputStream(dirDestCifrado + ".clr"))) {
+				log.append("Archivo descifrado con xito con la clave de " + cipher.getAlias() + "! \n"
+						+ "Bscalo como " + dirDestCifrado + ".clr \n");
+				registrarOperacion();
+			} else {
+				new File(dirDestCifrado + ".clr").delete();
+				log.append("No se pudo descifrar: la clave privada no corresponde al fichero o est alterado \n");
+			}
+		} catch (IOException e) {
+			System.err.println("Archivo no encontrado");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Firma por lotes todos los ficheros de un directorio con una clave privada del almacn
+	 *
+	 * @param directorio  Directorio a firmar
+	 * @param alias       Alias del firmante
+	 * @param contrasenia Contrasea de la clave privada
+	 */
+	private void firmarLote(File directorio, String alias, String contrasenia) {
+		BatchSigner firmante = new BatchSigner(directorio.toPath(), almacen, alias, contrasenia.toCharArray(),
+				Options.signAlgorithms[0], Runtime.getRuntime().availableProcessors());
+		try {
+			int firmados = firmante.sign();
+			log.append("" + firmados + " ficheros firmados con una sola firma! Raz: "
+					+ MerkleTree.toHex(firmante.getMerkleRoot()) + " \n");
+			registrarOperacion();
+		} catch (IOException | GeneralSecurityException e) {
+			log.append("No se pudo firmar el directorio: " + e.getMessage() + " \n");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Abre el fichero de salida de una proteccin, calculando sus sumas CRC si est activado
+	 *
+	 * @param ruta Ruta del fichero protegido
+	 * @return Flujo de salida
+	 * @throws FileNotFoundException si no se puede crear
+	 */
+	private OutputStream abrirSalida(String ruta) throws FileNotFoundException {
+		OutputStream out = new FileOutputStream(ruta);
+		return sumasCrc ? new BlockChecksums.Output(out, new File(ruta)) : out;
+	}
+
+	/**
+	 * Cierra un flujo de salida; con sumas CRC, es entonces cuando se guardan
+	 */
+	private void cerrar(OutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			System.err.println("No se pudo cerrar el fichero de salida");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Comprobacin rpida de un fichero protegido contra sus sumas CRC
+	 *
+	 * @param fichero Fichero protegido
+	 */
+	private void comprobarRapido(File fichero) {
+		try {
+			long bloque = BlockChecksums.check(fichero);
+			if (bloque == BlockChecksums.OK) {
+				log.append("Comprobacin rpida correcta: " + fichero.getName()
+						+ ". Para descartar modificaciones intencionadas, verifcalo \n");
+			} else {
+				log.append("Fichero daado: " + fichero.getName() + " falla en el bloque " + bloque + " \n");
+			}
+		} catch (IOException e) {
+			log.append("No se pudo hacer la comprobacin rpida: " + e.getMessage() + " \n");
+		}
+	}
+
+	/**
+	 * Pide la contrasea dos veces hasta que coincidan y la guarda en <code>passwordUser</code>
+	 *
+	 * @param mensaje Texto del dilogo
+	 * @return False si el usuario cancela
+	 */
+	private boolean pedirContrasenia(String mensaje) {
+		return pedirContrasenia(mensaje, null);
+	}
+
+	/**
+	 * Pide la contrasea dos veces y, en cuanto se escribe la primera, empieza a derivar la clave en
+	 * segundo plano mientras el usuario la repite y elige el destino
+	 *
+	 * @param mensaje   Texto del dilogo
+	 * @param especular Prepara la clave para una contrasea (puede devolver null); null para no especular
+	 * @return True si se introdujo la contrasea, false si se cancel
+	 */
+	private boolean pedirContrasenia(String mensaje, Function<String, KeyPrefetch> especular) {
+		while (true) {
+			descartarEspeculacion();
+			String contrasenia01 = JOptionPane.showInputDialog(mensaje);
+			if (contrasenia01 == null) {
+				return false;
+			}
+			if (especular != null) {
+				especulacion = especular.apply(contrasenia01);
+			}
+			String contrasenia02 = JOptionPane.showInputDialog(mensaje + " de nuevo");
+			if (contrasenia02 == null) {
+				descartarEspeculacion();
+				return false;
+			}
+			if (contrasenia01.equals(contrasenia02)) {
+				passwordUser = contrasenia01;
+				return true;
+			}
+			log.append(" Debe introducir la misma contrasea de cifrado en ambos casos \n");
+		}
+	}
+
+	/**
+	 * Prepara en segundo plano la clave para descifrar o verificar <code>dirCifrado</code>
+	 *
+	 * @param contrasenia Contrasea introducida
+	 * @return Preparacin en curso, o null si el fichero no deriva clave o no se puede leer
+	 */
+	private KeyPrefetch especularDescifrado(String contrasenia) {
+		try {
+			return KeyPrefetch.forDecryption(new File(dirCifrado), contrasenia, IT_COUNT);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Entrega la clave preparada si es de la contrasea confirmada; si no, la descarta
+	 *
+	 * @return Clave preparada, o null si no hay
+	 */
+	private KeyPrefetch tomarEspeculacion() {
+		KeyPrefetch clave = especulacion;
+		especulacion = null;
+		if (clave != null && !clave.matches(passwordUser)) {
+			clave.cancel();
+			return null;
+		}
+		return clave;
+	}
+
+	/**
+	 * Descarta la clave preparada, si la hay
+	 */
+	private void descartarEspeculacion() {
+		if (especulacion != null) {
+			especulacion.cancel();
+			especulacion = null;
 		}
 	}
 
@@ -225,15 +727,11 @@ public class MainClass {
 		ventana.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		ventana.setSize(700, 400);
 
-		JScrollPane scrPane = new JScrollPane();
-		ventana.add(scrPane);
-
 		JTextArea texto = new JTextArea();
-		ventana.add(texto);
 		texto.setLineWrap(true);
-		informacion = informacion + "Programa Iniciado \n";
-		texto.setText(informacion);
-		ventana.add(texto);
+		log.attach(texto);
+		ventana.add(new JScrollPane(texto));
+		log.append("Programa Iniciado \n");
 
 		JMenuBar menuBar = new JMenuBar();
 		JMenu menu = new JMenu("Fichero");
@@ -242,54 +740,40 @@ public class MainClass {
 		item.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				informacion = informacion + "Iniciando cifrado ... \n";
-				texto.setText(informacion);
-				ventana.add(texto);
+				log.append("Iniciando cifrado ... \n");
 				JFileChooser fc = new JFileChooser();
 				fc.setDialogTitle("Fichero a cifrar");
-				informacion = informacion + "Seleccionando fichero a cifrar ...\n ";
-				texto.setText(informacion);
+				log.append("Seleccionando fichero a cifrar ...\n ");
 				int seleccion = fc.showOpenDialog(fc);
 				if (seleccion == JFileChooser.APPROVE_OPTION) {
 
 					// Pedimos al usuario el archivo que vamos a cifrar
 					File archivoElegido = fc.getSelectedFile();
 					String name = archivoElegido.getAbsolutePath();
-					informacion = informacion + "Archivo a cifrar" + name + "\n";
-					texto.setText(informacion);
+					log.append("Archivo a cifrar" + name + "\n");
 					dirCifrado = name;
 
-					Boolean Bandera = false;
-
-					// Pedimos al usuario la contrasea
-					while (!Bandera) {
-						String contrasenia01 = JOptionPane.showInputDialog("Introduce la contrasea de cifrado");
-						String contrasenia02 = JOptionPane
-								.showInputDialog("Introduce la contrasea de cifrado de nuevo");
-						if (contrasenia01.equals(contrasenia02)) {
-							Bandera = true;
-						} else {
-							passwordUser = contrasenia01;
-							informacion = informacion + " Debe introducir la misma contrasea de cifrado en ambos casos";
-							texto.setText(informacion);
-						}
+					// Pedimos al usuario la contrasea; la clave se empieza a derivar en cuanto se escribe
+					if (!pedirContrasenia("Introduce la contrasea de cifrado",
+							c -> tamVolumen > 0 ? null : KeyPrefetch.forEncryption(mode, c, iteraciones))) {
+						return;
 					}
 
 					// Pedimos al usuario el directorio donde queremos guardar el fichero cifrado
 					JFileChooser jfc = new JFileChooser();
-					jfc.showSaveDialog(jfc);
-					informacion = informacion + "Seleccione directorio a guardar el fichero \n";
-					texto.setText(informacion);
+					log.append("Seleccione directorio a guardar el fichero \n");
+					if (jfc.showSaveDialog(jfc) != JFileChooser.APPROVE_OPTION) {
+						descartarEspeculacion();
+						return;
+					}
 					File Guardamos = jfc.getSelectedFile();
-					informacion = informacion + "Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n";
-					texto.setText(informacion);
+					log.append("Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n");
 					dirDestCifrado = Guardamos.getAbsolutePath();
 
 					// Llamamos al mtodo cifrar una vez que tenemos todos los datos necesarios del
 					// usuario
 					cifrar();
 
-					texto.setText(informacion);
 				}
 			}
 		});
@@ -299,53 +783,39 @@ public class MainClass {
 		itemN1.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				informacion = informacion + "Iniciando cifrado con hash ... \n";
-				texto.setText(informacion);
-				ventana.add(texto);
+				log.append("Iniciando cifrado con hash ... \n");
 				JFileChooser fc = new JFileChooser();
 				fc.setDialogTitle("Fichero a cifrar");
-				informacion = informacion + "Seleccionando fichero a cifrar con hash ...\n ";
-				texto.setText(informacion);
+				log.append("Seleccionando fichero a cifrar con hash ...\n ");
 				int seleccion = fc.showOpenDialog(fc);
 				if (seleccion == JFileChooser.APPROVE_OPTION) {
 
 					// Pedimos al usuario el archivo que vamos a cifrar
 					File archivoElegido = fc.getSelectedFile();
 					String name = archivoElegido.getAbsolutePath();
-					informacion = informacion + "Archivo a cifrar con hash" + name + "\n";
-					texto.setText(informacion);
+					log.append("Archivo a cifrar con hash" + name + "\n");
 					dirCifrado = name;
-					Boolean Bandera = false;
-
-					// Pedimos al usuario la contrasea
-					while (!Bandera) {
-						String contrasenia01 = JOptionPane.showInputDialog("Introduce la contrasea de cifrado");
-						String contrasenia02 = JOptionPane
-								.showInputDialog("Introduce la contrasea de cifrado de nuevo");
-						if (contrasenia01.equals(contrasenia02)) {
-							Bandera = true;
-						} else {
-							passwordUser = contrasenia01;
-							informacion = informacion
-									+ " Debe introducir la misma contrasea de cifrado en ambos casos";
-							texto.setText(informacion);
-						}
+					// Pedimos al usuario la contrasea; la clave del MAC se empieza a derivar en cuanto se escribe
+					if (!pedirContrasenia("Introduce la contrasea de cifrado",
+							c -> Options.isTypeAlgorithm(Options.macAlgorithms, HashHmac)
+									? KeyPrefetch.forMac(HashHmac, c, iteraciones) : null)) {
+						return;
 					}
 
 					// Pedimos al usuario el directorio donde queremos guardar el fichero cifrado
 					JFileChooser jfc = new JFileChooser();
-					jfc.showSaveDialog(jfc);
-					informacion = informacion + "Seleccione directorio a guardar el fichero \n";
-					texto.setText(informacion);
+					log.append("Seleccione directorio a guardar el fichero \n");
+					if (jfc.showSaveDialog(jfc) != JFileChooser.APPROVE_OPTION) {
+						descartarEspeculacion();
+						return;
+					}
 					File Guardamos = jfc.getSelectedFile();
-					informacion = informacion + "Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n";
-					texto.setText(informacion);
+					log.append("Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n");
 					dirDestCifrado = Guardamos.getAbsolutePath();
 
 					// Llamamos al mtodo cifrar una vez que tenemos todos los datos necesarios del
 					// usuario
 					cifrarHash();
-					texto.setText(informacion);
 				}
 			}
 		});
@@ -355,43 +825,26 @@ public class MainClass {
 		itemN2.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				informacion = informacion + "Seleccione un archivo a verificar ...  \n";
-				texto.setText(informacion);
-				informacion = informacion + "Iniciando verificacion ... \n";
-				texto.setText(informacion);
-				ventana.add(texto);
+				log.append("Seleccione un archivo a verificar ...  \n");
+				log.append("Iniciando verificacion ... \n");
 				JFileChooser fc = new JFileChooser();
 				fc.setDialogTitle("Fichero para la verificacion ");
-				informacion = informacion + "Seleccionando fichero a Descifrar ...\n ";
-				texto.setText(informacion);
+				log.append("Seleccionando fichero a Descifrar ...\n ");
 				int seleccion = fc.showOpenDialog(fc);
 				if (seleccion == JFileChooser.APPROVE_OPTION) {
 					
 					// Pedimos al usuario el archivo que vamos a descifrar
 					File archivoElegido = fc.getSelectedFile();
 					String name = archivoElegido.getAbsolutePath();
-					informacion = informacion + "Archivo a cifrar";
-					texto.setText("Archivo a cifrar: " + name);
+					log.append("Archivo a verificar: " + name + "\n");
 					dirCifrado = name;
 
-					Boolean Bandera = false;
-
-					// Pedimos al usuario la contrasea
-					while (!Bandera) {
-						String contrasenia01 = JOptionPane.showInputDialog("Introduce la contrasea de cifrado");
-						String contrasenia02 = JOptionPane
-								.showInputDialog("Introduce la contrasea de cifrado de nuevo");
-						if (contrasenia01.equals(contrasenia02)) {
-							Bandera = true;
-						} else {
-							passwordUser = contrasenia01;
-							informacion = informacion + " Debe introducir la misma contrasea de cifrado en ambos casos";
-							texto.setText(informacion);
-						}
+					// Pedimos al usuario la contrasea; la clave se empieza a derivar en cuanto se escribe
+					if (!pedirContrasenia("Introduce la contrasea de cifrado", MainClass.this::especularDescifrado)) {
+						return;
 					}
 					try {
 						verificarHash();
-						texto.setText(informacion);
 					} catch (FileNotFoundException e1) {
 						// TODO Auto-generated catch block
 						e1.printStackTrace();
@@ -406,48 +859,34 @@ public class MainClass {
 		item2.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				informacion = informacion + "Seleccione un archivo a descifrar ...  \n";
-				texto.setText(informacion);
-				informacion = informacion + "Iniciando descifrado ... \n";
-				texto.setText(informacion);
-				ventana.add(texto);
+				log.append("Seleccione un archivo a descifrar ...  \n");
+				log.append("Iniciando descifrado ... \n");
 				JFileChooser fc = new JFileChooser();
 				fc.setDialogTitle("Fichero a Descifrar");
-				informacion = informacion + "Seleccionando fichero a Descifrar ...\n ";
-				texto.setText(informacion);
+				log.append("Seleccionando fichero a Descifrar ...\n ");
 				int seleccion = fc.showOpenDialog(fc);
 				if (seleccion == JFileChooser.APPROVE_OPTION) {
 					
 					// Pedimos al usuario el archivo que vamos a descifrar
 					File archivoElegido = fc.getSelectedFile();
 					String name = archivoElegido.getAbsolutePath();
-					informacion = informacion + "Archivo a cifrar" + name +"\n";
-					texto.setText(informacion);
+					log.append("Archivo a cifrar" + name +"\n");
 					dirCifrado = name;
 
-					Boolean Bandera = false;
-
-					// Pedimos al usuario la contrasea
-					while (!Bandera) {
-						String contrasenia01 = JOptionPane.showInputDialog("Introduce la contrasea de descifrado");
-						String contrasenia02 = JOptionPane.showInputDialog("Introduce la contrasea de descifrado de nuevo");
-						if (contrasenia01.equals(contrasenia02)) {
-							Bandera = true;
-						} else {
-							passwordUser = contrasenia01;
-							informacion = informacion + " Debe introducir la misma contrasea de cifrado en ambos casos";
-							texto.setText(informacion);
-						}
+					// Pedimos al usuario la contrasea; la clave se empieza a derivar en cuanto se escribe
+					if (!pedirContrasenia("Introduce la contrasea de descifrado", MainClass.this::especularDescifrado)) {
+						return;
 					}
 
 					// Pedimos al usuario el directorio donde queremos guardar el fichero descifrado
 					JFileChooser jfc = new JFileChooser();
-					jfc.showSaveDialog(jfc);
-					informacion = informacion + "Seleccione directorio a guardar el fichero \n";
-					texto.setText(informacion);
+					log.append("Seleccione directorio a guardar el fichero \n");
+					if (jfc.showSaveDialog(jfc) != JFileChooser.APPROVE_OPTION) {
+						descartarEspeculacion();
+						return;
+					}
 					File Guardamos = jfc.getSelectedFile();
-					informacion = informacion + "Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n";
-					texto.setText(informacion);
+					log.append("Guardamos el fichero con el nombre :" + Guardamos.getName() + "\n");
 					dirDestCifrado = Guardamos.getAbsolutePath();
 					descifrar();
 				}
@@ -456,6 +895,166 @@ public class MainClass {
 
 		menu.add(item2);
 
+		JMenuItem item11 = new JMenuItem("Ver contenido cifrado");
+		item11.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Fichero cifrado");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION) {
+					dirCifrado = fc.getSelectedFile().getAbsolutePath();
+					if (pedirContrasenia("Introduce la contrasea de descifrado", MainClass.this::especularDescifrado)) {
+						verContenido();
+					}
+				}
+			}
+		});
+		menu.add(item11);
+
+		JMenuItem item3 = new JMenuItem("Empaquetar ficheros");
+		item3.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				log.append("Iniciando empaquetado ... \n");
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Ficheros a empaquetar");
+				fc.setMultiSelectionEnabled(true);
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && pedirContrasenia("Introduce la contrasea de cifrado")) {
+					File[] ficheros = fc.getSelectedFiles();
+					log.append("Ficheros a empaquetar: " + ficheros.length + "\n");
+					JFileChooser jfc = new JFileChooser();
+					if (jfc.showSaveDialog(jfc) == JFileChooser.APPROVE_OPTION) {
+						dirDestCifrado = jfc.getSelectedFile().getAbsolutePath();
+						empaquetar(ficheros);
+					}
+				}
+			}
+		});
+		menu.add(item3);
+
+		JMenuItem item4 = new JMenuItem("Extraer archivo");
+		item4.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				log.append("Iniciando extraccin ... \n");
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Archivo a extraer");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && pedirContrasenia("Introduce la contrasea de descifrado")) {
+					dirCifrado = fc.getSelectedFile().getAbsolutePath();
+					JFileChooser jfc = new JFileChooser();
+					jfc.setDialogTitle("Directorio de destino");
+					jfc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+					if (jfc.showSaveDialog(jfc) == JFileChooser.APPROVE_OPTION) {
+						dirDestCifrado = jfc.getSelectedFile().getAbsolutePath();
+						desempaquetar();
+					}
+				}
+			}
+		});
+		menu.add(item4);
+
+		JMenuItem item7 = new JMenuItem("Cifrar con clave pblica");
+		item7.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Archivo a cifrar");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && cargarAlmacen()) {
+					String alias = JOptionPane.showInputDialog("Alias del destinatario en el almacn");
+					if (alias == null) {
+						return;
+					}
+					dirCifrado = fc.getSelectedFile().getAbsolutePath();
+					JFileChooser jfc = new JFileChooser();
+					jfc.setDialogTitle("Archivo de destino");
+					if (jfc.showSaveDialog(jfc) == JFileChooser.APPROVE_OPTION) {
+						dirDestCifrado = jfc.getSelectedFile().getAbsolutePath();
+						cifrarPublica(alias);
+					}
+				}
+			}
+		});
+		menu.add(item7);
+
+		JMenuItem item8 = new JMenuItem("Descifrar con clave privada");
+		item8.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Archivo a descifrar");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && cargarAlmacen()) {
+					String contrasenia = JOptionPane.showInputDialog("Introduce la contrasea de la clave privada");
+					if (contrasenia == null) {
+						return;
+					}
+					dirCifrado = fc.getSelectedFile().getAbsolutePath();
+					JFileChooser jfc = new JFileChooser();
+					jfc.setDialogTitle("Archivo de destino");
+					if (jfc.showSaveDialog(jfc) == JFileChooser.APPROVE_OPTION) {
+						dirDestCifrado = jfc.getSelectedFile().getAbsolutePath();
+						descifrarPrivada(contrasenia);
+					}
+				}
+			}
+		});
+		menu.add(item8);
+
+		JMenuItem item9 = new JMenuItem("Firmar directorio");
+		item9.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Directorio a firmar");
+				fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && cargarAlmacen()) {
+					String alias = JOptionPane.showInputDialog("Alias del firmante en el almacn");
+					String contrasenia = alias == null ? null
+							: JOptionPane.showInputDialog("Introduce la contrasea de la clave privada");
+					if (contrasenia != null) {
+						firmarLote(fc.getSelectedFile(), alias, contrasenia);
+					}
+				}
+			}
+		});
+		menu.add(item9);
+
+		JMenuItem item10 = new JMenuItem("Verificar firma");
+		item10.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Fichero firmado");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION && cargarAlmacen()) {
+					File fichero = fc.getSelectedFile();
+					JFileChooser dc = new JFileChooser(fichero.getParentFile());
+					dc.setDialogTitle("Directorio que se firm");
+					dc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+					if (dc.showOpenDialog(dc) != JFileChooser.APPROVE_OPTION) {
+						return;
+					}
+					if (BatchSigner.verify(dc.getSelectedFile().toPath(), fichero, almacen)) {
+						log.append("La firma de " + fichero.getName() + " es vlida \n");
+					} else {
+						log.append("La firma de " + fichero.getName() + " NO es vlida \n");
+					}
+				}
+			}
+		});
+		menu.add(item10);
+
+		JMenuItem item6 = new JMenuItem("Comprobacin rpida");
+		item6.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser fc = new JFileChooser();
+				fc.setDialogTitle("Fichero a comprobar");
+				if (fc.showOpenDialog(fc) == JFileChooser.APPROVE_OPTION) {
+					comprobarRapido(fc.getSelectedFile());
+				}
+			}
+		});
+		menu.add(item6);
+
 		JMenuItem item5 = new JMenuItem("Salir");
 
 		item5.addActionListener(new ActionListener() {
@@ -472,56 +1071,78 @@ public class MainClass {
 		ite.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				// La ventana de opciones se usa poco: se construye la primera vez que se pide
+				if (ventanaOpciones == null) {
+					ventanaOpciones = crearVentanaOpciones();
+				}
+				ventanaOpciones.setVisible(true);
+			}
+		});
 
-				JFrame ventana2 = new JFrame("Opciones de Cifrado");
-				ventana2.setLayout(null);
-				ventana2.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-				ventana2.setSize(500, 400);
-				ventana2.setVisible(true);
-
-				JComboBox<String> jComboBox1;
-				jComboBox1 = new JComboBox<>();
-				jComboBox1.setModel(new DefaultComboBoxModel<>(new String[] { "PBEWithMD5andDES",
-						"PBEWithMD5andTripleDES", "PBEWithSHA1andDESede", "PBEWithSHA1andRC2_40" }));
-				jComboBox1.setLocation(100, 100);
-				jComboBox1.setSize(200, 100);
-				ventana2.add(jComboBox1);
-
-				JComboBox<String> jComboBox2;
-				jComboBox2 = new JComboBox<>();
-				jComboBox2.setModel(new DefaultComboBoxModel<>(
-						new String[] { "MD2", "MD5", "SHA-1", "SHA-256", "SHA-384", "SHA-512","HmacMD5", "HmacSHA1", "HmacSHA256", "HmacSHA384", "HmacSHA512" }));
-				jComboBox2.setLocation(100, 200);
-				jComboBox2.setSize(200, 100);
-				ventana2.add(jComboBox2);
-				ventana2.setVisible(true);
-
-				jComboBox1.addActionListener(new ActionListener() {
-					@Override
-					public void actionPerformed(ActionEvent e) {
-						String item_seleccionado = jComboBox1.getSelectedItem().toString();
-						informacion = informacion + "Hemos seleccionado el algoritmo de cifrado: " + item_seleccionado
-								+ "\n";
-						texto.setText(informacion);
-						mode = item_seleccionado;
+		menu2.add(ite);
+
+		JCheckBoxMenuItem ite3 = new JCheckBoxMenuItem("Guardar sumas CRC", sumasCrc);
+		ite3.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				sumasCrc = ite3.isSelected();
+			}
+		});
+		menu2.add(ite3);
+
+		JMenuItem ite4 = new JMenuItem("Tamao de volumen");
+		ite4.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String tam = JOptionPane.showInputDialog("Tamao de cada volumen en MB (0: un nico fichero)", tamVolumen);
+				if (tam != null) {
+					try {
+						tamVolumen = Math.max(0, Long.parseLong(tam.trim()));
+					} catch (NumberFormatException ex) {
+						log.append("Tamao de volumen no vlido: " + tam + " \n");
 					}
-				});
-
-				jComboBox2.addActionListener(new ActionListener() {
-					@Override
-					public void actionPerformed(ActionEvent e) {
-						String item_seleccionado = jComboBox2.getSelectedItem().toString();
-						informacion = informacion + "Hemos seleccionado el algoritmo Hash/Hmac: " + item_seleccionado
-								+ "\n";
-						texto.setText(informacion);
-						HashHmac = item_seleccionado;
+				}
+			}
+		});
+		menu2.add(ite4);
+
+		JMenuItem ite5 = new JMenuItem("Lmites de recursos");
+		ite5.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String actuales = ResourceLimits.READ.getRate() / (1024.0 * 1024) + " "
+						+ ResourceLimits.WRITE.getRate() / (1024.0 * 1024) + " " + ResourceLimits.getWorkers();
+				String limites = JOptionPane.showInputDialog(
+						"MB/s de lectura, MB/s de escritura y operaciones a la vez (0: sin lmite)", actuales);
+				if (limites != null) {
+					try {
+						String[] campos = limites.trim().split("\\s+");
+						limitar(Double.parseDouble(campos[0]), Double.parseDouble(campos[1]), Integer.parseInt(campos[2]));
+						log.append("Lmites de recursos aplicados: \n" + ResourceLimits.report() + " \n");
+					} catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+						log.append("Lmites no vlidos: " + limites + " \n");
 					}
-				});
-				ventana2.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+				}
 			}
 		});
+		menu2.add(ite5);
 
-		menu2.add(ite);
+		JMenuItem ite2 = new JMenuItem("Calibrar iteraciones");
+
+		ite2.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String[] objetivos = { "Interactivo (" + IterationCalibrator.INTERACTIVE_MILLIS + " ms)",
+						"Por lotes (" + IterationCalibrator.BATCH_MILLIS + " ms)" };
+				int eleccion = JOptionPane.showOptionDialog(null, "Tiempo objetivo de la derivacin de clave",
+						"Calibrar iteraciones", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null,
+						objetivos, objetivos[0]);
+				if (eleccion >= 0) {
+					calibrar(eleccion == 0 ? IterationCalibrator.INTERACTIVE_MILLIS : IterationCalibrator.BATCH_MILLIS);
+				}
+			}
+		});
+		menu2.add(ite2);
 		menuBar.add(menu2);
 		ventana.setJMenuBar(menuBar);
 		ventana.setVisible(true);
@@ -530,14 +1151,583 @@ public class MainClass {
 	
 
 	/**
-	 * Función principal: Ejecuta el programa en modo ventanas
+	 * Construye la ventana de opciones de cifrado
+	 *
+	 * @return Ventana de opciones, oculta
+	 */
+	private JFrame crearVentanaOpciones() {
+		JFrame ventana2 = new JFrame("Opciones de Cifrado");
+		ventana2.setLayout(null);
+		ventana2.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		ventana2.setSize(500, 400);
+
+		JComboBox<String> jComboBox1;
+		jComboBox1 = new JComboBox<>();
+		jComboBox1.setModel(new DefaultComboBoxModel<>(new String[] { "PBEWithMD5andDES",
+				"PBEWithMD5andTripleDES", "PBEWithSHA1andDESede", "PBEWithSHA1andRC2_40" }));
+		jComboBox1.setLocation(100, 100);
+		jComboBox1.setSize(200, 100);
+		ventana2.add(jComboBox1);
+
+		JComboBox<String> jComboBox2;
+		jComboBox2 = new JComboBox<>();
+		jComboBox2.setModel(new DefaultComboBoxModel<>(
+				new String[] { "MD2", "MD5", "SHA-1", "SHA-256", "SHA-384", "SHA-512","HmacMD5", "HmacSHA1", "HmacSHA256", "HmacSHA384", "HmacSHA512" }));
+		jComboBox2.setLocation(100, 200);
+		jComboBox2.setSize(200, 100);
+		ventana2.add(jComboBox2);
+
+		jComboBox1.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String item_seleccionado = jComboBox1.getSelectedItem().toString();
+				log.append("Hemos seleccionado el algoritmo de cifrado: " + item_seleccionado
+						+ "\n");
+				mode = item_seleccionado;
+				new CryptoWarmup(iteraciones, mode).start();
+			}
+		});
+
+		jComboBox2.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				String item_seleccionado = jComboBox2.getSelectedItem().toString();
+				log.append("Hemos seleccionado el algoritmo Hash/Hmac: " + item_seleccionado
+						+ "\n");
+				HashHmac = item_seleccionado;
+				new CryptoWarmup(iteraciones, HashHmac).start();
+			}
+		});
+		ventana2.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+		return ventana2;
+	}
+
+	/**
+	 * @return Planificador de las operaciones en modo comando, con tantos hilos como operaciones a
+	 * la vez permite <code>-limites</code> (o ncleos, si no hay lmite)
+	 */
+	private static synchronized JobScheduler planificador() {
+		if (planificador == null) {
+			int hilos = ResourceLimits.getWorkers() > 0 ? ResourceLimits.getWorkers()
+					: Runtime.getRuntime().availableProcessors();
+			planificador = new JobScheduler(hilos, MAX_INTERACTIVOS, MAX_LOTES);
+		}
+		return planificador;
+	}
+
+	/**
+	 * Ejecuta una operacin interactiva a travs del planificador y espera a que termine
+	 *
+	 * @param fichero   Fichero de entrada, para estimar el coste
+	 * @param algoritmo Algoritmo de la operacin
+	 * @param trabajo   Operacin; devuelve true si tuvo xito
+	 * @return Resultado de la operacin, o false si fall o no se admiti
+	 */
+	private static boolean ejecutar(File fichero, String algoritmo, Callable<Boolean> trabajo) {
+		try {
+			return planificador().submit(JobScheduler.INTERACTIVE, fichero, algoritmo, IT_COUNT, trabajo).get();
+		} catch (RejectedExecutionException | ExecutionException e) {
+			System.err.println("No se pudo ejecutar la operacin sobre " + fichero + ": " + e.getMessage());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Encola una operacin por lotes. Si la cola de lotes est llena, espera a que termine la
+	 * ms antigua de <code>pendientes</code> antes de volver a intentarlo
+	 *
+	 * @param pendientes Operaciones encoladas que an no se han recogido
+	 * @param fichero    Fichero de entrada, para estimar el coste
+	 * @param algoritmo  Algoritmo de la operacin
+	 * @param trabajo    Operacin; devuelve true si tuvo xito
+	 * @return False si alguna de las operaciones recogidas mientras tanto fall
+	 */
+	private static boolean encolarLote(Deque<Future<Boolean>> pendientes, File fichero, String algoritmo,
+			Callable<Boolean> trabajo) {
+		boolean correcto = true;
+		while (true) {
+			try {
+				pendientes.add(planificador().submit(JobScheduler.BATCH, fichero, algoritmo, IT_COUNT, trabajo));
+				return correcto;
+			} catch (RejectedExecutionException e) {
+				if (pendientes.isEmpty()) {
+					System.err.println("No se pudo encolar " + fichero + ": " + e.getMessage());
+					return false;
+				}
+				correcto &= recoger(pendientes.poll());
+			}
+		}
+	}
+
+	/**
+	 * Espera a que termine una operacin encolada
+	 *
+	 * @return Su resultado, o false si fall
+	 */
+	private static boolean recoger(Future<Boolean> trabajo) {
+		try {
+			return trabajo.get();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Auditora de integridad en modo comando:
+	 * <code>-auditar directorio [informe]</code>, con el secreto ledo por <code>leerSecreto</code>.
+	 * Termina con cdigo 0 si todos los ficheros protegidos son vlidos y 1 si no.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void auditar(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -auditar directorio [informe]");
+			System.exit(2);
+		}
+		IntegrityAudit audit = new IntegrityAudit(Paths.get(args[1]), leerSecreto("Secreto"), IT_COUNT,
+				Runtime.getRuntime().availableProcessors());
+		audit.run();
+		boolean valido = false;
+		try {
+			Writer out = args.length > 2 ? new FileWriter(args[2]) : new OutputStreamWriter(System.out);
+			valido = audit.writeReport(out);
+			if (args.length > 2) {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo escribir el informe");
+			e.printStackTrace();
+		}
+		System.err.println("Raz de Merkle: " + MerkleTree.toHex(audit.getMerkleRoot()));
+		System.exit(valido ? 0 : 1);
+	}
+
+	/**
+	 * Autenticadores por bloque en modo comando: <code>-autenticar directorio</code>, con el secreto
+	 * ledo por <code>leerSecreto</code>. Guarda junto a cada fichero del directorio sus HMAC por
+	 * bloque para la verificacin por muestreo.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void autenticar(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -autenticar directorio");
+			System.exit(2);
+		}
+		String secreto = leerSecreto("Secreto");
+		boolean correcto = true;
+		Deque<Future<Boolean>> pendientes = new ArrayDeque<>();
+		try (Stream<Path> ficheros = Files.walk(Paths.get(args[1]))) {
+			for (Path p : (Iterable<Path>) ficheros::iterator) {
+				String nombre = p.getFileName().toString();
+				if (Files.isRegularFile(p) && !nombre.endsWith(SpotCheck.SUFFIX) && !nombre.endsWith(BlockChecksums.SUFFIX)
+						&& !nombre.endsWith(BatchSigner.SUFFIX)) {
+					File fichero = p.toFile();
+					correcto &= encolarLote(pendientes, fichero, "HmacSHA256",
+							() -> SpotCheck.create(fichero, secreto, IT_COUNT, SpotCheck.DEFAULT_BLOCK_SIZE));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo recorrer " + args[1]);
+			e.printStackTrace();
+			correcto = false;
+		}
+		while (!pendientes.isEmpty()) {
+			correcto &= recoger(pendientes.poll());
+		}
+		planificador().shutdown();
+		System.exit(correcto ? 0 : 1);
+	}
+
+	/**
+	 * Sellado de un fichero que solo crece en modo comando: <code>-sellar fichero</code>, con el
+	 * secreto ledo por <code>leerSecreto</code>. La primera vez crea su cadena de segmentos; las
+	 * siguientes sella solo lo aadido. Escribe el punto de control resultante y termina con
+	 * cdigo 0 si se pudo sellar.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void sellar(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -sellar fichero");
+			System.exit(2);
+		}
+		File fichero = new File(args[1]);
+		String secreto = leerSecreto("Secreto");
+		boolean correcto = ejecutar(fichero, "HmacSHA256", () -> {
+			try {
+				if (AppendMAC.sidecar(fichero).isFile() || AppendMAC.create(fichero, secreto, IT_COUNT)) {
+					System.out.println(new AppendMAC(fichero, secreto, IT_COUNT).seal());
+					return true;
+				}
+			} catch (IOException e) {
+				System.err.println("No se pudo sellar " + fichero + ": " + e.getMessage());
+			}
+			return false;
+		});
+		planificador().shutdown();
+		System.exit(correcto ? 0 : 1);
+	}
+
+	/**
+	 * Comprobacin de un fichero sellado en modo comando:
+	 * <code>-comprobar-sellos fichero [punto]</code>, con el secreto ledo por
+	 * <code>leerSecreto</code>. Con el punto de control de una
+	 * comprobacin anterior solo lee los segmentos sellados despus. Escribe el ltimo punto
+	 * vlido y termina con cdigo 0 si todos los segmentos coinciden.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void comprobarSellos(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -comprobar-sellos fichero [punto]");
+			System.exit(2);
+		}
+		File fichero = new File(args[1]);
+		String secreto = leerSecreto("Secreto");
+		boolean valido = ejecutar(fichero, "HmacSHA256", () -> {
+			try {
+				AppendMAC.Checkpoint desde = args.length > 2 ? AppendMAC.Checkpoint.parse(args[2]) : null;
+				AppendMAC.Result r = new AppendMAC(fichero, secreto, IT_COUNT).verify(desde);
+				System.out.println((r.isValid() ? IntegrityAudit.VALID : IntegrityAudit.ALTERED + " en el segmento "
+						+ r.failedSegment) + "\t" + r.verified + "\tledos=" + r.bytesRead + "\tsin sellar="
+						+ r.unsealed);
+				return r.isValid();
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("No se pudo comprobar " + args[1] + ": " + e.getMessage());
+				return false;
+			}
+		});
+		planificador().shutdown();
+		System.exit(valido ? 0 : 1);
+	}
+
+	/**
+	 * Verificacin por muestreo en modo comando:
+	 * <code>-muestrear directorio megabytes [semilla] [informe]</code>, con el secreto ledo por
+	 * <code>leerSecreto</code>. Lee como mucho
+	 * <code>megabytes</code> repartidos entre todos los ficheros con autenticadores por bloque.
+	 * Termina con cdigo 0 si ningn bloque muestreado falla.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void muestrear(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Uso: -muestrear directorio megabytes [semilla] [informe]");
+			System.exit(2);
+		}
+		long semilla = args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime();
+		String secreto = leerSecreto("Secreto");
+		boolean valido = false;
+		try {
+			Writer out = args.length > 4 ? new FileWriter(args[4]) : new OutputStreamWriter(System.out);
+			valido = SpotCheck.sweep(Paths.get(args[1]), secreto, IT_COUNT, Long.parseLong(args[2]) * 1024 * 1024,
+					semilla, out);
+			if (args.length > 4) {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo completar el muestreo");
+			e.printStackTrace();
+		}
+		System.exit(valido ? 0 : 1);
+	}
+
+	/**
+	 * Descifrado en paralelo en modo comando: <code>-descifrar fichero [hilos]</code>. La contrasea
+	 * se lee con <code>leerSecreto</code>. Deja el resultado en <code>fichero.clr</code> y termina con
+	 * cdigo 0 si se pudo descifrar.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void descifrarEnParalelo(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -descifrar fichero [hilos]");
+			System.exit(2);
+		}
+		int hilos = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		File fichero = new File(args[1]);
+		String contrasenia = leerSecreto("Contrasea");
+		// El algoritmo est en la cabecera; para estimar el coste basta el tamao
+		boolean correcto = ejecutar(fichero, Options.OP_NONE_ALGORITHM,
+				() -> SimpleCipher.saveParallel(fichero, new File(args[1] + ".clr"), contrasenia, IT_COUNT, hilos));
+		planificador().shutdown();
+		System.exit(correcto ? 0 : 1);
+	}
+
+	/**
+	 * Vigilancia de un directorio en modo comando:
+	 * <code>-vigilar directorio cifrar|proteger [hilos] [cola] [opciones]</code>, con la contrasea o
+	 * el secreto ledo por <code>leerSecreto</code>. Cifra o protege con hash/MAC los ficheros que
+	 * llegan, con los algoritmos de un fichero de <code>Options</code> (o los de por defecto), hasta
+	 * que se para el proceso.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void vigilar(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Uso: -vigilar directorio cifrar|proteger [hilos] [cola] [opciones]");
+			System.exit(2);
+		}
+		String secreto = leerSecreto("Secreto");
+		try {
+			int hilos = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			int cola = args.length > 4 ? Integer.parseInt(args[4]) : 4 * hilos;
+			Options opciones = args.length > 5 ? Options.load(args[5]) : new Options();
+			WatchDaemon vigilante = new WatchDaemon(Paths.get(args[1]), args[2], opciones, secreto, IT_COUNT, hilos,
+					cola, WatchDaemon.DEFAULT_QUIET_MILLIS);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				vigilante.close();
+				System.out.println(vigilante.report());
+			}));
+			vigilante.start();
+		} catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+			System.err.println("No se pudo vigilar " + args[1] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reparto de un trabajo entre procesos en modo comando:
+	 * <code>-coordinar directorio cifrar|hash|mac|resumen trabajadores [trozo MB] [informe]</code>, con
+	 * la contrasea o el secreto ledo por <code>leerSecreto</code>. Lanza los trabajadores como nuevas mquinas virtuales de esta misma clase con
+	 * <code>-trabajador</code>. Usa los algoritmos por defecto. Escribe en la salida de error la ficha
+	 * que deben presentar los trabajadores lanzados a mano. Termina con cdigo 0 si todas las
+	 * tareas terminaron bien.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void coordinar(String[] args) {
+		if (args.length < 4) {
+			System.err.println("Uso: -coordinar directorio cifrar|hash|mac|resumen trabajadores [trozo MB] [informe]");
+			System.exit(2);
+		}
+		boolean correcto = false;
+		String operacion = args[2];
+		String algoritmo = operacion.equals(Coordinator.CIPHER) ? new MainClass().mode
+				: operacion.equals(Coordinator.HASH) ? "SHA-256"
+				: operacion.equals(Coordinator.MAC) ? "HmacSHA256" : MerkleTree.ALGORITHM;
+		long trozo = (args.length > 4 ? Long.parseLong(args[4]) : 64) * 1024 * 1024;
+		String secreto = leerSecreto("Secreto");
+		try (Coordinator coordinador = new Coordinator(Paths.get(args[1]), operacion, algoritmo, secreto, IT_COUNT,
+				trozo)) {
+			System.err.println("Ficha para trabajadores externos: " + coordinador.getToken());
+			String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			coordinador.launchWorkers(Integer.parseInt(args[3]), Arrays.asList(java, "-cp",
+					System.getProperty("java.class.path"), MainClass.class.getName(), "-trabajador"));
+			correcto = coordinador.run();
+			Writer out = args.length > 5 ? new FileWriter(args[5]) : new OutputStreamWriter(System.out);
+			coordinador.writeReport(out);
+			if (args.length > 5) {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo completar el trabajo repartido");
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			System.err.println("No se pudo repartir el trabajo: " + e.getMessage());
+		} catch (InterruptedException e) {
+			System.err.println("Trabajo repartido interrumpido");
+		}
+		System.exit(correcto ? 0 : 1);
+	}
+
+	/**
+	 * Lee una contrasea o secreto del modo comando sin ponerlo en los argumentos, que ve cualquiera
+	 * en la lista de procesos: de la consola sin mostrarlo, o si no hay consola (entrada redirigida),
+	 * la primera lnea de la entrada estndar. Termina con cdigo 2 si no hay nada que leer.
+	 *
+	 * @param pregunta Lo que se pide, para mostrarlo en la consola
+	 * @return Contrasea o secreto ledo
+	 */
+	private static String leerSecreto(String pregunta) {
+		Console consola = System.console();
+		if (consola != null) {
+			char[] secreto = consola.readPassword("%s: ", pregunta);
+			if (secreto != null) {
+				return new String(secreto);
+			}
+		} else {
+			try {
+				String secreto = new BufferedReader(new InputStreamReader(System.in, "UTF-8")).readLine();
+				if (secreto != null) {
+					return secreto;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		System.err.println("Falta " + pregunta.toLowerCase() + " en la entrada estndar");
+		System.exit(2);
+		return null;
+	}
+
+	/**
+	 * Trabajador de <code>-coordinar</code> en modo comando: <code>-trabajador [mquina] puerto</code>.
+	 * Lee de la entrada estndar la ficha del trabajo y el secreto, una lnea cada uno.
+	 * Termina con cdigo 0 si el coordinador le dio por terminado.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void trabajar(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Uso: -trabajador [mquina] puerto");
+			System.exit(2);
+		}
+		String maquina = args.length > 2 ? args[1] : "127.0.0.1";
+		try {
+			BufferedReader entrada = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+			String ficha = entrada.readLine();
+			String secreto = entrada.readLine();
+			if (ficha == null || secreto == null) {
+				System.err.println("Faltan la ficha y el secreto en la entrada estndar");
+				System.exit(2);
+			}
+			new Worker(maquina, Integer.parseInt(args[args.length - 1]), ficha, secreto).run();
+			System.exit(0);
+		} catch (IOException e) {
+			System.err.println("Conexin con el coordinador perdida: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prueba de carga en modo comando:
+	 * <code>-carga segundos hilos [operaciones/s] [tamaoxpeso,...] [informe|-] [planificador]</code>.
+	 * Usa los algoritmos por defecto y un directorio temporal. Con <code>planificador</code> (hilos del
+	 * planificador), las operaciones pasan por un <code>JobScheduler</code> y las de hasta
+	 * <code>UMBRAL_INTERACTIVO</code> bytes son interactivas. Termina con cdigo 0 si no hubo errores.
+	 *
+	 * @param args Argumentos de la lnea de comandos
+	 */
+	private static void cargar(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Uso: -carga segundos hilos [operaciones/s] [tamaoxpeso,...] [informe|-] [planificador]");
+			System.exit(2);
+		}
+		boolean correcto = false;
+		try {
+			MainClass m = new MainClass();
+			File trabajo = Files.createTempDirectory("srt-carga").toFile();
+			LoadGenerator carga = new LoadGenerator(trabajo, m.mode, "SHA-256", "HmacSHA256", m.iteraciones);
+			carga.setDuration(Long.parseLong(args[1]));
+			carga.setWorkers(Integer.parseInt(args[2]));
+			if (args.length > 3) {
+				carga.setRate(Double.parseDouble(args[3]));
+			}
+			if (args.length > 4) {
+				carga.setSizes(args[4]);
+			}
+			JobScheduler planificador = null;
+			if (args.length > 6) {
+				planificador = new JobScheduler(Integer.parseInt(args[6]), 0, 0);
+				carga.setScheduler(planificador, UMBRAL_INTERACTIVO);
+			}
+			correcto = carga.run();
+			if (planificador != null) {
+				planificador.shutdown();
+			}
+			boolean fichero = args.length > 5 && !args[5].equals("-");
+			Writer out = fichero ? new FileWriter(args[5]) : new OutputStreamWriter(System.out);
+			carga.writeReport(out);
+			if (fichero) {
+				out.close();
+			}
+			for (File f : trabajo.listFiles()) {
+				f.delete();
+			}
+			trabajo.delete();
+		} catch (IOException e) {
+			System.err.println("No se pudo completar la prueba de carga");
+			e.printStackTrace();
+		}
+		System.exit(correcto ? 0 : 1);
+	}
+
+	/**
+	 * Función principal: Ejecuta el programa en modo ventanas, o en modo comando si el
+	 * primer argumento es <code>-auditar</code>, <code>-carga</code>, <code>-autenticar</code>,
+	 * <code>-muestrear</code>, <code>-sellar</code>, <code>-comprobar-sellos</code>, <code>-vigilar</code>,
+	 * <code>-coordinar</code>, <code>-trabajador</code> o <code>-descifrar</code>. Delante de cualquiera de ellos, <code>-limites lectura escritura hilos</code>
+	 * fija el caudal de lectura y escritura en MB/s y las operaciones a la vez, y <code>-memoria megabytes</code>
+	 * el presupuesto de bferes de las operaciones. Con la propiedad <code>srt.registro</code>
+	 * el registro de actividad se vuelca tambin a ese fichero.
 	 *
 	 * @param args Argumentos pasados. Dependen de si se utiliza cifrado o
 	 *             descifrado.
 	 */
 	public static void main(String[] args) {
+		while (true) {
+			if (args.length > 3 && args[0].equals("-limites")) {
+				limitar(Double.parseDouble(args[1]), Double.parseDouble(args[2]), Integer.parseInt(args[3]));
+				args = Arrays.copyOfRange(args, 4, args.length);
+			} else if (args.length > 1 && args[0].equals("-memoria")) {
+				MemoryBudget.setLimit((long) (Double.parseDouble(args[1]) * 1024 * 1024));
+				args = Arrays.copyOfRange(args, 2, args.length);
+			} else {
+				break;
+			}
+		}
+		if (args.length > 0 && args[0].equals("-auditar")) {
+			auditar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-carga")) {
+			cargar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-autenticar")) {
+			autenticar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-muestrear")) {
+			muestrear(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-sellar")) {
+			sellar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-comprobar-sellos")) {
+			comprobarSellos(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-vigilar")) {
+			vigilar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-coordinar")) {
+			coordinar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-trabajador")) {
+			trabajar(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-descifrar")) {
+			descifrarEnParalelo(args);
+			return;
+		}
 		MainClass m = new MainClass();
-		m.ejecucion();
+		String registro = System.getProperty("srt.registro");
+		if (registro != null) {
+			try {
+				m.log.setSpillFile(new File(registro), MAX_FICHERO_REGISTRO);
+			} catch (IOException e) {
+				System.err.println("No se pudo abrir el fichero de registro " + registro);
+				e.printStackTrace();
+			}
+		}
+		// El calentamiento criptogrfico arranca antes que la interfaz, que se construye en el EDT
+		m.calentar();
+		SwingUtilities.invokeLater(m::ejecucion);
 	}
 
 }
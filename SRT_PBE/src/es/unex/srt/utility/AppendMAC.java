@@ -0,0 +1,327 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Autenticación de ficheros que solo crecen, como los registros.
+ * <p>
+ * Junto al fichero se guarda una cadena de segmentos sellados (<code>nombre.amac</code>). Cada
+ * sellado autentica solo lo añadido desde el anterior, encadenado con el valor del segmento
+ * previo, y añade un registro de tamaño fijo al final; así sellar cuesta lo añadido y no el
+ * tamaño del fichero. El último valor de la cadena autentica todo el fichero hasta ese punto, y la
+ * comprobación puede seguir desde un punto ya comprobado sin volver a leer lo anterior.
+ * <pre>
+ * nombre.amac: |Header (OP_HASH_MAC, HmacSHA256, sal; iteraciones, EXT_KEY_CHECK)|
+ *              |Fin segmento 0 (8)|Cadena 0 (32)|...|Fin segmento N-1 (8)|Cadena N-1 (32)|
+ * Cadena i: HMAC(cadena i-1 (ceros para i = 0) || i (8) || inicio (8) || fin (8) || segmento i)
+ * </pre>
+ * Quien borre los últimos segmentos a la vez del fichero y de la cadena no se detecta desde aquí:
+ * para eso hay que guardar aparte el último punto de control ({@link #getCheckpoint()}).
+ */
+public class AppendMAC {
+
+    /**
+     * Extensión del fichero de la cadena
+     */
+    public static final String SUFFIX = ".amac";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int TAG_LENGTH = 32;
+    private static final int RECORD_LENGTH = 8 + TAG_LENGTH;
+
+    /**
+     * Punto de la cadena: segmentos sellados, bytes que cubren y valor de la cadena
+     */
+    public static class Checkpoint {
+        public final long segments, length;
+        private final byte[] chain;
+
+        Checkpoint(long segments, long length, byte[] chain) {
+            this.segments = segments;
+            this.length = length;
+            this.chain = chain.clone();
+        }
+
+        /**
+         * @param text Texto de {@link #toString()}
+         * @return Punto de control
+         * @throws IllegalArgumentException si el texto no es un punto de control
+         */
+        public static Checkpoint parse(String text) {
+            String[] parts = text.split(":");
+            if (parts.length != 3 || parts[2].length() != TAG_LENGTH * 2) {
+                throw new IllegalArgumentException("Punto de control no válido: " + text);
+            }
+            byte[] chain = new byte[TAG_LENGTH];
+            for (int i = 0; i < TAG_LENGTH; i++) {
+                chain[i] = (byte) Integer.parseInt(parts[2].substring(2 * i, 2 * i + 2), 16);
+            }
+            return new Checkpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), chain);
+        }
+
+        /**
+         * @return <code>segmentos:longitud:cadena en hexadecimal</code>
+         */
+        @Override
+        public String toString() {
+            return segments + ":" + length + ":" + MerkleTree.toHex(chain);
+        }
+    }
+
+    /**
+     * Resultado de una comprobación
+     */
+    public static class Result {
+        /**
+         * Último punto comprobado como válido
+         */
+        public final Checkpoint verified;
+        /**
+         * Primer segmento que no coincide, o -1 si ninguno
+         */
+        public final long failedSegment;
+        /**
+         * Bytes del fichero añadidos tras el último sellado
+         */
+        public final long unsealed;
+        /**
+         * Bytes leídos del fichero
+         */
+        public final long bytesRead;
+
+        Result(Checkpoint verified, long failedSegment, long unsealed, long bytesRead) {
+            this.verified = verified;
+            this.failedSegment = failedSegment;
+            this.unsealed = unsealed;
+            this.bytesRead = bytesRead;
+        }
+
+        /**
+         * @return True si todos los segmentos comprobados coinciden
+         */
+        public boolean isValid() {
+            return failedSegment < 0;
+        }
+    }
+
+    private final File file;
+    private final Mac mac;
+    /**
+     * Posición del primer registro en el fichero de la cadena
+     */
+    private final long recordsStart;
+
+    /**
+     * Constructor. Abre la cadena de un fichero y comprueba el secreto, sin leer los segmentos
+     *
+     * @param file           Fichero protegido
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @throws IOException si no hay cadena o el secreto no es correcto
+     */
+    public AppendMAC(File file, String secret, Integer iterationCount) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(sidecar(file).toPath(), StandardOpenOption.READ)) {
+            Header header = new Header();
+            if (!header.load(Channels.newInputStream(channel)) || header.getOperation() != Options.OP_HASH_MAC) {
+                throw new IOException("No es un fichero de segmentos sellados");
+            }
+            recordsStart = channel.position();
+            mac = createMac(secret, header.getData(), header.getIterationCount(iterationCount));
+            byte[] check = header.getExtension(Header.EXT_KEY_CHECK);
+            if (check == null || !MessageDigest.isEqual(check, keyCheck(mac))) {
+                throw new IOException("El secreto no es válido para este fichero");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo preparar el MAC", e);
+        }
+    }
+
+    /**
+     * @param file Fichero protegido
+     * @return Su fichero de la cadena
+     */
+    public static File sidecar(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Crea la cadena de un fichero y sella lo que ya tiene como primer segmento
+     *
+     * @param file           Fichero protegido
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @return True si se creó, false si hubo error
+     */
+    public static boolean create(File file, String secret, Integer iterationCount) {
+        try {
+            byte[] sal = RandomPool.bytes(8);
+            Header header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], MAC_ALGORITHM, sal);
+            header.setIterationCount(iterationCount);
+            header.setExtension(Header.EXT_KEY_CHECK, keyCheck(createMac(secret, sal, iterationCount)));
+            try (OutputStream out = new FileOutputStream(sidecar(file))) {
+                if (!header.save(out)) {
+                    return false;
+                }
+            }
+            return new AppendMAC(file, secret, iterationCount).seal() != null;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Sella lo añadido al fichero desde el último sellado. Lee solo lo añadido. Si un sellado
+     * anterior se cortó a medias, descarta el registro incompleto
+     *
+     * @return Punto de control tras sellar (el mismo si no había nada nuevo), o null si hubo error
+     */
+    @SuppressWarnings("try")
+    public Checkpoint seal() {
+        try (FileChannel chain = FileChannel.open(sidecar(file).toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+             FileLock lock = chain.lock();
+             FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = (chain.size() - recordsStart) / RECORD_LENGTH;
+            chain.truncate(recordsStart + records * RECORD_LENGTH);
+            Checkpoint last = records == 0 ? new Checkpoint(0, 0, new byte[TAG_LENGTH]) : readRecord(chain, records - 1);
+            long end = data.size();
+            if (end < last.length) {
+                System.err.println("El fichero es más corto que lo sellado: no se ha añadido, se ha truncado");
+                return null;
+            }
+            if (end == last.length && records > 0) {
+                return last;
+            }
+            byte[] tag = segmentTag(data, last.segments, last.length, end, last.chain);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH).putLong(end).put(tag);
+            record.flip();
+            long position = recordsStart + records * RECORD_LENGTH;
+            while (record.hasRemaining()) {
+                position += chain.write(record, position);
+            }
+            chain.force(false);
+            return new Checkpoint(last.segments + 1, end, tag);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return Último punto sellado, sin comprobarlo contra el fichero
+     * @throws IOException si no se puede leer la cadena
+     */
+    public Checkpoint getCheckpoint() throws IOException {
+        try (FileChannel chain = FileChannel.open(sidecar(file).toPath(), StandardOpenOption.READ)) {
+            long records = (chain.size() - recordsStart) / RECORD_LENGTH;
+            return records == 0 ? new Checkpoint(0, 0, new byte[TAG_LENGTH]) : readRecord(chain, records - 1);
+        }
+    }
+
+    /**
+     * Comprueba los segmentos sellados
+     *
+     * @param from Punto ya comprobado desde el que seguir, o null para comprobar desde el principio.
+     *             Tiene que seguir en la cadena; si no, el resultado falla en ese segmento
+     * @return Resultado
+     * @throws IOException si no se puede leer el fichero o la cadena
+     */
+    public Result verify(Checkpoint from) throws IOException {
+        try (FileChannel chain = FileChannel.open(sidecar(file).toPath(), StandardOpenOption.READ);
+             FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long records = (chain.size() - recordsStart) / RECORD_LENGTH;
+            Checkpoint good = new Checkpoint(0, 0, new byte[TAG_LENGTH]);
+            if (from != null && from.segments > 0) {
+                if (from.segments > records) {
+                    return new Result(good, records, 0, 0); // Cadena recortada
+                }
+                if (!MessageDigest.isEqual(from.chain, readRecord(chain, from.segments - 1).chain)) {
+                    return new Result(good, from.segments - 1, 0, 0);
+                }
+                good = from;
+            }
+            long bytesRead = 0;
+            long size = data.size();
+            for (long i = good.segments; i < records; i++) {
+                Checkpoint stored = readRecord(chain, i);
+                if (stored.length < good.length || stored.length > size || !MessageDigest.isEqual(stored.chain,
+                        segmentTag(data, i, good.length, stored.length, good.chain))) {
+                    return new Result(good, i, 0, bytesRead);
+                }
+                bytesRead += stored.length - good.length;
+                good = stored;
+            }
+            return new Result(good, -1, size - good.length, bytesRead);
+        }
+    }
+
+    /**
+     * Lee el registro i de la cadena como punto de control
+     */
+    private Checkpoint readRecord(FileChannel chain, long i) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        long position = recordsStart + i * RECORD_LENGTH;
+        while (record.hasRemaining()) {
+            int n = chain.read(record, position + record.position());
+            if (n < 0) {
+                throw new EOFException("Cadena truncada");
+            }
+        }
+        record.flip();
+        long end = record.getLong();
+        byte[] tag = new byte[TAG_LENGTH];
+        record.get(tag);
+        return new Checkpoint(i + 1, end, tag);
+    }
+
+    /**
+     * Valor de la cadena de un segmento
+     */
+    @SuppressWarnings("try")
+    private byte[] segmentTag(FileChannel data, long index, long start, long end, byte[] previous)
+            throws IOException {
+        try (MemoryBudget.Lease lease = MemoryBudget.acquire(64 * 1024);
+             ResourceLimits.Permit permit = ResourceLimits.enterWorker()) {
+            mac.update(previous);
+            mac.update(ByteBuffer.allocate(24).putLong(index).putLong(start).putLong(end).array());
+            ByteBuffer buffer = ByteBuffer.wrap(lease.buffer());
+            long position = start;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int n = data.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException("Fichero truncado");
+                }
+                ResourceLimits.READ.acquire(n);
+                buffer.flip();
+                mac.update(buffer);
+                position += n;
+            }
+            return mac.doFinal();
+        }
+    }
+
+    private static Mac createMac(String secret, byte[] sal, Integer iterationCount) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(Pbkdf2.deriveKey(secret, sal, iterationCount, TAG_LENGTH * 8), MAC_ALGORITHM));
+        return mac;
+    }
+
+    /**
+     * Valor de comprobación de la clave: MAC de <code>KEY_CHECK_BLOCK</code>, truncado
+     */
+    private static byte[] keyCheck(Mac mac) {
+        return Arrays.copyOf(mac.doFinal(Header.KEY_CHECK_BLOCK), Header.KEY_CHECK_LENGTH);
+    }
+}
@@ -0,0 +1,294 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Firma por lotes (<code>Options.OP_SIGNED</code>): una sola firma RSA para todos los ficheros de
+ * un directorio.
+ * <p>
+ * Los ficheros se resumen en paralelo, los resúmenes forman un árbol de Merkle y solo se firma la
+ * raíz. Junto a cada fichero se deja un <code>nombre.sig</code>: una cabecera con su resumen, el
+ * nombre con que entró en el lote, la prueba de inclusión y la firma de la raíz. Así cada fichero se
+ * verifica por separado con una operación de clave pública, sin ninguna operación de clave privada
+ * por fichero; y como todos los ficheros de un lote comparten raíz, la firma solo se comprueba una
+ * vez por lote. La hoja incluye la ruta relativa al directorio firmado, así que un fichero solo se
+ * verifica en su sitio: otro fichero del mismo nombre en otro subdirectorio no puede usar su firma.
+ * <p>
+ * Del lote quedan fuera los ficheros de firma y de sumas CRC de otros ficheros del directorio
+ * (<code>x.sig</code> y <code>x.crc</code> cuando existe <code>x</code>); el resto, acabe como acabe
+ * su nombre, se firma.
+ * <pre>
+ * nombre.sig: |Header (OP_SIGNED, algoritmo de firma, resumen SHA-256 del contenido)|
+ *   extensiones: EXT_LEAF_NAME, EXT_MERKLE_PROOF, EXT_SIGNATURE, EXT_KEY_ALIAS
+ * hoja: MerkleTree.hashLeaf(nombre || 0x00 || resumen)
+ * </pre>
+ */
+public class BatchSigner {
+
+    /**
+     * Extensión de los ficheros de firma
+     */
+    public static final String SUFFIX = ".sig";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Raíces cuya firma ya se ha comprobado, por alias y raíz
+     */
+    private static final Map<String, Boolean> verifiedRoots = new ConcurrentHashMap<>();
+
+    private final Path root;
+    private final KeyStoreCache keys;
+    private final String alias;
+    private final char[] keyPassword;
+    private final String algorithm;
+    private final int parallelism;
+    private byte[] merkleRoot;
+
+    /**
+     * Constructor
+     *
+     * @param root        Directorio a firmar (se recorre entero)
+     * @param keys        Almacén con la clave privada del firmante
+     * @param alias       Alias del firmante
+     * @param keyPassword Contraseña de la clave privada
+     * @param algorithm   Algoritmo de <code>Options.signAlgorithms</code>
+     * @param parallelism Hilos para resumir ficheros
+     */
+    public BatchSigner(Path root, KeyStoreCache keys, String alias, char[] keyPassword, String algorithm,
+                       int parallelism) {
+        this.root = root;
+        this.keys = keys;
+        this.alias = alias;
+        this.keyPassword = keyPassword;
+        this.algorithm = algorithm;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param file Fichero firmado
+     * @return Su fichero de firma
+     */
+    public static File sidecar(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return Raíz del árbol del último lote firmado, o null
+     */
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * Resume todos los ficheros, firma la raíz y escribe los ficheros de firma
+     *
+     * @return Número de ficheros firmados
+     * @throws IOException              si no se puede leer algún fichero o escribir las firmas
+     * @throws GeneralSecurityException si no se puede firmar
+     */
+    public int sign() throws IOException, GeneralSecurityException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> !isSidecar(p))
+                    .collect(Collectors.toList());
+        }
+        List<String> names = new ArrayList<>(files.size());
+        for (Path p : files) {
+            names.add(root.relativize(p).toString().replace(File.separatorChar, '/'));
+        }
+        Collections.sort(names);
+        if (names.isEmpty()) {
+            return 0;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        List<byte[]> digests;
+        try {
+            digests = pool.submit(() -> names.parallelStream().map(this::digestOrNull).collect(Collectors.toList()))
+                    .get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("No se pudieron resumir los ficheros", e);
+        } finally {
+            pool.shutdown();
+        }
+        List<byte[]> leaves = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            if (digests.get(i) == null) {
+                throw new IOException("No se pudo leer " + names.get(i));
+            }
+            leaves.add(leaf(names.get(i), digests.get(i)));
+        }
+
+        List<List<byte[]>> levels = MerkleTree.levels(leaves);
+        merkleRoot = levels.get(levels.size() - 1).get(0);
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(keys.getPrivateKey(alias, keyPassword));
+        signer.update(merkleRoot);
+        byte[] signature = signer.sign();
+
+        byte[] aliasBytes = alias.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < names.size(); i++) {
+            Header header = new Header(Options.OP_SIGNED, Options.cipherAlgorithms[0], algorithm, digests.get(i));
+            header.setExtension(Header.EXT_LEAF_NAME, names.get(i).getBytes(StandardCharsets.UTF_8));
+            header.setExtension(Header.EXT_MERKLE_PROOF, join(MerkleTree.proof(levels, i)));
+            header.setExtension(Header.EXT_SIGNATURE, signature);
+            header.setExtension(Header.EXT_KEY_ALIAS, aliasBytes);
+            try (OutputStream out = new FileOutputStream(sidecar(root.resolve(names.get(i)).toFile()))) {
+                if (!header.save(out)) {
+                    throw new IOException("No se pudo escribir la firma de " + names.get(i));
+                }
+            }
+        }
+        return names.size();
+    }
+
+    /**
+     * Verifica un fichero con su fichero de firma: que su contenido esté en el lote con su ruta
+     * relativa al directorio firmado, y que la raíz del lote esté firmada por el alias indicado en
+     * la firma con uno de los algoritmos de <code>Options.signAlgorithms</code>
+     *
+     * @param root Directorio que se firmó
+     * @param file Fichero firmado, dentro de <code>root</code>
+     * @param keys Almacén con el certificado del firmante
+     * @return True si es auténtico, false si no o hay error
+     */
+    public static boolean verify(Path root, File file, KeyStoreCache keys) {
+        Header header = new Header();
+        try (InputStream in = new FileInputStream(sidecar(file))) {
+            if (!header.load(in) || header.getOperation() != Options.OP_SIGNED) {
+                return false;
+            }
+        } catch (IOException e) {
+            System.err.println("No hay firma para " + file);
+            return false;
+        }
+        byte[] name = header.getExtension(Header.EXT_LEAF_NAME);
+        byte[] proof = header.getExtension(Header.EXT_MERKLE_PROOF);
+        byte[] signature = header.getExtension(Header.EXT_SIGNATURE);
+        byte[] alias = header.getExtension(Header.EXT_KEY_ALIAS);
+        if (name == null || proof == null || signature == null || alias == null) {
+            return false;
+        }
+        String leafName = new String(name, StandardCharsets.UTF_8);
+        Path relative = root.toAbsolutePath().normalize().relativize(file.toPath().toAbsolutePath().normalize());
+        if (relative.startsWith("..") || !leafName.equals(relative.toString().replace(File.separatorChar, '/'))) {
+            return false; // La firma es de otro fichero, o de otro sitio del directorio
+        }
+        if (Options.search(Options.signAlgorithms, header.getAlgorithm2()) < 0) {
+            System.err.println("Algoritmo de firma no admitido: " + header.getAlgorithm2());
+            return false;
+        }
+        try {
+            byte[] digest = digest(file.toPath());
+            if (!MessageDigest.isEqual(digest, header.getData())) {
+                return false;
+            }
+            byte[] merkleRoot = MerkleTree.rootFromProof(leaf(leafName, digest), split(proof));
+            String signer = new String(alias, StandardCharsets.UTF_8);
+            String key = signer + "/" + header.getAlgorithm2() + "/" + MerkleTree.toHex(merkleRoot) + "/"
+                    + MerkleTree.toHex(signature);
+            Boolean cached = verifiedRoots.get(key);
+            if (cached == null) {
+                Signature verifier = Signature.getInstance(header.getAlgorithm2());
+                verifier.initVerify(keys.getPublicKey(signer));
+                verifier.update(merkleRoot);
+                cached = verifier.verify(signature);
+                verifiedRoots.put(key, cached);
+            }
+            return cached;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return Si es el fichero de firma o de sumas de otro fichero que existe
+     */
+    private static boolean isSidecar(Path file) {
+        String name = file.getFileName().toString();
+        for (String suffix : new String[]{SUFFIX, BlockChecksums.SUFFIX}) {
+            if (name.length() > suffix.length() && name.endsWith(suffix)
+                    && Files.isRegularFile(file.resolveSibling(name.substring(0, name.length() - suffix.length())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] digestOrNull(String name) {
+        try {
+            return digest(root.resolve(name));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Resumen SHA-256 del contenido de un fichero
+     */
+    private static byte[] digest(Path file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(MerkleTree.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    private static byte[] leaf(String name, byte[] digest) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] leaf = new byte[n.length + 1 + digest.length];
+        System.arraycopy(n, 0, leaf, 0, n.length);
+        System.arraycopy(digest, 0, leaf, n.length + 1, digest.length);
+        return MerkleTree.hashLeaf(leaf);
+    }
+
+    private static byte[] join(List<byte[]> steps) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] step : steps) {
+            out.write(step, 0, step.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> split(byte[] proof) throws IOException {
+        int stepLength = 1 + 32;
+        if (proof.length % stepLength != 0) {
+            throw new IOException("Prueba de inclusión dañada");
+        }
+        List<byte[]> steps = new ArrayList<>();
+        for (int off = 0; off < proof.length; off += stepLength) {
+            byte[] step = new byte[stepLength];
+            System.arraycopy(proof, off, step, 0, stepLength);
+            steps.add(step);
+        }
+        return steps;
+    }
+}
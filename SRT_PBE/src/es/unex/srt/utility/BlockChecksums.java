@@ -0,0 +1,281 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Sumas CRC por bloques de un fichero protegido, guardadas en un fichero aparte
+ * (<code>nombre.crc</code>), para la comprobación rápida.
+ * <p>
+ * La comprobación rápida detecta daños del soporte o bit-rot a la velocidad de lectura del disco,
+ * porque el CRC lo calcula la CPU con instrucciones propias, e indica qué bloque falla. No protege
+ * contra modificaciones intencionadas: para eso sigue haciendo falta la verificación completa con
+ * <code>SimpleHash</code> o <code>SimpleMAC</code>, que solo merece la pena si la rápida pasa.
+ * <pre>
+ * |CRCB (4)|Tamaño de bloque (4)|Longitud (8)|CRC bloque 0 (4)|...|CRC de todo lo anterior (4)|
+ * </pre>
+ */
+public class BlockChecksums {
+
+    /**
+     * Extensión del fichero de sumas
+     */
+    public static final String SUFFIX = ".crc";
+    /**
+     * Tamaño de bloque por defecto
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    /**
+     * Resultado de <code>check</code> cuando todos los bloques coinciden
+     */
+    public static final long OK = -1;
+    private static final int MAGIC = 0x43524342; // "CRCB"
+
+    private BlockChecksums() {
+    }
+
+    /**
+     * @param file Fichero protegido
+     * @return Su fichero de sumas
+     */
+    public static File sidecar(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Calcula y guarda las sumas de un fichero ya escrito
+     *
+     * @param file Fichero protegido
+     * @return True si se guardaron, false si hubo error
+     */
+    public static boolean create(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             Output out = new Output(new NullOutputStream(), file, DEFAULT_BLOCK_SIZE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BLOCK_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                out.update(buffer);
+                buffer.clear();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Comprobación rápida de un fichero contra sus sumas
+     *
+     * @param file Fichero protegido
+     * @return <code>OK</code> si todo coincide, o el número del primer bloque que falla (si el
+     * fichero ha cambiado de longitud, el bloque donde empieza la diferencia)
+     * @throws IOException si no hay fichero de sumas, está dañado o no se puede leer el fichero
+     */
+    public static long check(File file) throws IOException {
+        int blockSize;
+        long length;
+        int[] crcs;
+        File sums = sidecar(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sums)))) {
+            CRC32 self = new CRC32();
+            byte[] prefix = new byte[16];
+            in.readFully(prefix);
+            self.update(prefix);
+            ByteBuffer p = ByteBuffer.wrap(prefix);
+            if (p.getInt() != MAGIC) {
+                throw new IOException("No es un fichero de sumas");
+            }
+            blockSize = p.getInt();
+            length = p.getLong();
+            if (blockSize <= 0 || length < 0) {
+                throw new IOException("Fichero de sumas dañado");
+            }
+            long blocks = length == 0 ? 0 : (length - 1) / blockSize + 1;
+            if (blocks > Integer.MAX_VALUE || sums.length() != prefix.length + 4 * blocks + 4) {
+                throw new IOException("Fichero de sumas dañado");
+            }
+            crcs = new int[(int) blocks];
+            byte[] value = new byte[4];
+            for (int i = 0; i < crcs.length; i++) {
+                in.readFully(value);
+                self.update(value);
+                crcs[i] = ByteBuffer.wrap(value).getInt();
+            }
+            if (in.readInt() != (int) self.getValue()) {
+                throw new IOException("Fichero de sumas dañado");
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long actual = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < crcs.length; i++) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Llenar el bloque
+                }
+                buffer.flip();
+                long expected = Math.min(blockSize, length - (long) i * blockSize);
+                if (buffer.remaining() != expected) {
+                    return i;
+                }
+                crc.reset();
+                crc.update(buffer);
+                if ((int) crc.getValue() != crcs[i]) {
+                    return i;
+                }
+            }
+            return actual == length ? OK : crcs.length;
+        }
+    }
+
+    /**
+     * OutputStream que calcula las sumas de lo que se escribe a través de él y las guarda al cerrar.
+     * Permite añadir la comprobación rápida a cualquier salida sin volver a leer el fichero.
+     */
+    public static class Output extends FilterOutputStream {
+
+        private final File file;
+        private final int blockSize;
+        private final CRC32 crc = new CRC32();
+        private final ByteArrayOutputStream crcs = new ByteArrayOutputStream();
+        private long length;
+        private int filled;
+        private boolean closed;
+        /**
+         * Ha fallado alguna escritura en el fichero protegido: no se guardan sumas
+         */
+        private boolean failed;
+
+        /**
+         * Constructor
+         *
+         * @param out       Flujo del fichero protegido. Se cierra al cerrar este flujo
+         * @param file      Fichero al que corresponde <code>out</code>; las sumas se guardan junto a él
+         * @param blockSize Tamaño de bloque
+         */
+        public Output(OutputStream out, File file, int blockSize) {
+            super(out);
+            this.file = file;
+            this.blockSize = blockSize;
+        }
+
+        /**
+         * Constructor con el tamaño de bloque por defecto
+         *
+         * @param out  Flujo del fichero protegido. Se cierra al cerrar este flujo
+         * @param file Fichero al que corresponde <code>out</code>
+         */
+        public Output(OutputStream out, File file) {
+            this(out, file, DEFAULT_BLOCK_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            update(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Añade datos a las sumas sin escribirlos
+         */
+        void update(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                int n = Math.min(blockSize - filled, data.remaining());
+                ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + n);
+                crc.update(slice);
+                data.position(data.position() + n);
+                filled += n;
+                length += n;
+                if (filled == blockSize) {
+                    endBlock();
+                }
+            }
+        }
+
+        private void endBlock() {
+            int value = (int) crc.getValue();
+            crcs.write(value >>> 24);
+            crcs.write(value >>> 16);
+            crcs.write(value >>> 8);
+            crcs.write(value);
+            crc.reset();
+            filled = 0;
+        }
+
+        /**
+         * Cierra el flujo y guarda el fichero de sumas, salvo que haya fallado la escritura del
+         * fichero protegido
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            if (failed) {
+                return;
+            }
+            if (filled > 0) {
+                endBlock();
+            }
+            ByteArrayOutputStream all = new ByteArrayOutputStream(20 + crcs.size());
+            DataOutputStream dout = new DataOutputStream(all);
+            dout.writeInt(MAGIC);
+            dout.writeInt(blockSize);
+            dout.writeLong(length);
+            crcs.writeTo(dout);
+            CRC32 self = new CRC32();
+            self.update(all.toByteArray());
+            dout.writeInt((int) self.getValue());
+            try (OutputStream o = new FileOutputStream(sidecar(file))) {
+                all.writeTo(o);
+            }
+        }
+    }
+
+    /**
+     * Destino que descarta lo que recibe
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
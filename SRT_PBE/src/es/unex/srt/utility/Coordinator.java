@@ -0,0 +1,458 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Coordinador de un trabajo repartido entre varios procesos {@link Worker}, en esta máquina o en
+ * otras a través de un túnel, por un socket local.
+ * <p>
+ * El trabajo se parte en tareas: un fichero entero para cifrar, resumir o calcular el MAC, o un
+ * trozo de <code>chunkSize</code> bytes para la operación <code>resumen</code>, cuyos resúmenes se
+ * juntan después en un árbol de Merkle por fichero. Los trabajadores piden tareas de una en una,
+ * así que los rápidos hacen más. Cuando ya no quedan tareas sin repartir, un trabajador libre
+ * duplica la tarea que lleva más tiempo en otro (robo de trabajo) y vale el primer resultado. Si un
+ * trabajador falla o se desconecta, sus tareas vuelven a la cola hasta <code>MAX_ATTEMPTS</code>
+ * intentos.
+ * <pre>
+ * Trabajador -&gt; HOLA nombre ficha
+ * Coordinador -&gt; directorio, operación, algoritmo, iteraciones
+ * Coordinador -&gt; TAREA id ruta inicio longitud | FIN
+ * Trabajador -&gt; HECHO id correcto resultado error
+ * </pre>
+ * El secreto no pasa por el socket: cualquier usuario de la máquina puede conectarse a un puerto
+ * local. Cada trabajo genera una ficha aleatoria, y los trabajadores reciben la ficha y el secreto
+ * por su entrada estándar (una línea cada uno); el coordinador corta a quien no presente la ficha
+ * antes de enviarle nada.
+ */
+public class Coordinator implements Closeable {
+
+    /**
+     * Operaciones
+     */
+    public static final String CIPHER = "cifrar";
+    public static final String HASH = "hash";
+    public static final String MAC = "mac";
+    public static final String DIGEST = "resumen";
+
+    /**
+     * Intentos de una tarea antes de darla por fallida
+     */
+    public static final int MAX_ATTEMPTS = 3;
+    /**
+     * Tiempo en curso a partir del cual una tarea se puede duplicar en un trabajador libre
+     */
+    private static final long STEAL_AFTER_MILLIS = 2000;
+    private static final long POLL_MILLIS = 200;
+
+    private final ServerSocket server;
+    private final Path root;
+    private final String operation, algorithm, secret;
+    /**
+     * Ficha que deben presentar los trabajadores de este trabajo
+     */
+    private final String token = MerkleTree.toHex(RandomPool.secretBytes(16));
+    private final Integer iterationCount;
+    /**
+     * Todas las tareas, pendientes de repartir y sin terminar
+     */
+    private final List<Task> tasks = new ArrayList<>();
+    private final Deque<Task> pending = new ArrayDeque<>();
+    private int remaining;
+    private final List<Process> processes = new ArrayList<>();
+    private int connections;
+    private long steals, retries;
+
+    /**
+     * Constructor: parte el trabajo en tareas y abre el socket en un puerto libre
+     *
+     * @param root           Directorio con los ficheros (se recorre entero)
+     * @param operation      <code>CIPHER</code>, <code>HASH</code>, <code>MAC</code> o <code>DIGEST</code>
+     * @param algorithm      Algoritmo de la operación, de <code>Options</code>
+     * @param secret         Contraseña o secreto compartido
+     * @param iterationCount Iteraciones de la derivación de clave
+     * @param chunkSize      Tamaño de los trozos de <code>DIGEST</code>
+     * @throws IOException si no se puede recorrer el directorio o abrir el socket
+     * @throws IllegalArgumentException si el tamaño de los trozos de <code>DIGEST</code> no es positivo
+     */
+    public Coordinator(Path root, String operation, String algorithm, String secret, Integer iterationCount,
+                       long chunkSize) throws IOException {
+        if (operation.equals(DIGEST) && chunkSize <= 0) {
+            throw new IllegalArgumentException("El tamaño de los trozos debe ser positivo");
+        }
+        this.root = root;
+        this.operation = operation;
+        this.algorithm = algorithm;
+        this.secret = secret;
+        this.iterationCount = iterationCount;
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            String suffix = Worker.suffix(operation);
+            // Los resultados de una pasada anterior no se vuelven a procesar
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> suffix == null || !p.toString().endsWith(suffix) && !p.toString().endsWith(".tmp"))
+                    .sorted().collect(Collectors.toList());
+        }
+        for (Path p : files) {
+            String name = root.relativize(p).toString();
+            long length = Files.size(p);
+            if (operation.equals(DIGEST)) {
+                long start = 0;
+                do {
+                    tasks.add(new Task(tasks.size(), name, start, Math.min(chunkSize, length - start)));
+                    start += chunkSize;
+                } while (start < length);
+            } else {
+                tasks.add(new Task(tasks.size(), name, 0, length));
+            }
+        }
+        pending.addAll(tasks);
+        remaining = tasks.size();
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return Puerto en el que escucha
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return Ficha que deben presentar los trabajadores, para los que se lanzan a mano
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return Número de tareas del trabajo
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Lanza procesos trabajadores en esta máquina. Cada uno recibe el puerto como último argumento,
+     * y la ficha y el secreto por su entrada estándar
+     *
+     * @param n       Número de procesos
+     * @param command Orden que arranca un trabajador, por ejemplo <code>java -cp ... Clase -trabajador</code>
+     * @return Procesos lanzados
+     * @throws IOException si no se puede lanzar alguno
+     */
+    public synchronized List<Process> launchWorkers(int n, List<String> command) throws IOException {
+        for (int i = 0; i < n; i++) {
+            List<String> args = new ArrayList<>(command);
+            args.add(String.valueOf(getPort()));
+            Process p = new ProcessBuilder(args).redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            processes.add(p);
+            try (Writer w = new OutputStreamWriter(p.getOutputStream(), "UTF-8")) {
+                w.write(token + "\n" + secret + "\n");
+            }
+        }
+        return new ArrayList<>(processes);
+    }
+
+    /**
+     * Atiende a los trabajadores hasta terminar todas las tareas. Si se lanzaron trabajadores con
+     * {@link #launchWorkers(int, List)} y todos han muerto, las tareas que quedan se dan por fallidas
+     *
+     * @return True si todas las tareas terminaron bien
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    public boolean run() throws InterruptedException {
+        Thread acceptor = new Thread(this::accept, "Coordinator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        synchronized (this) {
+            while (remaining > 0) {
+                wait(POLL_MILLIS);
+                if (!processes.isEmpty() && connections == 0 && processes.stream().noneMatch(Process::isAlive)) {
+                    System.err.println("No queda ningún trabajador; " + remaining + " tareas sin hacer");
+                    break;
+                }
+            }
+            notifyAll();
+        }
+        close();
+        return isSuccessful();
+    }
+
+    /**
+     * @return True si todas las tareas terminaron bien
+     */
+    public synchronized boolean isSuccessful() {
+        return tasks.stream().allMatch(t -> t.ok);
+    }
+
+    /**
+     * Escribe el resultado por fichero: estado, intentos, trabajador y, en <code>DIGEST</code>, la
+     * raíz del árbol de los resúmenes de sus trozos
+     *
+     * @param out Destino del informe, en columnas separadas por tabuladores
+     * @throws IOException si no se puede escribir
+     */
+    public synchronized void writeReport(Writer out) throws IOException {
+        out.write("# fichero\testado\tintentos\ttrabajadores\tresultado\n");
+        Map<String, List<Task>> byFile = new TreeMap<>();
+        for (Task t : tasks) {
+            byFile.computeIfAbsent(t.path, k -> new ArrayList<>()).add(t);
+        }
+        int failed = 0;
+        for (Map.Entry<String, List<Task>> e : byFile.entrySet()) {
+            List<Task> parts = e.getValue();
+            boolean ok = parts.stream().allMatch(t -> t.ok);
+            failed += ok ? 0 : 1;
+            int attempts = parts.stream().mapToInt(t -> t.attempts).max().orElse(0);
+            String workers = parts.stream().map(t -> t.worker == null ? "-" : t.worker).distinct()
+                    .collect(Collectors.joining(","));
+            String result = "";
+            if (ok && operation.equals(DIGEST)) {
+                List<byte[]> leaves = new ArrayList<>();
+                for (Task t : parts) {
+                    leaves.add(MerkleTree.hashLeaf(t.result));
+                }
+                result = MerkleTree.toHex(MerkleTree.root(leaves));
+            }
+            out.write(e.getKey() + "\t" + (ok ? "OK" : "FALLO") + "\t" + attempts + "\t" + workers + "\t" + result
+                    + "\n");
+        }
+        out.write("# ficheros=" + byFile.size() + " fallidos=" + failed + " tareas=" + tasks.size()
+                + " reintentos=" + retries + " robos=" + steals + "\n");
+        out.flush();
+    }
+
+    /**
+     * Deja de atender y para los trabajadores lanzados que sigan con una tarea duplicada
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Process p : processes) {
+            p.destroy();
+        }
+        for (Process p : processes) {
+            try {
+                p.waitFor(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        removeLeftovers();
+    }
+
+    /**
+     * Borra los temporales que dejaron los trabajadores que murieron a media tarea
+     */
+    private void removeLeftovers() {
+        String suffix = Worker.suffix(operation);
+        if (suffix == null) {
+            return;
+        }
+        for (Task t : tasks) {
+            Path target = root.resolve(t.path + suffix);
+            String prefix = target.getFileName().toString();
+            try (DirectoryStream<Path> left = Files.newDirectoryStream(target.getParent(), p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(prefix) && name.endsWith(".tmp");
+            })) {
+                for (Path p : left) {
+                    Files.deleteIfExists(p);
+                }
+            } catch (IOException e) {
+                System.err.println("No se pudo limpiar " + target);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> serve(socket), "Coordinator-" + socket.getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (SocketException e) {
+                return; // Socket cerrado al terminar
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Conversación con un trabajador
+     */
+    private void serve(Socket socket) {
+        Set<Task> held = new HashSet<>();
+        String name = "?";
+        synchronized (this) {
+            connections++;
+        }
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (!in.readUTF().equals("HOLA")) {
+                return;
+            }
+            name = in.readUTF();
+            if (!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"), token.getBytes("UTF-8"))) {
+                System.err.println("Conexión rechazada: " + name + " no presenta la ficha del trabajo");
+                return;
+            }
+            out.writeUTF(root.toAbsolutePath().toString());
+            out.writeUTF(operation);
+            out.writeUTF(algorithm);
+            out.writeInt(iterationCount);
+            while (true) {
+                Task t = next(held);
+                if (t == null) {
+                    out.writeUTF("FIN");
+                    out.flush();
+                    return;
+                }
+                out.writeUTF("TAREA");
+                out.writeInt(t.id);
+                out.writeUTF(t.path);
+                out.writeLong(t.start);
+                out.writeLong(t.length);
+                out.flush();
+                if (!in.readUTF().equals("HECHO") || in.readInt() != t.id) {
+                    throw new IOException("Respuesta inesperada de " + name);
+                }
+                boolean ok = in.readBoolean();
+                byte[] result = new byte[in.readInt()];
+                in.readFully(result);
+                String error = in.readUTF();
+                if (!ok) {
+                    System.err.println("Tarea " + t.path + "@" + t.start + " fallida en " + name + ": " + error);
+                }
+                complete(t, ok, result, name, held);
+            }
+        } catch (IOException e) {
+            if (!server.isClosed()) {
+                System.err.println("Trabajador " + name + " desconectado: " + e);
+            }
+        } finally {
+            synchronized (this) {
+                connections--;
+                for (Task t : held) {
+                    t.inFlight--;
+                    if (!t.done && t.inFlight == 0) {
+                        fail(t);
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Siguiente tarea para un trabajador: una pendiente, o si no queda ninguna, un duplicado de la
+     * que lleva más tiempo en otro trabajador
+     *
+     * @return Tarea, o null si ya no queda trabajo
+     */
+    private synchronized Task next(Set<Task> held) throws IOException {
+        while (remaining > 0) {
+            if (server.isClosed()) {
+                throw new IOException("Coordinador cerrado");
+            }
+            Task t = pending.poll();
+            if (t == null) {
+                long now = System.currentTimeMillis();
+                t = tasks.stream().filter(x -> !x.done && x.inFlight == 1 && !held.contains(x)
+                        && now - x.issuedAt > STEAL_AFTER_MILLIS).min(Comparator.comparingLong(x -> x.issuedAt))
+                        .orElse(null);
+                if (t != null) {
+                    steals++;
+                }
+            }
+            if (t != null) {
+                t.inFlight++;
+                t.attempts++;
+                t.issuedAt = System.currentTimeMillis();
+                held.add(t);
+                return t;
+            }
+            try {
+                wait(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return null;
+    }
+
+    private synchronized void complete(Task t, boolean ok, byte[] result, String worker, Set<Task> held) {
+        held.remove(t);
+        t.inFlight--;
+        if (t.done) {
+            return; // Ya lo terminó otro trabajador
+        }
+        if (ok) {
+            t.done = true;
+            t.ok = true;
+            t.result = result;
+            t.worker = worker;
+            remaining--;
+            notifyAll();
+        } else if (t.inFlight == 0) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Devuelve una tarea a la cola, o la da por fallida si ya no le quedan intentos
+     */
+    private void fail(Task t) {
+        if (t.attempts >= MAX_ATTEMPTS) {
+            t.done = true;
+            remaining--;
+        } else {
+            retries++;
+            pending.addFirst(t);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Tarea: un fichero entero o un trozo
+     */
+    private static final class Task {
+        final int id;
+        final String path;
+        final long start, length;
+        int attempts, inFlight;
+        long issuedAt;
+        boolean done, ok;
+        byte[] result;
+        String worker;
+
+        Task(int id, String path, long start, long length) {
+            this.id = id;
+            this.path = path;
+            this.start = start;
+            this.length = length;
+        }
+    }
+}
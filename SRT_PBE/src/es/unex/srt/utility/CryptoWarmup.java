@@ -0,0 +1,134 @@
+package es.unex.srt.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calentamiento en segundo plano de los proveedores JCA.
+ * <p>
+ * La primera operación tras arrancar paga la carga de proveedores, la búsqueda de servicios,
+ * la inicialización de <code>SecretKeyFactory</code>/<code>Cipher</code>/<code>Mac</code> y la
+ * siembra de <code>SecureRandom</code>. Esta clase hace todo eso en un hilo de baja prioridad
+ * para los algoritmos elegidos, mientras el usuario todavía está eligiendo ficheros.
+ */
+public class CryptoWarmup {
+
+    /**
+     * Rondas por algoritmo, para que el JIT compile los caminos más usados
+     */
+    private static final int ROUNDS = 10;
+    /**
+     * Tamaño del contenido de prueba
+     */
+    private static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * Algoritmos a calentar
+     */
+    private final String[] algorithms;
+    /**
+     * Iteraciones de las derivaciones, las mismas que usarán las operaciones reales
+     */
+    private final Integer iterationCount;
+    /**
+     * Se libera al terminar
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+    /**
+     * Instante de inicio y duración en nanosegundos
+     */
+    private volatile long startNanos, elapsedNanos;
+
+    /**
+     * Constructor
+     *
+     * @param iterationCount Iteraciones que usarán las operaciones reales
+     * @param algorithms     Algoritmos de cifrado, hash o MAC de <code>Options</code>
+     */
+    public CryptoWarmup(Integer iterationCount, String... algorithms) {
+        this.iterationCount = iterationCount;
+        this.algorithms = algorithms.clone();
+    }
+
+    /**
+     * Lanza el calentamiento en un hilo demonio de baja prioridad
+     *
+     * @return Esta instancia
+     */
+    public CryptoWarmup start() {
+        Thread thread = new Thread(this::run, "crypto-warmup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Espera a que termine el calentamiento
+     *
+     * @param timeoutMillis Espera máxima en milisegundos
+     * @return True si terminó
+     * @throws InterruptedException si se interrumpe la espera
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return True si ya terminó
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return Duración del calentamiento en milisegundos, o -1 si no ha terminado
+     */
+    public long getElapsedMillis() {
+        return isDone() ? TimeUnit.NANOSECONDS.toMillis(elapsedNanos) : -1;
+    }
+
+    /**
+     * Calienta en el hilo actual
+     */
+    public void run() {
+        startNanos = System.nanoTime();
+        try {
+            Security.getProviders();
+            RandomPool.nextBytes(new byte[8]);
+            byte[] sample = new byte[SAMPLE_SIZE];
+            for (String algorithm : algorithms) {
+                for (int i = 0; i < ROUNDS; i++) {
+                    warm(algorithm, sample);
+                }
+            }
+        } catch (RuntimeException e) {
+            // El calentamiento es opcional: la operación real informará del error
+            System.err.println("Calentamiento incompleto: " + e);
+        } finally {
+            elapsedNanos = System.nanoTime() - startNanos;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Recorre una vez, en memoria, el mismo camino que seguirá la operación real
+     */
+    private void warm(String algorithm, byte[] sample) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(SAMPLE_SIZE + 64);
+        if (Options.isTypeAlgorithm(Options.symmetricalAlgorithms, algorithm)) {
+            new SimpleCipher(new ByteArrayInputStream(sample), algorithm, "warmup", iterationCount).save(out);
+            new SimpleCipher(new ByteArrayInputStream(out.toByteArray()), "warmup", iterationCount)
+                    .save(new ByteArrayOutputStream(SAMPLE_SIZE));
+        } else if (Options.isTypeAlgorithm(Options.macAlgorithms, algorithm)) {
+            new SimpleMAC(new ByteArrayInputStream(sample), algorithm, "warmup", iterationCount).save(out);
+            new SimpleMAC(new ByteArrayInputStream(out.toByteArray()), "warmup", iterationCount).verify();
+        } else if (Options.isTypeAlgorithm(Options.hashAlgorithms, algorithm)) {
+            new SimpleHash(new ByteArrayInputStream(sample), algorithm, "warmup").save(out);
+            new SimpleHash(new ByteArrayInputStream(out.toByteArray()), "warmup").verify();
+        }
+    }
+}
@@ -7,6 +7,9 @@ package es.unex.srt.utility; /**
  * @version 1.0
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Clase para la gesti�n de la cabecera que se a�ade los mensajes cifrados (ficheros).
@@ -14,11 +17,69 @@ import java.io.*;
  * --------------------------------------------------------
  * |Mark|Operacion|Algoritmo1|Algoritmo2|Datos ...        |  
  * --------------------------------------------------------
+ * Si hay extensiones, la operacion se guarda con el bit <code>EXTENDED</code> activo y
+ * tras los datos va un bloque de extensiones:
+ * |Longitud total (2)|Etiqueta (1)|Longitud (2)|Valor ...|Etiqueta|...
  */
 public class Header {
   private final static byte MARK[]= {1,2,3,4,5,6,7,8,9,0};
   private final static byte MARKLENGTH = 10;
   private final static byte HEADERLENGTH = MARKLENGTH+4;  
+  /**
+   * Bit de la operacion que indica que la cabecera lleva bloque de extensiones
+   */
+  private final static byte EXTENDED = (byte) 0x80;
+  /**
+   * Extension: numero de iteraciones de la derivacion de clave (entero de 4 bytes)
+   */
+  public final static byte EXT_ITERATIONS = 1;
+  /**
+   * Extension: tamaño de bloque y capacidad en bloques de un cifrado por bloques (dos enteros de 4 bytes)
+   */
+  public final static byte EXT_BLOCK_LAYOUT = 2;
+  /**
+   * Extension: clave de sesion cifrada con la clave publica del destinatario
+   */
+  public final static byte EXT_WRAPPED_KEY = 3;
+  /**
+   * Extension: alias (UTF-8) en el almacen de claves del par con que se cifro la clave de sesion
+   */
+  public final static byte EXT_KEY_ALIAS = 4;
+  /**
+   * Extension: nombre (UTF-8) con que el fichero entro en el lote firmado
+   */
+  public final static byte EXT_LEAF_NAME = 5;
+  /**
+   * Extension: prueba de inclusion en el arbol de Merkle del lote (pasos de <code>MerkleTree.proof</code>)
+   */
+  public final static byte EXT_MERKLE_PROOF = 6;
+  /**
+   * Extension: firma de la raiz del arbol de Merkle del lote
+   */
+  public final static byte EXT_SIGNATURE = 7;
+  /**
+   * Extension: volumen de un conjunto: numero (4), total de volumenes (4), tamaño de volumen (8) y
+   * longitud total en claro (8)
+   */
+  public final static byte EXT_VOLUME = 8;
+  /**
+   * Extension: valor de comprobacion de la clave, calculado con la clave ya derivada sobre
+   * <code>KEY_CHECK_BLOCK</code>, para rechazar una contraseña erronea sin leer el contenido
+   */
+  public final static byte EXT_KEY_CHECK = 9;
+  /**
+   * Extension: clave HMAC de sesion envuelta con la clave publica del destinatario, para
+   * autenticar cabecera y contenido cifrado
+   */
+  public final static byte EXT_WRAPPED_MAC_KEY = 10;
+  /**
+   * Bloque conocido del que se calcula <code>EXT_KEY_CHECK</code> (un bloque de DES)
+   */
+  static final byte[] KEY_CHECK_BLOCK = {'S', 'R', 'T', '-', 'K', 'C', 'V', '!'};
+  /**
+   * Longitud del valor de comprobacion de hash y MAC
+   */
+  static final int KEY_CHECK_LENGTH = 8;
   /**
    * Operaci�n realizada, codificada segun las definiciones de <code>es.unex.srt.utility.Options</code>
    */
@@ -32,6 +93,10 @@ public class Header {
    * Datos para las operaciones: salt / mac / hash / signature / ...  
    */
   private byte data[];
+  /**
+   * Extensiones opcionales, por etiqueta
+   */
+  private Map<Byte, byte[]> extensions = new TreeMap<>();
 
   /**
    * Constructor por defecto.    
@@ -70,6 +135,43 @@ public class Header {
   public byte[] getData(){
 	    return data;
   }
+
+  /**
+   * @param tag etiqueta de la extension
+   * @return valor de la extension, o null si la cabecera no la lleva
+   */
+  public byte[] getExtension(byte tag){
+    return extensions.get(tag);
+  }
+
+  /**
+   * Anade o sustituye una extension
+   * @param tag etiqueta de la extension
+   * @param value valor, de hasta 65535 bytes; null la elimina
+   */
+  public void setExtension(byte tag, byte[] value){
+    if (value == null)
+      extensions.remove(tag);
+    else
+      extensions.put(tag, value);
+  }
+
+  /**
+   * @param defaultCount iteraciones a usar si la cabecera no las guarda (ficheros antiguos)
+   * @return iteraciones de la derivacion de clave con que se protegio el fichero
+   */
+  public int getIterationCount(int defaultCount){
+    byte[] value = extensions.get(EXT_ITERATIONS);
+    return value == null ? defaultCount : ByteBuffer.wrap(value).getInt();
+  }
+
+  /**
+   * Guarda las iteraciones de la derivacion de clave
+   * @param iterationCount iteraciones
+   */
+  public void setIterationCount(int iterationCount){
+    extensions.put(EXT_ITERATIONS, ByteBuffer.allocate(4).putInt(iterationCount).array());
+  }
   
   /**
    * Intenta cargar los datos de una cabecera desde un InputStream ya abierto.   
@@ -81,17 +183,23 @@ public class Header {
     byte buf[] = new byte[HEADERLENGTH];
     boolean breturn=false;
     try {
-      if(r.read(buf,0,HEADERLENGTH)==HEADERLENGTH) {
+      if(readFully(r,buf,HEADERLENGTH)==HEADERLENGTH) {
         byte i=0;
         while((i<MARKLENGTH) && (buf[i]==MARK[i])) i++;
         if (i==MARKLENGTH) {
           operation  = buf[i++];
           algorithm1 = Options.cipherAlgorithms[buf[i++]];
           algorithm2 = Options.authenticationAlgorithms[buf[i++]];
-          byte dataLength = buf[i++];
+          int dataLength = buf[i++] & 0xFF;
           data = new byte[dataLength];
-          if(r.read(data,0,dataLength)==dataLength)                    
-        	  breturn = true;
+          extensions.clear();
+          if(readFully(r,data,dataLength)==dataLength) {
+            breturn = true;
+            if ((operation & EXTENDED) != 0) {
+              operation &= ~EXTENDED;
+              breturn = loadExtensions(r);
+            }
+          }
         }
       }
     }
@@ -101,6 +209,47 @@ public class Header {
     return breturn;
   }
   
+  /**
+   * Lee el bloque de extensiones que sigue a los datos
+   * @param r el InputStream abierto, situado tras los datos
+   * @return true si el bloque esta completo y bien formado
+   * @throws IOException si falla la lectura
+   */
+  private boolean loadExtensions(InputStream r) throws IOException {
+    byte length[] = new byte[2];
+    if (readFully(r, length, 2) != 2) return false;
+    byte block[] = new byte[((length[0] & 0xFF) << 8) | (length[1] & 0xFF)];
+    if (readFully(r, block, block.length) != block.length) return false;
+    ByteBuffer bb = ByteBuffer.wrap(block);
+    while (bb.remaining() >= 3) {
+      byte tag = bb.get();
+      byte value[] = new byte[bb.getShort() & 0xFFFF];
+      if (value.length > bb.remaining()) return false;
+      bb.get(value);
+      extensions.put(tag, value);
+    }
+    return !bb.hasRemaining();
+  }
+
+  /**
+   * Lee hasta <code>length</code> bytes aunque el InputStream los entregue en
+   * varias lecturas parciales (sockets, canales, flujos descifrados...).
+   * @param r el InputStream abierto
+   * @param buf destino de los bytes
+   * @param length bytes a leer
+   * @return bytes leidos realmente; menos de <code>length</code> solo al llegar al final
+   * @throws IOException si falla la lectura
+   */
+  private static int readFully(InputStream r, byte buf[], int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int n = r.read(buf, total, length - total);
+      if (n < 0) break;
+      total += n;
+    }
+    return total;
+  }
+
   /**
    * Intenta guardar la cabecera actual en un OutputStream ya abierto.
    * @param fos el OutputStream abierto
@@ -110,11 +259,23 @@ public class Header {
     boolean breturn=false;
     try {
       fos.write(MARK);
-      fos.write(operation);
+      fos.write(extensions.isEmpty() ? operation : operation | EXTENDED);
       fos.write(Options.search(Options.cipherAlgorithms,algorithm1));
       fos.write(Options.search(Options.authenticationAlgorithms,algorithm2));
       fos.write(data.length);
       fos.write(data, 0, data.length);
+      if (!extensions.isEmpty()) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(block);
+        for (Map.Entry<Byte, byte[]> e : extensions.entrySet()) {
+          dos.writeByte(e.getKey());
+          dos.writeShort(e.getValue().length);
+          dos.write(e.getValue());
+        }
+        dos.flush();
+        new DataOutputStream(fos).writeShort(block.size());
+        block.writeTo(fos);
+      }
       fos.flush();
       breturn = true;
     }
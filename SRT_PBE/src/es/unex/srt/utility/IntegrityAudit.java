@@ -0,0 +1,327 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Auditoría de integridad de un árbol de directorios: verifica en paralelo todos los ficheros
+ * protegidos con hash o MAC (<code>SimpleHash</code>, <code>SimpleMAC</code> o
+ * <code>ProtectedOutputStream</code>) y genera un informe legible por máquina.
+ * <p>
+ * El recorrido usa un <code>ForkJoinPool</code> (robo de trabajo): cada directorio es una tarea
+ * que reparte sus subdirectorios y lotes de ficheros. Además calcula una raíz de Merkle sobre los
+ * resultados ordenados por ruta, de modo que dos auditorías se comparan con una sola raíz.
+ * <p>
+ * Si un fichero tiene sumas CRC (<code>BlockChecksums</code>), primero se hace la comprobación
+ * rápida: un fichero dañado se marca como alterado sin pagar la verificación criptográfica.
+ */
+public class IntegrityAudit {
+
+    /**
+     * Veredicto: el hash/MAC coincide
+     */
+    public static final String VALID = "VALIDO";
+    /**
+     * Veredicto: el hash/MAC no coincide
+     */
+    public static final String ALTERED = "ALTERADO";
+    /**
+     * Veredicto: no se pudo leer o verificar el fichero
+     */
+    public static final String ERROR = "ERROR";
+    /**
+     * Ficheros por tarea dentro de un directorio
+     */
+    private static final int BATCH_SIZE = 32;
+    /**
+     * Tamaño del búfer de lectura
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Resultado de verificar un fichero
+     */
+    public static class Result {
+        /**
+         * Ruta relativa a la raíz auditada, con '/' como separador
+         */
+        public final String path;
+        /**
+         * <code>VALID</code>, <code>ALTERED</code> o <code>ERROR</code>
+         */
+        public final String verdict;
+        /**
+         * Algoritmo de la cabecera
+         */
+        public final String algorithm;
+        /**
+         * Bytes de contenido verificados
+         */
+        public final long bytes;
+        /**
+         * Tiempo de verificación en nanosegundos
+         */
+        public final long nanos;
+        /**
+         * Hash/MAC guardado en el fichero (vacío si no se llegó a leer)
+         */
+        public final byte[] authenticator;
+
+        Result(String path, String verdict, String algorithm, long bytes, long nanos, byte[] authenticator) {
+            this.path = path;
+            this.verdict = verdict;
+            this.algorithm = algorithm;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.authenticator = authenticator == null ? new byte[0] : authenticator;
+        }
+
+        /**
+         * @return Hoja de Merkle de este resultado
+         */
+        byte[] leaf() {
+            ByteArrayOutputStream leaf = new ByteArrayOutputStream();
+            for (String s : new String[]{path, verdict, algorithm}) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                leaf.write(b, 0, b.length);
+                leaf.write(0);
+            }
+            leaf.write(authenticator, 0, authenticator.length);
+            return MerkleTree.hashLeaf(leaf.toByteArray());
+        }
+    }
+
+    /**
+     * Directorio raíz auditado
+     */
+    private Path root;
+    /**
+     * Secreto compartido de los hash/MAC
+     */
+    private String secret;
+    /**
+     * Iteraciones de la derivación de clave de los MAC
+     */
+    private Integer iterationCount;
+    /**
+     * Paralelismo del pool
+     */
+    private int parallelism;
+    /**
+     * Resultados recogidos por las tareas
+     */
+    private ConcurrentLinkedQueue<Result> collected = new ConcurrentLinkedQueue<>();
+    /**
+     * Ficheros sin protección hash/MAC, que no se verifican
+     */
+    private AtomicLong skipped = new AtomicLong();
+    /**
+     * Búfer de lectura de cada hilo del pool
+     */
+    private ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    /**
+     * Resultados ordenados por ruta, tras <code>run()</code>
+     */
+    private List<Result> results;
+    /**
+     * Raíz de Merkle, tras <code>run()</code>
+     */
+    private byte[] merkleRoot;
+
+    /**
+     * Constructor
+     *
+     * @param root           Directorio a auditar
+     * @param secret         Secreto compartido de los hash/MAC
+     * @param iterationCount Iteraciones de la derivación de clave de los MAC
+     * @param parallelism    Hilos de verificación
+     */
+    public IntegrityAudit(Path root, String secret, Integer iterationCount, int parallelism) {
+        this.root = root;
+        this.secret = secret;
+        this.iterationCount = iterationCount;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Recorre y verifica el árbol
+     *
+     * @return Resultados ordenados por ruta
+     */
+    public List<Result> run() {
+        collected.clear();
+        skipped.set(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root));
+        } finally {
+            pool.shutdown();
+        }
+        List<Result> sorted = new ArrayList<>(collected);
+        sorted.sort(Comparator.comparing(r -> r.path));
+        List<byte[]> leaves = new ArrayList<>(sorted.size());
+        for (Result r : sorted) {
+            leaves.add(r.leaf());
+        }
+        results = Collections.unmodifiableList(sorted);
+        merkleRoot = MerkleTree.root(leaves);
+        return results;
+    }
+
+    /**
+     * @return Raíz de Merkle de la última auditoría, o null si no se ha ejecutado
+     */
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    /**
+     * @return Ficheros sin protección hash/MAC encontrados en la última auditoría
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Escribe el informe: una línea por fichero separada por tabuladores, más un resumen con
+     * la raíz de Merkle en líneas que empiezan por '#'
+     *
+     * @param out Destino del informe. Se devuelve sin cerrar
+     * @return True si todos los ficheros son válidos, false si no
+     * @throws IOException si falla la escritura
+     */
+    public boolean writeReport(Writer out) throws IOException {
+        long valid = 0, altered = 0, errors = 0, bytes = 0;
+        out.write("# ruta\tveredicto\talgoritmo\tbytes\tmicrosegundos\tautenticador\n");
+        for (Result r : results) {
+            out.write(r.path + "\t" + r.verdict + "\t" + r.algorithm + "\t" + r.bytes + "\t" + r.nanos / 1000
+                    + "\t" + MerkleTree.toHex(r.authenticator) + "\n");
+            bytes += r.bytes;
+            if (VALID.equals(r.verdict)) {
+                valid++;
+            } else if (ALTERED.equals(r.verdict)) {
+                altered++;
+            } else {
+                errors++;
+            }
+        }
+        out.write("# ficheros=" + results.size() + " validos=" + valid + " alterados=" + altered + " errores="
+                + errors + " sin_proteger=" + skipped.get() + " bytes=" + bytes + "\n");
+        out.write("# raiz_merkle=" + MerkleTree.toHex(merkleRoot) + "\n");
+        out.flush();
+        return altered == 0 && errors == 0;
+    }
+
+    /**
+     * Verifica un fichero
+     *
+     * @param file Fichero
+     * @return Resultado, o null si el fichero no está protegido con hash/MAC
+     */
+    private Result verify(Path file) {
+        String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+        long start = System.nanoTime();
+        String algorithm = Options.OP_NONE_ALGORITHM;
+        long bytes = 0;
+        if (path.endsWith(SpotCheck.SUFFIX)) {
+            return null; // Autenticadores por bloque de otro fichero, no un fichero protegido
+        }
+        ProtectedInputStream in = null;
+        try (BufferedInputStream buffered = new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+            buffered.mark(BUFFER_SIZE);
+            Header header = new Header();
+            if (!header.load(buffered) || header.getOperation() != Options.OP_HASH_MAC) {
+                skipped.incrementAndGet();
+                return null;
+            }
+            algorithm = header.getAlgorithm2();
+            if (BlockChecksums.sidecar(file.toFile()).isFile() && BlockChecksums.check(file.toFile()) != BlockChecksums.OK) {
+                return new Result(path, ALTERED, algorithm, 0, System.nanoTime() - start, null);
+            }
+            buffered.reset();
+            in = new ProtectedInputStream(buffered, secret, iterationCount);
+            byte[] buffer = buffers.get();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                bytes += n;
+            }
+            return new Result(path, VALID, algorithm, bytes, System.nanoTime() - start, in.getAuthenticator());
+        } catch (IOException e) {
+            boolean finished = in != null && in.getAuthenticator() != null;
+            return new Result(path, finished ? ALTERED : ERROR, algorithm, bytes, System.nanoTime() - start,
+                    finished ? in.getAuthenticator() : null);
+        }
+    }
+
+    /**
+     * Tarea que reparte un directorio en subdirectorios y lotes de ficheros
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> batch = new ArrayList<>(BATCH_SIZE);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new DirectoryTask(entry));
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        batch.add(entry);
+                        if (batch.size() == BATCH_SIZE) {
+                            tasks.add(new FileTask(batch));
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                String path = root.relativize(dir).toString().replace(File.separatorChar, '/');
+                collected.add(new Result(path, ERROR, Options.OP_NONE_ALGORITHM, 0, 0, null));
+            }
+            if (!batch.isEmpty()) {
+                tasks.add(new FileTask(batch));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Tarea que verifica un lote de ficheros
+     */
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> files;
+
+        FileTask(List<Path> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path file : files) {
+                Result r = verify(file);
+                if (r != null) {
+                    collected.add(r);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package es.unex.srt.utility;
+
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calibra el número de iteraciones de la derivación de clave para que, en esta máquina, tarde
+ * aproximadamente un tiempo objetivo (por ejemplo 50 ms en uso interactivo o 5 ms por fichero en
+ * lotes). El número elegido se guarda en la cabecera de cada fichero (<code>Header.EXT_ITERATIONS</code>),
+ * así que descifrar y verificar no dependen de la máquina en que se calibró.
+ * <p>
+ * Mide la derivación real de cada algoritmo: la PBE de <code>PbeKeyMaterial</code> para los
+ * cifrados y PBKDF2 para los MAC. Los hash no derivan clave y devuelven el mínimo.
+ */
+public final class IterationCalibrator {
+
+    /**
+     * Objetivo para operaciones interactivas, en milisegundos
+     */
+    public static final long INTERACTIVE_MILLIS = 50;
+    /**
+     * Objetivo para operaciones por lotes, en milisegundos
+     */
+    public static final long BATCH_MILLIS = 5;
+    /**
+     * Mínimo de iteraciones: nunca por debajo del valor fijo que se usaba antes
+     */
+    public static final int MIN_ITERATIONS = 1024;
+    /**
+     * Máximo de iteraciones, para acotar errores de medida
+     */
+    public static final int MAX_ITERATIONS = 10000000;
+    /**
+     * Iteraciones de la derivación de medida
+     */
+    private static final int PROBE_ITERATIONS = 8192;
+    /**
+     * Repeticiones de la medida; se queda la más rápida
+     */
+    private static final int PROBE_ROUNDS = 5;
+
+    /**
+     * Resultados ya calculados, por algoritmo y objetivo
+     */
+    private static final Map<String, Integer> calibrated = new ConcurrentHashMap<>();
+
+    private IterationCalibrator() {
+    }
+
+    /**
+     * Devuelve las iteraciones que hacen que la derivación de <code>algorithm</code> tarde unos
+     * <code>targetMillis</code> en esta máquina. El resultado se memoriza.
+     *
+     * @param algorithm    Algoritmo de cifrado o MAC de <code>Options</code>
+     * @param targetMillis Tiempo objetivo de la derivación, en milisegundos
+     * @return Iteraciones, entre <code>MIN_ITERATIONS</code> y <code>MAX_ITERATIONS</code>
+     */
+    public static int calibrate(String algorithm, long targetMillis) {
+        return calibrated.computeIfAbsent(algorithm + "/" + targetMillis, k -> measure(algorithm, targetMillis));
+    }
+
+    /**
+     * Mide el coste por iteración descontando el coste fijo de preparar el algoritmo
+     */
+    private static int measure(String algorithm, long targetMillis) {
+        boolean cipher = Options.isTypeAlgorithm(Options.symmetricalAlgorithms, algorithm);
+        if (!cipher && !Options.isTypeAlgorithm(Options.macAlgorithms, algorithm)) {
+            return MIN_ITERATIONS;
+        }
+        try {
+            derive(cipher, algorithm, PROBE_ITERATIONS); // Calentamiento
+            long fixed = Long.MAX_VALUE, probe = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_ROUNDS; i++) {
+                fixed = Math.min(fixed, derive(cipher, algorithm, 1));
+                probe = Math.min(probe, derive(cipher, algorithm, PROBE_ITERATIONS));
+            }
+            double nanosPerIteration = Math.max(1.0, (probe - fixed) / (double) (PROBE_ITERATIONS - 1));
+            double iterations = (targetMillis * 1000000.0 - fixed) / nanosPerIteration;
+            return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo calibrar " + algorithm + ", se usa el mínimo");
+            e.printStackTrace();
+            return MIN_ITERATIONS;
+        }
+    }
+
+    /**
+     * Realiza una derivación completa
+     *
+     * @return Tiempo empleado en nanosegundos
+     */
+    private static long derive(boolean cipher, String algorithm, int iterations) throws GeneralSecurityException {
+        byte[] salt = new byte[8];
+        long start = System.nanoTime();
+        if (cipher) {
+            new PbeKeyMaterial(algorithm, "calibration", salt, iterations);
+        } else {
+            SimpleMAC.createMac(algorithm, "calibration", iterations);
+        }
+        return System.nanoTime() - start;
+    }
+}
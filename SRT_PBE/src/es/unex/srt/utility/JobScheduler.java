@@ -0,0 +1,237 @@
+package es.unex.srt.utility;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola de trabajos entre las interfaces y los motores de cifrado, hash y MAC, que ejecuta primero
+ * el trabajo más corto.
+ * <p>
+ * El coste de cada trabajo se estima por su tamaño y algoritmo (y las iteraciones de la derivación
+ * de clave), con un coste por byte que se va ajustando con lo que tardan los trabajos reales. Los
+ * trabajos por lotes pesan <code>BATCH_WEIGHT</code> veces más que los interactivos, y todos
+ * envejecen: cada nanosegundo de espera resta <code>aging</code> nanosegundos de coste, de modo que
+ * un trabajo grande acaba pasando por delante de los pequeños que van llegando. Como el
+ * envejecimiento es igual para todos, el orden se fija al encolar
+ * (<code>peso * coste - aging * espera</code> solo depende del instante de llegada) y basta una
+ * cola de prioridad. Cada clase admite como mucho un número de trabajos en espera; por encima se
+ * rechazan con <code>RejectedExecutionException</code> en vez de alargar la cola.
+ * <p>
+ * Por él pasan las operaciones en modo comando de <code>MainClass</code> (las de un fichero como
+ * interactivas y las de un directorio como lotes) y la prueba de carga con planificador.
+ */
+public class JobScheduler {
+
+    /**
+     * Clases de prioridad
+     */
+    public static final int INTERACTIVE = 0;
+    public static final int BATCH = 1;
+    private static final String[] CLASS_NAMES = {"interactivo", "lotes"};
+
+    /**
+     * Peso del coste de un trabajo por lotes respecto a uno interactivo
+     */
+    public static final int BATCH_WEIGHT = 8;
+    /**
+     * Coste estimado de una iteración de la derivación de clave, en nanosegundos
+     */
+    private static final long NS_PER_ITERATION = 500;
+    /**
+     * Coste inicial por byte cuando aún no se ha medido el algoritmo, en nanosegundos
+     */
+    private static final double DEFAULT_NS_PER_BYTE = 100;
+    /**
+     * Tamaño mínimo de un trabajo para ajustar el coste por byte con él
+     */
+    private static final long LEARN_MIN_BYTES = 64 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    /**
+     * Trabajos en espera admitidos por clase (0 sin límite) y en espera ahora
+     */
+    private final int[] maxQueued;
+    private final AtomicInteger[] queued = {new AtomicInteger(), new AtomicInteger()};
+    /**
+     * Latencias desde que se encola hasta que termina, por clase
+     */
+    private final LatencyHistogram[] latency = {new LatencyHistogram(), new LatencyHistogram()};
+    private final AtomicLong rejected = new AtomicLong();
+    /**
+     * Coste por byte medido, por algoritmo
+     */
+    private final Map<String, Double> nsPerByte = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile double aging = 1.0;
+
+    /**
+     * Constructor
+     *
+     * @param workers        Trabajos que se ejecutan a la vez
+     * @param maxInteractive Trabajos interactivos en espera admitidos; 0 sin límite
+     * @param maxBatch       Trabajos por lotes en espera admitidos; 0 sin límite
+     */
+    public JobScheduler(int workers, int maxInteractive, int maxBatch) {
+        maxQueued = new int[]{maxInteractive, maxBatch};
+        int n = Math.max(1, workers);
+        executor = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+    }
+
+    /**
+     * @param aging Nanosegundos de coste que descuenta cada nanosegundo de espera; 0 es SJF puro
+     */
+    public void setAging(double aging) {
+        this.aging = Math.max(0, aging);
+    }
+
+    /**
+     * Estima lo que tardará un trabajo
+     *
+     * @param bytes          Tamaño de la entrada
+     * @param algorithm      Algoritmo de cifrado, hash o MAC
+     * @param iterationCount Iteraciones de la derivación de clave; 0 si no hay
+     * @return Coste estimado en nanosegundos
+     */
+    public long estimateCost(long bytes, String algorithm, int iterationCount) {
+        return (long) (bytes * nsPerByte.getOrDefault(algorithm, DEFAULT_NS_PER_BYTE))
+                + (long) iterationCount * NS_PER_ITERATION;
+    }
+
+    /**
+     * Encola un trabajo sobre un fichero
+     *
+     * @see #submit(int, long, String, int, Callable)
+     */
+    public Future<Boolean> submit(int priority, File file, String algorithm, int iterationCount,
+                                  Callable<Boolean> task) {
+        return submit(priority, file.length(), algorithm, iterationCount, task);
+    }
+
+    /**
+     * Encola un trabajo
+     *
+     * @param priority       <code>INTERACTIVE</code> o <code>BATCH</code>
+     * @param bytes          Tamaño de la entrada, para estimar el coste
+     * @param algorithm      Algoritmo de cifrado, hash o MAC
+     * @param iterationCount Iteraciones de la derivación de clave; 0 si no hay
+     * @param task           Trabajo; devuelve true si tuvo éxito, como los <code>save</code> y <code>verify</code>
+     * @return Resultado del trabajo
+     * @throws RejectedExecutionException si la cola de su clase está llena o el planificador se ha parado
+     */
+    public Future<Boolean> submit(int priority, long bytes, String algorithm, int iterationCount,
+                                  Callable<Boolean> task) {
+        if (queued[priority].incrementAndGet() > maxQueued[priority] && maxQueued[priority] > 0) {
+            queued[priority].decrementAndGet();
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Cola " + CLASS_NAMES[priority] + " llena");
+        }
+        long cost = estimateCost(bytes, algorithm, iterationCount);
+        Job job = new Job(task, priority, bytes, algorithm, iterationCount, cost);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            queued[priority].decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * @param priority <code>INTERACTIVE</code> o <code>BATCH</code>
+     * @return Latencias (en nanosegundos, de encolar a terminar) de esa clase
+     */
+    public LatencyHistogram getLatency(int priority) {
+        return latency[priority];
+    }
+
+    /**
+     * @return Trabajos en espera ahora, de las dos clases
+     */
+    public int getQueued() {
+        return queued[INTERACTIVE].get() + queued[BATCH].get();
+    }
+
+    /**
+     * @return Resumen de latencias por clase y trabajos rechazados
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < latency.length; i++) {
+            LatencyHistogram h = latency[i];
+            sb.append(String.format("%s: %d trabajos, media %.0f us, p50 %d us, p99 %d us, max %d us\n",
+                    CLASS_NAMES[i], h.getCount(), h.getMean() / 1000, h.getValueAtPercentile(50) / 1000,
+                    h.getValueAtPercentile(99) / 1000, h.getMax() / 1000));
+        }
+        return sb.append("rechazados: ").append(rejected.get()).toString();
+    }
+
+    /**
+     * Deja de admitir trabajos; los encolados terminan
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Ajusta el coste por byte de un algoritmo con lo que ha tardado un trabajo
+     */
+    private void learn(String algorithm, long bytes, int iterationCount, long elapsedNanos) {
+        if (bytes < LEARN_MIN_BYTES || algorithm == null) {
+            return;
+        }
+        double observed = Math.max(0, elapsedNanos - (long) iterationCount * NS_PER_ITERATION) / (double) bytes;
+        nsPerByte.merge(algorithm, observed, (old, now) -> old * 0.8 + now * 0.2);
+    }
+
+    /**
+     * Trabajo encolado, ordenado por su clave de planificación
+     */
+    private final class Job extends FutureTask<Boolean> implements Comparable<Job> {
+        private final int priority;
+        private final long bytes;
+        private final String algorithm;
+        private final int iterationCount;
+        private final long submitted = System.nanoTime();
+        private final long seq = sequence.getAndIncrement();
+        /**
+         * Peso por coste menos lo que descontará la espera: solo depende de la llegada
+         */
+        private final double key;
+
+        Job(Callable<Boolean> task, int priority, long bytes, String algorithm, int iterationCount, long cost) {
+            super(task);
+            this.priority = priority;
+            this.bytes = bytes;
+            this.algorithm = algorithm;
+            this.iterationCount = iterationCount;
+            key = (priority == BATCH ? BATCH_WEIGHT : 1) * (double) cost + aging * submitted;
+        }
+
+        @Override
+        public void run() {
+            queued[priority].decrementAndGet();
+            long start = System.nanoTime();
+            super.run();
+            long end = System.nanoTime();
+            learn(algorithm, bytes, iterationCount, end - start);
+            latency[priority].record(end - submitted);
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            int c = Double.compare(key, o.key);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.RC2ParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Claves de cifrado y de MAC derivadas una sola vez de la contraseña con PBKDF2.
+ * <p>
+ * Los algoritmos PBE de <code>Options</code> repiten la derivación en cada <code>Cipher.init</code>,
+ * lo que es inasumible cuando hay que cifrar muchos bloques o ficheros con la misma contraseña.
+ * Esta clase deriva una vez y ofrece el cifrador de bloque equivalente (DES, DESede o RC2 en CBC)
+ * con un IV distinto por uso, más una clave HMAC independiente para autenticar.
+ */
+final class KeyMaterial {
+
+    /**
+     * Algoritmo MAC usado para autenticar
+     */
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    /**
+     * Longitud de la clave MAC en bytes
+     */
+    private static final int MAC_KEY_LENGTH = 32;
+
+    /**
+     * Algoritmo de cifrado de bloque (DES, DESede o RC2)
+     */
+    private final String blockAlgorithm;
+    /**
+     * Clave de cifrado
+     */
+    private final SecretKey cipherKey;
+    /**
+     * Clave MAC
+     */
+    private final SecretKey macKey;
+
+    /**
+     * Constructor. Realiza la derivación PBKDF2.
+     *
+     * @param pbeAlgorithm   Algoritmo PBE de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param salt           Sal
+     * @param iterationCount Iteraciones a realizar
+     * @throws GeneralSecurityException si el algoritmo no es válido
+     */
+    KeyMaterial(String pbeAlgorithm, String password, byte[] salt, Integer iterationCount)
+            throws GeneralSecurityException {
+        blockAlgorithm = blockAlgorithm(pbeAlgorithm);
+        int keyLength = keyLength(blockAlgorithm);
+        byte[] derived = Pbkdf2.deriveKey(password, salt, iterationCount, (keyLength + MAC_KEY_LENGTH) * 8);
+        cipherKey = new SecretKeySpec(derived, 0, keyLength, blockAlgorithm);
+        macKey = new SecretKeySpec(derived, keyLength, MAC_KEY_LENGTH, MAC_ALGORITHM);
+        Arrays.fill(derived, (byte) 0);
+    }
+
+    /**
+     * Cifrador de bloque asociado a un algoritmo PBE
+     *
+     * @param pbeAlgorithm Algoritmo PBE de <code>Options.symmetricalAlgorithms</code>
+     * @return DES, DESede o RC2
+     * @throws NoSuchAlgorithmException si no es un algoritmo PBE conocido
+     */
+    static String blockAlgorithm(String pbeAlgorithm) throws NoSuchAlgorithmException {
+        if (pbeAlgorithm.endsWith("AndDES")) {
+            return "DES";
+        } else if (pbeAlgorithm.endsWith("AndTripleDES") || pbeAlgorithm.endsWith("AndDESede")) {
+            return "DESede";
+        } else if (pbeAlgorithm.endsWith("AndRC2_40")) {
+            return "RC2";
+        }
+        throw new NoSuchAlgorithmException("No es un algoritmo PBE conocido: " + pbeAlgorithm);
+    }
+
+    /**
+     * @param blockAlgorithm DES, DESede o RC2
+     * @return Longitud de clave en bytes
+     */
+    static int keyLength(String blockAlgorithm) {
+        switch (blockAlgorithm) {
+            case "DES":
+                return 8;
+            case "DESede":
+                return 24;
+            default:
+                return 5;
+        }
+    }
+
+    /**
+     * @return Longitud del IV (tamaño de bloque) en bytes
+     */
+    int getIvLength() {
+        return 8;
+    }
+
+    /**
+     * Crea un cifrador CBC con relleno PKCS5
+     *
+     * @param opmode <code>Cipher.ENCRYPT_MODE</code> o <code>Cipher.DECRYPT_MODE</code>
+     * @param iv     IV de <code>getIvLength()</code> bytes
+     * @return Cifrador listo para usar
+     * @throws GeneralSecurityException si no se puede iniciar
+     */
+    Cipher newCipher(int opmode, byte[] iv) throws GeneralSecurityException {
+        return newCipher(opmode, iv, "PKCS5Padding");
+    }
+
+    /**
+     * Crea un cifrador CBC con el relleno indicado
+     *
+     * @param opmode  <code>Cipher.ENCRYPT_MODE</code> o <code>Cipher.DECRYPT_MODE</code>
+     * @param iv      IV de <code>getIvLength()</code> bytes
+     * @param padding PKCS5Padding o NoPadding
+     * @return Cifrador listo para usar
+     * @throws GeneralSecurityException si no se puede iniciar
+     */
+    Cipher newCipher(int opmode, byte[] iv, String padding) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(blockAlgorithm + "/CBC/" + padding);
+        if ("RC2".equals(blockAlgorithm)) {
+            cipher.init(opmode, cipherKey, new RC2ParameterSpec(40, iv));
+        } else {
+            cipher.init(opmode, cipherKey, new IvParameterSpec(iv));
+        }
+        return cipher;
+    }
+
+    /**
+     * Crea un MAC con la clave de autenticación
+     *
+     * @return MAC listo para usar
+     * @throws GeneralSecurityException si no se puede iniciar
+     */
+    Mac newMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(macKey);
+        return mac;
+    }
+}
@@ -0,0 +1,214 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Mac;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Derivación de clave especulativa: prepara en segundo plano la clave del cifrado o el
+ * <code>Mac</code> de una operación en cuanto se conocen la contraseña y la cabecera, mientras el
+ * usuario todavía confirma la contraseña o elige el destino.
+ * <p>
+ * Al cifrar, la sal se genera aquí y la cabecera se entrega ya hecha al motor; al descifrar o
+ * verificar, la cabecera se lee del fichero de origen. Si al final el motor encuentra otra cabecera
+ * (el fichero ha cambiado) o la contraseña no coincide, se descarta lo preparado y se deriva de la
+ * forma normal. Cada preparación sirve para una sola operación.
+ */
+public class KeyPrefetch {
+
+    /**
+     * Hilo de las derivaciones especulativas, de baja prioridad para no competir con la interfaz
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "KeyPrefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /**
+     * Cabecera para la que se prepara la clave: la que se escribirá al cifrar o la leída al descifrar
+     */
+    private final Header header;
+    private final String password;
+    private final Integer iterationCount;
+    /**
+     * True si la cabecera se ha leído de un fichero (descifrado o verificación)
+     */
+    private final boolean loaded;
+    /**
+     * Clave del cifrado (<code>PbeKeyMaterial</code>) o Mac en preparación
+     */
+    private final Future<?> prepared;
+    private boolean taken;
+
+    private KeyPrefetch(Header header, boolean loaded, String password, Integer iterationCount, Callable<?> task) {
+        this.header = header;
+        this.loaded = loaded;
+        this.password = password;
+        this.iterationCount = iterationCount;
+        prepared = executor.submit(task);
+    }
+
+    /**
+     * Empieza a preparar el cifrado de <code>SimpleCipher</code>
+     *
+     * @param algorithm      Algoritmo de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar
+     * @return Preparación en curso
+     */
+    public static KeyPrefetch forEncryption(String algorithm, String password, Integer iterationCount) {
+        byte[] sal = RandomPool.bytes(8);
+        Header header = new Header(Options.OP_SYMMETRIC_CIPHER, algorithm, Options.authenticationAlgorithms[0], sal);
+        header.setIterationCount(iterationCount);
+        return new KeyPrefetch(header, false, password, iterationCount,
+                () -> new PbeKeyMaterial(algorithm, password, sal, iterationCount));
+    }
+
+    /**
+     * Empieza a preparar el cálculo de MAC de <code>SimpleMAC</code>
+     *
+     * @param algorithm      Algoritmo de <code>Options.macAlgorithms</code>
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @return Preparación en curso
+     */
+    public static KeyPrefetch forMac(String algorithm, String secret, Integer iterationCount) {
+        Header header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], algorithm, new byte[0]);
+        header.setIterationCount(iterationCount);
+        return new KeyPrefetch(header, false, secret, iterationCount,
+                () -> SimpleMAC.createMac(algorithm, secret, iterationCount));
+    }
+
+    /**
+     * Empieza a preparar el descifrado o la verificación de MAC de un fichero, según su cabecera
+     *
+     * @param source         Fichero cifrado o con MAC
+     * @param password       Contraseña de usuario o secreto compartido
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @return Preparación en curso, o null si el fichero no es de un tipo que derive clave
+     * @throws IOException si no se puede leer la cabecera
+     */
+    public static KeyPrefetch forDecryption(File source, String password, Integer iterationCount) throws IOException {
+        Header header = new Header();
+        try (InputStream in = new FileInputStream(source)) {
+            if (!header.load(in)) {
+                return null;
+            }
+        }
+        int iterations = header.getIterationCount(iterationCount);
+        if (header.getOperation() == Options.OP_SYMMETRIC_CIPHER) {
+            return new KeyPrefetch(header, true, password, iterationCount,
+                    () -> new PbeKeyMaterial(header.getAlgorithm1(), password, header.getData(), iterations));
+        }
+        if (header.getOperation() == Options.OP_HASH_MAC
+                && Options.isTypeAlgorithm(Options.macAlgorithms, header.getAlgorithm2())) {
+            return new KeyPrefetch(header, true, password, iterationCount,
+                    () -> SimpleMAC.createMac(header.getAlgorithm2(), password, iterations));
+        }
+        return null;
+    }
+
+    /**
+     * @param password Contraseña con la que se va a hacer la operación
+     * @return True si la preparación es para esa contraseña
+     */
+    public boolean matches(String password) {
+        return this.password.equals(password);
+    }
+
+    /**
+     * Descarta la preparación, por ejemplo si el usuario cancela
+     */
+    public synchronized void cancel() {
+        prepared.cancel(true);
+        taken = true;
+    }
+
+    /**
+     * @return True si es para descifrar o verificar un fichero, false si es para cifrar o calcular
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return Cabecera que se escribirá al cifrar
+     */
+    Header getHeader() {
+        return header;
+    }
+
+    /**
+     * @return Contraseña de la preparación, para derivar de la forma normal si no sirve
+     */
+    String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return Iteraciones por defecto de la preparación
+     */
+    Integer getIterationCount() {
+        return iterationCount;
+    }
+
+    /**
+     * Entrega la clave del cifrado preparada, esperando a que termine si aún no lo ha hecho
+     *
+     * @param found Cabecera leída por el motor al descifrar, o null al cifrar
+     * @return Clave e IV derivados, o null si no corresponde a esa cabecera o falló
+     */
+    synchronized PbeKeyMaterial takeKeys(Header found) {
+        Object o = take(found);
+        return o instanceof PbeKeyMaterial ? (PbeKeyMaterial) o : null;
+    }
+
+    /**
+     * Entrega el MAC preparado, esperando a que termine si aún no lo ha hecho
+     *
+     * @param found Cabecera leída por el motor al verificar, o null al calcular
+     * @return MAC listo, o null si no corresponde a esa cabecera o falló
+     */
+    synchronized Mac takeMac(Header found) {
+        Object o = take(found);
+        return o instanceof Mac ? (Mac) o : null;
+    }
+
+    private Object take(Header found) {
+        if (taken || (found != null && !sameKeyParameters(found))) {
+            cancel();
+            return null;
+        }
+        taken = true;
+        try {
+            return prepared.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof GeneralSecurityException)) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    private boolean sameKeyParameters(Header found) {
+        return found.getOperation() == header.getOperation()
+                && found.getAlgorithm1().equals(header.getAlgorithm1())
+                && found.getAlgorithm2().equals(header.getAlgorithm2())
+                && Arrays.equals(found.getData(), header.getData())
+                && found.getIterationCount(iterationCount) == header.getIterationCount(iterationCount);
+    }
+}
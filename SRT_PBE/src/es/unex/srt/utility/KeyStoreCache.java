@@ -0,0 +1,196 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Almacén de claves local cargado una sola vez, con las claves RSA y los cifradores de
+ * envoltura ya iniciados en caché.
+ * <p>
+ * Abrir el almacén, descifrar la clave privada y preparar el <code>Cipher</code> RSA cuesta mucho
+ * más que envolver una clave de sesión, así que se hace una vez por almacén y alias. Lo guardado
+ * se busca también por la contraseña (por un resumen suyo con sal, nunca la contraseña en sí):
+ * con otra contraseña no se encuentra nada y se vuelve a cargar, así que el almacén o la clave
+ * privada la rechazan igual que la primera vez. Los cifradores RSA no son seguros entre hilos:
+ * cada uso se sincroniza sobre el propio cifrador, y como la envoltura es corta, la espera es mínima.
+ */
+public class KeyStoreCache {
+
+    /**
+     * Almacenes ya cargados, por ruta canónica y contraseña
+     */
+    private static final Map<String, KeyStoreCache> stores = new ConcurrentHashMap<>();
+    /**
+     * Sal de los resúmenes de contraseñas, distinta en cada proceso
+     */
+    private static final byte[] salt = RandomPool.secretBytes(16);
+
+    /**
+     * Almacén cargado
+     */
+    private final KeyStore keyStore;
+    /**
+     * Claves públicas ya leídas, por alias, y privadas, por alias y contraseña
+     */
+    private final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+    private final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+    /**
+     * Cifradores iniciados para envolver (con la pública, por alias) y desenvolver (con la
+     * privada, por alias y contraseña)
+     */
+    private final Map<String, Cipher> wrappers = new ConcurrentHashMap<>();
+    private final Map<String, Cipher> unwrappers = new ConcurrentHashMap<>();
+
+    private KeyStoreCache(KeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Devuelve el almacén de un fichero, cargándolo solo la primera vez. El tipo se deduce de la
+     * extensión: <code>.p12</code> o <code>.pfx</code> es PKCS12 y cualquier otra, JKS.
+     *
+     * @param file     Fichero del almacén
+     * @param password Contraseña del almacén
+     * @return Almacén en caché
+     * @throws IOException si no se puede leer o la contraseña no es válida
+     */
+    public static KeyStoreCache get(File file, char[] password) throws IOException {
+        String id = file.getCanonicalPath() + "\0" + passwordTag(password);
+        KeyStoreCache cached = stores.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        String name = file.getName().toLowerCase();
+        String type = name.endsWith(".p12") || name.endsWith(".pfx") ? "PKCS12" : "JKS";
+        try (InputStream in = new FileInputStream(file)) {
+            KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(in, password);
+            KeyStoreCache loaded = new KeyStoreCache(keyStore);
+            cached = stores.putIfAbsent(id, loaded);
+            return cached != null ? cached : loaded;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo cargar el almacén de claves " + file, e);
+        }
+    }
+
+    /**
+     * Olvida todos los almacenes cargados, por ejemplo tras cambiarlos en disco
+     */
+    public static void clear() {
+        stores.clear();
+    }
+
+    /**
+     * @param alias Alias del par de claves
+     * @return Clave pública de su certificado
+     * @throws GeneralSecurityException si el alias no existe
+     */
+    public PublicKey getPublicKey(String alias) throws GeneralSecurityException {
+        PublicKey key = publicKeys.get(alias);
+        if (key == null) {
+            Certificate certificate = keyStore.getCertificate(alias);
+            if (certificate == null) {
+                throw new GeneralSecurityException("No hay certificado con alias " + alias);
+            }
+            key = certificate.getPublicKey();
+            publicKeys.put(alias, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param alias       Alias del par de claves
+     * @param keyPassword Contraseña de la clave privada
+     * @return Clave privada
+     * @throws GeneralSecurityException si el alias no existe o la contraseña no es válida
+     */
+    public PrivateKey getPrivateKey(String alias, char[] keyPassword) throws GeneralSecurityException {
+        String id = alias + "\0" + passwordTag(keyPassword);
+        PrivateKey key = privateKeys.get(id);
+        if (key == null) {
+            Key loaded = keyStore.getKey(alias, keyPassword);
+            if (!(loaded instanceof PrivateKey)) {
+                throw new GeneralSecurityException("No hay clave privada con alias " + alias);
+            }
+            key = (PrivateKey) loaded;
+            privateKeys.put(id, key);
+        }
+        return key;
+    }
+
+    /**
+     * Envuelve una clave con la clave pública de un alias
+     *
+     * @param alias Alias del destinatario
+     * @param key   Clave a envolver
+     * @return Clave envuelta
+     * @throws GeneralSecurityException si no se puede envolver
+     */
+    public byte[] wrap(String alias, Key key) throws GeneralSecurityException {
+        Cipher cipher = wrappers.get(alias);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(Options.publicAlgorithms[0]);
+            cipher.init(Cipher.WRAP_MODE, getPublicKey(alias));
+            wrappers.put(alias, cipher);
+        }
+        synchronized (cipher) {
+            return cipher.wrap(key);
+        }
+    }
+
+    /**
+     * Desenvuelve una clave con la clave privada de un alias
+     *
+     * @param alias       Alias del destinatario
+     * @param keyPassword Contraseña de la clave privada
+     * @param wrapped     Clave envuelta
+     * @param algorithm   Algoritmo de la clave envuelta
+     * @return Clave
+     * @throws GeneralSecurityException si la clave privada no corresponde o la envuelta está dañada
+     */
+    public Key unwrap(String alias, char[] keyPassword, byte[] wrapped, String algorithm)
+            throws GeneralSecurityException {
+        String id = alias + "\0" + passwordTag(keyPassword);
+        Cipher cipher = unwrappers.get(id);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(Options.publicAlgorithms[0]);
+            cipher.init(Cipher.UNWRAP_MODE, getPrivateKey(alias, keyPassword));
+            unwrappers.put(id, cipher);
+        }
+        synchronized (cipher) {
+            return cipher.unwrap(wrapped, algorithm, Cipher.SECRET_KEY);
+        }
+    }
+
+    /**
+     * Resumen con sal de una contraseña, para buscar en las cachés sin guardarla
+     */
+    private static String passwordTag(char[] password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            if (password != null) {
+                for (char c : password) {
+                    md.update((byte) (c >>> 8));
+                    md.update((byte) c);
+                }
+            }
+            return MerkleTree.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
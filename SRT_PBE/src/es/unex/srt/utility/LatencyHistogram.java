@@ -0,0 +1,134 @@
+package es.unex.srt.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con cubetas log-lineales, al estilo de HdrHistogram.
+ * <p>
+ * Los valores por debajo de 128 tienen cubeta propia; por encima, cada potencia de dos se divide
+ * en 64 cubetas, así que el error relativo es menor del 1,6 % en todo el rango sin importar
+ * cuántas muestras se registren. Se puede registrar desde varios hilos a la vez.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bits de precisión: valores exactos por debajo de 2^SUB_BITS
+     */
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+
+    /**
+     * Número de muestras por cubeta
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra una muestra
+     *
+     * @param value Valor (por ejemplo, nanosegundos). Los negativos cuentan como 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Reintentar
+        }
+    }
+
+    /**
+     * @return Número de muestras
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return Mayor valor registrado
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return Media de los valores registrados, o 0 si no hay muestras
+     */
+    public double getMean() {
+        long n = total.get();
+        return n == 0 ? 0 : sum.get() / (double) n;
+    }
+
+    /**
+     * Valor por debajo del cual (o igual) queda el porcentaje indicado de las muestras. Devuelve el
+     * límite superior de la cubeta, nunca más que el máximo registrado.
+     *
+     * @param percentile Porcentaje entre 0 y 100
+     * @return Valor del percentil, o 0 si no hay muestras
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Suma a este histograma las muestras de otro
+     *
+     * @param other Histograma a sumar
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long m, o = other.max.get();
+        while (o > (m = max.get()) && !max.compareAndSet(m, o)) {
+            // Reintentar
+        }
+    }
+
+    /**
+     * Cubeta de un valor: exacta hasta SUB_COUNT, y después los SUB_BITS - 1 bits tras el más alto
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        int mantissa = (int) (value >>> shift);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (mantissa - HALF_COUNT);
+    }
+
+    /**
+     * Mayor valor que cae en una cubeta
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long mantissa = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,425 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prueba de carga de extremo a extremo de las operaciones de <code>SimpleCipher</code>,
+ * <code>SimpleHash</code> y <code>SimpleMAC</code> sobre ficheros reales.
+ * <p>
+ * Genera ficheros sintéticos según una distribución de tamaños (por ejemplo muchos pequeños y
+ * algunos enormes), los protege una vez para tener entradas de descifrado y verificación, y después
+ * lanza operaciones al azar con N hilos durante un tiempo fijo. Sin tasa objetivo cada hilo encadena
+ * operaciones; con tasa, las operaciones se programan a intervalos fijos y la latencia se mide
+ * desde el instante programado, de modo que las esperas por falta de capacidad también cuentan.
+ * <p>
+ * El informe tiene una línea por operación con su rendimiento y percentiles, más la actividad del
+ * recolector de basura y el pico de memoria residente, en un formato estable para comparar
+ * entre versiones.
+ */
+public class LoadGenerator {
+
+    /**
+     * Operaciones que se lanzan
+     */
+    public static final String CIPHER = "cifrar";
+    public static final String DECIPHER = "descifrar";
+    public static final String HASH = "hash";
+    public static final String VERIFY_HASH = "verificar_hash";
+    public static final String MAC = "mac";
+    public static final String VERIFY_MAC = "verificar_mac";
+    private static final String[] OPERATIONS = {CIPHER, DECIPHER, HASH, VERIFY_HASH, MAC, VERIFY_MAC};
+
+    /**
+     * Distribución de tamaños por defecto: muchos de 1 KB, algunos de 1 MB y pocos de 64 MB
+     */
+    public static final String DEFAULT_SIZES = "1024x90,1048576x9,67108864x1";
+    private static final String PASSWORD = "carga";
+
+    /**
+     * Directorio de trabajo para los ficheros sintéticos
+     */
+    private final File workDir;
+    private final String cipherAlgorithm, hashAlgorithm, macAlgorithm;
+    private final Integer iterationCount;
+    /**
+     * Tamaños de fichero y sus pesos
+     */
+    private long[] sizes;
+    private int[] weights;
+    private int totalWeight;
+    private int workers = 1;
+    private double rate = 0;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * Planificador por el que pasan las operaciones, o null para ejecutarlas directamente, y
+     * tamaño máximo de una operación interactiva
+     */
+    private JobScheduler scheduler;
+    private long interactiveMaxBytes;
+
+    /**
+     * Latencias por operación
+     */
+    private final Map<String, LatencyHistogram> histograms = new TreeMap<>();
+    /**
+     * Bytes procesados y errores por operación
+     */
+    private final Map<String, AtomicLong> bytes = new TreeMap<>(), errors = new TreeMap<>();
+    private long elapsedNanos, gcCount, gcMillis;
+
+    /**
+     * Constructor
+     *
+     * @param workDir         Directorio donde crear los ficheros sintéticos
+     * @param cipherAlgorithm Algoritmo de <code>Options.symmetricalAlgorithms</code>
+     * @param hashAlgorithm   Algoritmo de <code>Options.hashAlgorithms</code>
+     * @param macAlgorithm    Algoritmo de <code>Options.macAlgorithms</code>
+     * @param iterationCount  Iteraciones de la derivación de clave
+     */
+    public LoadGenerator(File workDir, String cipherAlgorithm, String hashAlgorithm, String macAlgorithm,
+                         Integer iterationCount) {
+        this.workDir = workDir;
+        this.cipherAlgorithm = cipherAlgorithm;
+        this.hashAlgorithm = hashAlgorithm;
+        this.macAlgorithm = macAlgorithm;
+        this.iterationCount = iterationCount;
+        setSizes(DEFAULT_SIZES);
+        for (String op : OPERATIONS) {
+            histograms.put(op, new LatencyHistogram());
+            bytes.put(op, new AtomicLong());
+            errors.put(op, new AtomicLong());
+        }
+    }
+
+    /**
+     * Fija la distribución de tamaños
+     *
+     * @param distribution Lista <code>tamañoxpeso,...</code>, por ejemplo <code>1024x90,1048576x10</code>
+     */
+    public void setSizes(String distribution) {
+        String[] parts = distribution.split(",");
+        sizes = new long[parts.length];
+        weights = new int[parts.length];
+        totalWeight = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] p = parts[i].trim().split("x");
+            sizes[i] = Long.parseLong(p[0]);
+            weights[i] = p.length > 1 ? Integer.parseInt(p[1]) : 1;
+            totalWeight += weights[i];
+        }
+    }
+
+    /**
+     * @param workers Hilos que lanzan operaciones
+     */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @param rate Operaciones por segundo en total, o 0 para ir tan rápido como se pueda
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Hace pasar las operaciones por un planificador en vez de ejecutarlas directamente en cada hilo
+     *
+     * @param scheduler           Planificador; null para no usarlo
+     * @param interactiveMaxBytes Las operaciones hasta este tamaño son interactivas y el resto, por lotes
+     */
+    public void setScheduler(JobScheduler scheduler, long interactiveMaxBytes) {
+        this.scheduler = scheduler;
+        this.interactiveMaxBytes = interactiveMaxBytes;
+    }
+
+    /**
+     * @param seconds Duración de la prueba
+     */
+    public void setDuration(long seconds) {
+        this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Prepara los ficheros y ejecuta la prueba
+     *
+     * @return True si no hubo errores
+     * @throws IOException si no se pueden crear los ficheros de trabajo
+     */
+    public boolean run() throws IOException {
+        prepare();
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        long gcCount0 = 0, gcMillis0 = 0;
+        for (GarbageCollectorMXBean gc : gcs) {
+            gcCount0 += gc.getCollectionCount();
+            gcMillis0 += gc.getCollectionTime();
+        }
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        AtomicLong scheduled = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            File out = new File(workDir, "salida-" + w);
+            Thread t = new Thread(() -> work(start, end, scheduled, out), "carga-" + w);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        elapsedNanos = System.nanoTime() - start;
+
+        gcCount = -gcCount0;
+        gcMillis = -gcMillis0;
+        for (GarbageCollectorMXBean gc : gcs) {
+            gcCount += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+        long failed = 0;
+        for (AtomicLong e : errors.values()) {
+            failed += e.get();
+        }
+        return failed == 0;
+    }
+
+    /**
+     * Escribe el informe. Todas las latencias en microsegundos.
+     *
+     * @param out Destino del informe. Se devuelve sin cerrar
+     * @throws IOException si no se puede escribir
+     */
+    public void writeReport(Writer out) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        out.write("# operacion\tn\terrores\tops_s\tMB_s\tmedia\tp50\tp90\tp99\tp999\tmax\n");
+        LatencyHistogram all = new LatencyHistogram();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            all.add(h);
+            out.write(line(e.getKey(), h, errors.get(e.getKey()).get(), bytes.get(e.getKey()).get(), seconds));
+        }
+        long totalBytes = 0, totalErrors = 0;
+        for (String op : OPERATIONS) {
+            totalBytes += bytes.get(op).get();
+            totalErrors += errors.get(op).get();
+        }
+        out.write(line("total", all, totalErrors, totalBytes, seconds));
+        out.write(String.format("# hilos=%d tasa=%.1f segundos=%.1f tamanios=%s%n", workers, rate, seconds,
+                describeSizes()));
+        out.write("# gc_colecciones=" + gcCount + " gc_ms=" + gcMillis + " rss_pico_kb=" + peakResidentKb() + "\n");
+        if (scheduler != null) {
+            out.write("# " + scheduler.report().replace("\n", "\n# ") + "\n");
+        }
+        if (ResourceLimits.isLimited()) {
+            out.write("# " + ResourceLimits.report().replace("\n", "\n# ") + "\n");
+        }
+        out.write("# " + MemoryBudget.report() + "\n");
+        out.flush();
+    }
+
+    private static String line(String name, LatencyHistogram h, long errors, long bytes, double seconds) {
+        return String.format("%s\t%d\t%d\t%.1f\t%.2f\t%.0f\t%d\t%d\t%d\t%d\t%d%n", name, h.getCount(), errors,
+                h.getCount() / seconds, bytes / seconds / (1024 * 1024), h.getMean() / 1000,
+                h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(90) / 1000,
+                h.getValueAtPercentile(99) / 1000, h.getValueAtPercentile(99.9) / 1000, h.getMax() / 1000);
+    }
+
+    private String describeSizes() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(sizes[i]).append('x').append(weights[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Bucle de un hilo de carga
+     */
+    private void work(long start, long end, AtomicLong scheduled, File out) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        while (true) {
+            long intended;
+            if (interval > 0) {
+                intended = start + scheduled.getAndIncrement() * interval;
+                if (intended >= end) {
+                    return;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            } else {
+                intended = System.nanoTime();
+                if (intended >= end) {
+                    return;
+                }
+            }
+            String op = OPERATIONS[random.nextInt(OPERATIONS.length)];
+            int sizeClass = pickSize(random);
+            boolean ok;
+            try {
+                ok = scheduler == null ? execute(op, sizeClass, out) : schedule(op, sizeClass, out);
+            } catch (IOException e) {
+                ok = false;
+            }
+            histograms.get(op).record(System.nanoTime() - intended);
+            bytes.get(op).addAndGet(sizes[sizeClass]);
+            if (!ok) {
+                errors.get(op).incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Ejecuta una operación a través del planificador y espera a que termine
+     */
+    private boolean schedule(String op, int sizeClass, File out) {
+        int priority = sizes[sizeClass] <= interactiveMaxBytes ? JobScheduler.INTERACTIVE : JobScheduler.BATCH;
+        String algorithm = op.equals(CIPHER) || op.equals(DECIPHER) ? cipherAlgorithm
+                : op.equals(HASH) || op.equals(VERIFY_HASH) ? hashAlgorithm : macAlgorithm;
+        int iterations = algorithm.equals(hashAlgorithm) ? 0 : iterationCount;
+        try {
+            return scheduler.submit(priority, sizes[sizeClass], algorithm, iterations,
+                    () -> execute(op, sizeClass, out)).get();
+        } catch (RejectedExecutionException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Ejecuta una operación sobre el fichero de una clase de tamaño
+     */
+    private boolean execute(String op, int sizeClass, File out) throws IOException {
+        switch (op) {
+            case CIPHER:
+                try (InputStream in = open(sizeClass, ""); OutputStream o = new FileOutputStream(out)) {
+                    return new SimpleCipher(in, cipherAlgorithm, PASSWORD, iterationCount).save(o);
+                }
+            case DECIPHER:
+                try (InputStream in = open(sizeClass, ".cph"); OutputStream o = new FileOutputStream(out)) {
+                    return new SimpleCipher(in, PASSWORD, iterationCount).save(o);
+                }
+            case HASH:
+                try (InputStream in = open(sizeClass, ""); OutputStream o = new FileOutputStream(out)) {
+                    return new SimpleHash(in, hashAlgorithm, PASSWORD).save(o);
+                }
+            case VERIFY_HASH:
+                try (InputStream in = open(sizeClass, ".hsh")) {
+                    return new SimpleHash(in, PASSWORD).verify();
+                }
+            case MAC:
+                try (InputStream in = open(sizeClass, ""); OutputStream o = new FileOutputStream(out)) {
+                    return new SimpleMAC(in, macAlgorithm, PASSWORD, iterationCount).save(o);
+                }
+            default:
+                try (InputStream in = open(sizeClass, ".mac")) {
+                    return new SimpleMAC(in, PASSWORD, iterationCount).verify();
+                }
+        }
+    }
+
+    private InputStream open(int sizeClass, String suffix) throws IOException {
+        return new BufferedInputStream(new FileInputStream(new File(workDir, "datos-" + sizeClass + suffix)));
+    }
+
+    private int pickSize(Random random) {
+        int r = random.nextInt(totalWeight);
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    /**
+     * Crea un fichero en claro por clase de tamaño y sus versiones cifrada, con hash y con MAC
+     */
+    private void prepare() throws IOException {
+        Files.createDirectories(workDir.toPath());
+        Random random = new Random(sizes.length);
+        byte[] buffer = new byte[64 * 1024];
+        for (int i = 0; i < sizes.length; i++) {
+            File plain = new File(workDir, "datos-" + i);
+            try (OutputStream o = new BufferedOutputStream(new FileOutputStream(plain))) {
+                for (long left = sizes[i]; left > 0; left -= buffer.length) {
+                    random.nextBytes(buffer);
+                    o.write(buffer, 0, (int) Math.min(buffer.length, left));
+                }
+            }
+            File cph = new File(workDir, "datos-" + i + ".cph");
+            File hsh = new File(workDir, "datos-" + i + ".hsh");
+            File mac = new File(workDir, "datos-" + i + ".mac");
+            boolean ok;
+            try (InputStream in = open(i, ""); OutputStream o = new FileOutputStream(cph)) {
+                ok = new SimpleCipher(in, cipherAlgorithm, PASSWORD, iterationCount).save(o);
+            }
+            try (InputStream in = open(i, ""); OutputStream o = new FileOutputStream(hsh)) {
+                ok &= new SimpleHash(in, hashAlgorithm, PASSWORD).save(o);
+            }
+            try (InputStream in = open(i, ""); OutputStream o = new FileOutputStream(mac)) {
+                ok &= new SimpleMAC(in, macAlgorithm, PASSWORD, iterationCount).save(o);
+            }
+            if (!ok) {
+                throw new IOException("No se pudieron preparar los ficheros de " + sizes[i] + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Pico de memoria residente del proceso: VmHWM en Linux, o la suma de los picos de las zonas
+     * de memoria de la JVM si no está disponible
+     */
+    private static long peakResidentKb() {
+        File status = new File("/proc/self/status");
+        if (status.canRead()) {
+            try {
+                for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Se usa la estimación de la JVM
+            }
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP || pool.getType() == MemoryType.NON_HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak / 1024;
+    }
+}
@@ -0,0 +1,177 @@
+package es.unex.srt.utility;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Presupuesto de memoria común a todas las operaciones del proceso, para los búferes grandes.
+ * <p>
+ * Antes de trabajar, cada motor pide un búfer con {@link #acquire(int)}: si cabe entero se le da;
+ * si no, uno menor (potencia de dos, como mínimo <code>MIN_BUFFER</code>), y si ni eso cabe espera
+ * a que otra operación devuelva el suyo. Los búferes devueltos se guardan para reutilizarlos, y
+ * cuentan dentro del presupuesto: si hace falta sitio, se sueltan. Así la suma de búferes vivos
+ * nunca pasa del límite, haya las operaciones que haya a la vez.
+ */
+public final class MemoryBudget {
+
+    /**
+     * Búfer más pequeño que se entrega
+     */
+    public static final int MIN_BUFFER = 4096;
+
+    /**
+     * Límite en bytes, en préstamo ahora y guardados para reutilizar
+     */
+    private static long limit = Runtime.getRuntime().maxMemory() / 4;
+    private static long leased, pooled;
+    private static final Map<Integer, ArrayDeque<byte[]>> pool = new HashMap<>();
+    /**
+     * Estadísticas: máximo en préstamo, préstamos, préstamos con búfer menor, esperas y tiempo esperado
+     */
+    private static long peak, leases, reduced, waits, waitedNanos;
+
+    private MemoryBudget() {
+    }
+
+    /**
+     * Cambia el límite. Los búferes ya prestados se respetan; los nuevos esperan a que quepan
+     *
+     * @param bytes Límite en bytes (al menos <code>MIN_BUFFER</code>)
+     */
+    public static synchronized void setLimit(long bytes) {
+        limit = Math.max(MIN_BUFFER, bytes);
+        trim(0);
+        MemoryBudget.class.notifyAll();
+    }
+
+    /**
+     * @return Límite en bytes
+     */
+    public static synchronized long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Pide un búfer, esperando si no cabe ni el mínimo. Se usa con try-with-resources para
+     * devolverlo siempre
+     *
+     * @param preferred Tamaño deseado; se redondea a potencia de dos
+     * @return Préstamo, con un búfer de entre <code>MIN_BUFFER</code> y <code>preferred</code> bytes
+     * @throws InterruptedIOException si se interrumpe la espera
+     */
+    public static Lease acquire(int preferred) throws InterruptedIOException {
+        int wanted = roundUp(Math.max(MIN_BUFFER, preferred));
+        int size;
+        synchronized (MemoryBudget.class) {
+            long start = 0;
+            while (limit - leased < MIN_BUFFER) {
+                if (start == 0) {
+                    start = System.nanoTime();
+                    waits++;
+                }
+                try {
+                    MemoryBudget.class.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Espera de memoria interrumpida");
+                }
+            }
+            if (start != 0) {
+                waitedNanos += System.nanoTime() - start;
+            }
+            size = wanted;
+            while (size > limit - leased) {
+                size >>>= 1;
+            }
+            if (size < wanted) {
+                reduced++;
+            }
+            trim(size);
+            leased += size;
+            leases++;
+            peak = Math.max(peak, leased);
+            ArrayDeque<byte[]> free = pool.get(size);
+            if (free != null && !free.isEmpty()) {
+                pooled -= size;
+                return new Lease(free.pop());
+            }
+        }
+        return new Lease(new byte[size]);
+    }
+
+    private static synchronized void release(byte[] buffer) {
+        leased -= buffer.length;
+        // Se guarda para reutilizarlo si cabe, dejando la mitad del límite libre de reservas
+        if (leased + pooled + buffer.length <= limit && pooled + buffer.length <= limit / 2) {
+            Arrays.fill(buffer, (byte) 0); // Puede llevar contenido en claro de otra operación
+            pool.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).push(buffer);
+            pooled += buffer.length;
+        }
+        MemoryBudget.class.notifyAll();
+    }
+
+    /**
+     * Suelta búferes guardados hasta que quepan <code>size</code> bytes más
+     */
+    private static void trim(int size) {
+        for (ArrayDeque<byte[]> free : pool.values()) {
+            while (leased + pooled + size > limit && !free.isEmpty()) {
+                pooled -= free.pop().length;
+            }
+        }
+    }
+
+    private static int roundUp(int n) {
+        int p = Integer.highestOneBit(n);
+        return p == n || p == 1 << 30 ? p : p << 1;
+    }
+
+    /**
+     * Pone a cero las estadísticas
+     */
+    public static synchronized void resetStats() {
+        peak = leased;
+        leases = reduced = waits = waitedNanos = 0;
+    }
+
+    /**
+     * @return Resumen del uso del presupuesto
+     */
+    public static synchronized String report() {
+        double mb = 1024.0 * 1024;
+        return String.format("memoria: límite %.1f MB, en uso %.1f MB, máximo %.1f MB (%.0f%%), guardada %.1f MB,"
+                        + " %d préstamos, %d con búfer menor, %d esperas (%d ms)", limit / mb, leased / mb, peak / mb,
+                100.0 * peak / limit, pooled / mb, leases, reduced, waits, waitedNanos / 1000000);
+    }
+
+    /**
+     * Búfer prestado
+     */
+    public static final class Lease implements Closeable {
+        private final byte[] buffer;
+        private boolean released;
+
+        private Lease(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return Búfer prestado; su longitud es el tamaño concedido
+         */
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package es.unex.srt.utility;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Árbol de Merkle con SHA-256 sobre una lista ordenada de hojas. Dos conjuntos de hojas iguales
+ * dan la misma raíz, así que basta comparar raíces para comparar conjuntos enteros.
+ * <p>
+ * Las hojas y los nodos internos se resumen con prefijos distintos (0x00 y 0x01) para que una
+ * hoja no pueda hacerse pasar por un nodo. Un nodo sin pareja sube tal cual al nivel siguiente.
+ */
+public final class MerkleTree {
+
+    /**
+     * Algoritmo de resumen del árbol
+     */
+    public static final String ALGORITHM = "SHA-256";
+    /**
+     * Lado del hermano en un paso de una prueba de inclusión
+     */
+    public static final byte LEFT = 0, RIGHT = 1;
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Resumen de una hoja
+     *
+     * @param leaf Contenido de la hoja
+     * @return H(0x00 || hoja)
+     */
+    public static byte[] hashLeaf(byte[] leaf) {
+        MessageDigest digest = newDigest();
+        digest.update((byte) 0);
+        return digest.digest(leaf);
+    }
+
+    /**
+     * Resumen de un nodo interno
+     *
+     * @param left  Resumen del hijo izquierdo
+     * @param right Resumen del hijo derecho
+     * @return H(0x01 || izquierdo || derecho)
+     */
+    public static byte[] hashNode(byte[] left, byte[] right) {
+        MessageDigest digest = newDigest();
+        digest.update((byte) 1);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    /**
+     * Calcula la raíz a partir de los resúmenes de las hojas, ya ordenados
+     *
+     * @param leafHashes Resúmenes de las hojas (<code>hashLeaf</code>)
+     * @return Raíz del árbol; el resumen de la cadena vacía si no hay hojas
+     */
+    public static byte[] root(List<byte[]> leafHashes) {
+        if (leafHashes.isEmpty()) {
+            return newDigest().digest();
+        }
+        List<byte[]> level = leafHashes;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? hashNode(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Calcula todos los niveles del árbol, de las hojas a la raíz, para poder sacar pruebas
+     *
+     * @param leafHashes Resúmenes de las hojas (<code>hashLeaf</code>), ya ordenados; al menos uno
+     * @return Niveles; el primero son las hojas y el último contiene solo la raíz
+     */
+    public static List<List<byte[]>> levels(List<byte[]> leafHashes) {
+        List<List<byte[]>> levels = new ArrayList<>();
+        List<byte[]> level = leafHashes;
+        levels.add(level);
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? hashNode(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            levels.add(next);
+            level = next;
+        }
+        return levels;
+    }
+
+    /**
+     * Prueba de inclusión de una hoja: los hermanos en el camino hasta la raíz. Cada paso es un
+     * byte con el lado del hermano (<code>LEFT</code> o <code>RIGHT</code>) seguido de su resumen;
+     * los niveles en que el nodo sube sin pareja no aportan paso.
+     *
+     * @param levels Niveles de <code>levels</code>
+     * @param index  Posición de la hoja
+     * @return Pasos de la prueba
+     */
+    public static List<byte[]> proof(List<List<byte[]>> levels, int index) {
+        List<byte[]> steps = new ArrayList<>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            List<byte[]> level = levels.get(l);
+            int sibling = index ^ 1;
+            if (sibling < level.size()) {
+                byte[] hash = level.get(sibling);
+                byte[] step = new byte[hash.length + 1];
+                step[0] = sibling < index ? LEFT : RIGHT;
+                System.arraycopy(hash, 0, step, 1, hash.length);
+                steps.add(step);
+            }
+            index /= 2;
+        }
+        return steps;
+    }
+
+    /**
+     * Recalcula la raíz a partir de una hoja y su prueba de inclusión
+     *
+     * @param leafHash Resumen de la hoja
+     * @param proof    Pasos de <code>proof</code>
+     * @return Raíz resultante, que hay que comparar con la esperada
+     */
+    public static byte[] rootFromProof(byte[] leafHash, List<byte[]> proof) {
+        byte[] node = leafHash;
+        for (byte[] step : proof) {
+            byte[] hash = new byte[step.length - 1];
+            System.arraycopy(step, 1, hash, 0, hash.length);
+            node = step[0] == LEFT ? hashNode(hash, node) : hashNode(node, hash);
+        }
+        return node;
+    }
+
+    /**
+     * Pasa un resumen a hexadecimal
+     *
+     * @param bytes Resumen
+     * @return Cadena hexadecimal en minúsculas
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+}
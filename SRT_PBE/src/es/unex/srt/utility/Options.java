@@ -35,12 +35,18 @@ public class Options implements Serializable {
 	 * -Hash/Mac
 	 * -Cifrado de claveublica
 	 * -Firma digital
+	 * -Archivo cifrado con varios ficheros
+	 * -Cifrado por bloques actualizable
+	 * -Cifrado en varios volúmenes
 	 */
 	public final static byte OP_NONE 				= 0;
 	public final static byte OP_SYMMETRIC_CIPHER 	= 1;
 	public final static byte OP_HASH_MAC 			= 10;
 	public final static byte OP_PUBLIC_CIPHER 		= 20;
 	public final static byte OP_SIGNED 				= 30;
+	public final static byte OP_ARCHIVE 			= 40;
+	public final static byte OP_BLOCKS 				= 50;
+	public final static byte OP_VOLUME 				= 60;
 	/**
 	 * Ningun algoritmo
 	 */
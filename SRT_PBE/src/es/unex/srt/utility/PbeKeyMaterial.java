@@ -0,0 +1,309 @@
+package es.unex.srt.utility;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.RC2ParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+/**
+ * Clave e IV de los algoritmos PBE de <code>Options</code>, derivados igual que los deriva el JCE
+ * (SunJCE) al iniciar el cifrador PBE.
+ * <p>
+ * El cifrador PBE no deja ver la clave ni cambiar el IV, y para descifrar un fichero a trozos hace
+ * falta empezar cada trozo con otro IV. Esta clase repite la derivación una vez y ofrece el
+ * cifrador de bloque equivalente (DES, DESede o RC2 en CBC) con el IV que se quiera:
+ * <ul>
+ * <li>PBEWithMD5AndDES: PBES1 de PKCS #5 (MD5 iterado sobre contraseña y sal).</li>
+ * <li>PBEWithMD5AndTripleDES: la variante propia de SunJCE, que deriva cada mitad de la sal por separado.</li>
+ * <li>PBEWithSHA1AndDESede y PBEWithSHA1AndRC2_40: la derivación de PKCS #12 (RFC 7292, apéndice B) con SHA-1.</li>
+ * </ul>
+ */
+final class PbeKeyMaterial {
+
+    /**
+     * Tamaño de bloque (y de IV) de DES, DESede y RC2
+     */
+    static final int BLOCK_LENGTH = 8;
+    /**
+     * Tamaño de bloque de SHA-1 en la derivación de PKCS #12
+     */
+    private static final int PKCS12_V = 64;
+    private static final int PKCS12_U = 20;
+    private static final byte PKCS12_KEY = 1;
+    private static final byte PKCS12_IV = 2;
+    /**
+     * Algoritmo del valor de comprobación de la clave
+     */
+    private static final String CHECK_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Algoritmo de cifrado de bloque (DES, DESede o RC2)
+     */
+    private final String blockAlgorithm;
+    /**
+     * Clave de cifrado
+     */
+    private final SecretKey key;
+    /**
+     * IV del primer bloque
+     */
+    private final byte[] iv;
+
+    /**
+     * Constructor. Realiza la derivación del algoritmo PBE
+     *
+     * @param pbeAlgorithm   Algoritmo PBE de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario; como en el JCE, solo ASCII imprimible
+     * @param salt           Sal de la cabecera
+     * @param iterationCount Iteraciones a realizar
+     * @throws GeneralSecurityException si el algoritmo o los parámetros no son válidos
+     */
+    PbeKeyMaterial(String pbeAlgorithm, String password, byte[] salt, int iterationCount)
+            throws GeneralSecurityException {
+        blockAlgorithm = KeyMaterial.blockAlgorithm(pbeAlgorithm);
+        int keyLength = KeyMaterial.keyLength(blockAlgorithm);
+        if (iterationCount <= 0) {
+            throw new InvalidAlgorithmParameterException("Las iteraciones deben ser positivas");
+        }
+        for (int i = 0; i < password.length(); i++) {
+            char ch = password.charAt(i);
+            if (ch < 0x20 || ch > 0x7e) {
+                throw new InvalidKeySpecException("La contraseña no es ASCII");
+            }
+        }
+        byte[] derived;
+        if (pbeAlgorithm.startsWith("PBEWithMD5")) {
+            if (salt.length != 8) {
+                throw new InvalidAlgorithmParameterException("La sal debe tener 8 bytes");
+            }
+            byte[] passwordBytes = password.getBytes(StandardCharsets.US_ASCII);
+            derived = "DES".equals(blockAlgorithm) ? pbes1(passwordBytes, salt, iterationCount)
+                    : tripleDes(passwordBytes, salt, iterationCount);
+            Arrays.fill(passwordBytes, (byte) 0);
+        } else {
+            derived = new byte[keyLength + BLOCK_LENGTH];
+            byte[] k = pkcs12(password, salt, iterationCount, PKCS12_KEY, keyLength);
+            byte[] v = pkcs12(password, salt, iterationCount, PKCS12_IV, BLOCK_LENGTH);
+            System.arraycopy(k, 0, derived, 0, keyLength);
+            System.arraycopy(v, 0, derived, keyLength, BLOCK_LENGTH);
+            Arrays.fill(k, (byte) 0);
+        }
+        key = new SecretKeySpec(derived, 0, keyLength, blockAlgorithm);
+        iv = Arrays.copyOfRange(derived, keyLength, keyLength + BLOCK_LENGTH);
+        Arrays.fill(derived, (byte) 0);
+    }
+
+    /**
+     * PBES1: MD5 de contraseña y sal, iterado; la clave son los 8 primeros bytes y el IV los 8 siguientes
+     */
+    private static byte[] pbes1(byte[] password, byte[] salt, int iterationCount) throws GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        md.update(password);
+        md.update(salt);
+        byte[] result = md.digest();
+        for (int i = 1; i < iterationCount; i++) {
+            md.update(result);
+            md.digest(result, 0, result.length);
+        }
+        return result;
+    }
+
+    /**
+     * Variante de SunJCE para DESede: cada mitad de la sal da 16 bytes (MD5 iterado de la mitad y la
+     * contraseña). Si las dos mitades son iguales, se invierte la primera para que no salgan iguales
+     */
+    private static byte[] tripleDes(byte[] password, byte[] salt, int iterationCount) throws GeneralSecurityException {
+        byte[] s = salt.clone();
+        if (Arrays.equals(Arrays.copyOfRange(s, 0, 4), Arrays.copyOfRange(s, 4, 8))) {
+            for (int i = 0; i < 2; i++) {
+                byte tmp = s[i];
+                s[i] = s[3 - i];
+                s[3 - i] = tmp;
+            }
+        }
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] result = new byte[32];
+        for (int half = 0; half < 2; half++) {
+            byte[] hashed = Arrays.copyOfRange(s, half * 4, half * 4 + 4);
+            for (int i = 0; i < iterationCount; i++) {
+                md.update(hashed);
+                md.update(password);
+                hashed = md.digest();
+            }
+            System.arraycopy(hashed, 0, result, half * 16, 16);
+        }
+        return result;
+    }
+
+    /**
+     * Derivación de PKCS #12 con SHA-1. La contraseña va en UTF-16BE con dos bytes nulos al final
+     *
+     * @param id     <code>PKCS12_KEY</code> o <code>PKCS12_IV</code>
+     * @param length Bytes a derivar
+     */
+    private static byte[] pkcs12(String password, byte[] salt, int iterationCount, byte id, int length)
+            throws GeneralSecurityException {
+        byte[] passwordBytes = new byte[(password.length() + 1) * 2];
+        for (int i = 0; i < password.length(); i++) {
+            passwordBytes[2 * i] = (byte) (password.charAt(i) >>> 8);
+            passwordBytes[2 * i + 1] = (byte) password.charAt(i);
+        }
+        byte[] d = new byte[PKCS12_V];
+        Arrays.fill(d, id);
+        int sLength = PKCS12_V * ((salt.length + PKCS12_V - 1) / PKCS12_V);
+        int pLength = PKCS12_V * ((passwordBytes.length + PKCS12_V - 1) / PKCS12_V);
+        byte[] input = new byte[sLength + pLength];
+        for (int i = 0; i < sLength; i++) {
+            input[i] = salt[i % salt.length];
+        }
+        for (int i = 0; i < pLength; i++) {
+            input[sLength + i] = passwordBytes[i % passwordBytes.length];
+        }
+        Arrays.fill(passwordBytes, (byte) 0);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] result = new byte[length];
+        byte[] b = new byte[PKCS12_V];
+        for (int offset = 0; ; offset += PKCS12_U) {
+            md.update(d);
+            md.update(input);
+            byte[] a = md.digest();
+            for (int i = 1; i < iterationCount; i++) {
+                a = md.digest(a);
+            }
+            System.arraycopy(a, 0, result, offset, Math.min(PKCS12_U, length - offset));
+            if (offset + PKCS12_U >= length) {
+                break;
+            }
+            // I_j = (I_j + B + 1) mod 2^(8v), con B = A repetido hasta v bytes
+            for (int i = 0; i < PKCS12_V; i++) {
+                b[i] = a[i % PKCS12_U];
+            }
+            for (int j = 0; j < input.length; j += PKCS12_V) {
+                int carry = 1;
+                for (int i = PKCS12_V - 1; i >= 0; i--) {
+                    carry += (input[j + i] & 0xff) + (b[i] & 0xff);
+                    input[j + i] = (byte) carry;
+                    carry >>>= 8;
+                }
+            }
+        }
+        Arrays.fill(input, (byte) 0);
+        return result;
+    }
+
+    /**
+     * @return Copia del IV del primer bloque
+     */
+    byte[] getIv() {
+        return iv.clone();
+    }
+
+    /**
+     * Valor de comprobación de la clave para <code>Header.EXT_KEY_CHECK</code>: HMAC de
+     * <code>KEY_CHECK_BLOCK</code> con la clave derivada, truncado. No sale del cifrador, así que no
+     * coincide con ningún bloque del contenido cifrado
+     *
+     * @return Valor de <code>KEY_CHECK_LENGTH</code> bytes
+     * @throws GeneralSecurityException si no se puede calcular el HMAC
+     */
+    byte[] keyCheck() throws GeneralSecurityException {
+        byte[] encoded = key.getEncoded();
+        try {
+            Mac mac = Mac.getInstance(CHECK_ALGORITHM);
+            mac.init(new SecretKeySpec(encoded, CHECK_ALGORITHM));
+            return Arrays.copyOf(mac.doFinal(Header.KEY_CHECK_BLOCK), Header.KEY_CHECK_LENGTH);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Comprueba la clave con el valor de la cabecera. Los ficheros anteriores guardan
+     * <code>KEY_CHECK_BLOCK</code> cifrado con el propio cifrador, que se sigue aceptando
+     *
+     * @param check Valor de <code>Header.EXT_KEY_CHECK</code>
+     * @return True si la clave es la misma con la que se calculó
+     * @throws GeneralSecurityException si no se puede calcular el HMAC
+     */
+    boolean matchesKeyCheck(byte[] check) throws GeneralSecurityException {
+        if (check.length == Header.KEY_CHECK_LENGTH) {
+            return MessageDigest.isEqual(keyCheck(), check);
+        }
+        try {
+            Cipher cipher = newCipher(Cipher.DECRYPT_MODE, iv, "PKCS5Padding");
+            return MessageDigest.isEqual(cipher.doFinal(check), Header.KEY_CHECK_BLOCK);
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            return false; // Relleno incorrecto: la clave no es la misma
+        }
+    }
+
+    /**
+     * Crea un cifrador CBC con la clave derivada
+     *
+     * @param opmode  <code>Cipher.ENCRYPT_MODE</code> o <code>Cipher.DECRYPT_MODE</code>
+     * @param iv      IV de <code>BLOCK_LENGTH</code> bytes: <code>getIv()</code> para el primer bloque,
+     *                o el bloque cifrado anterior para empezar en medio
+     * @param padding PKCS5Padding o NoPadding
+     * @return Cifrador listo para usar
+     * @throws GeneralSecurityException si no se puede iniciar
+     */
+    Cipher newCipher(int opmode, byte[] iv, String padding) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(blockAlgorithm + "/CBC/" + padding);
+        if ("RC2".equals(blockAlgorithm)) {
+            cipher.init(opmode, key, new RC2ParameterSpec(40, iv));
+        } else {
+            cipher.init(opmode, key, new IvParameterSpec(iv));
+        }
+        return cipher;
+    }
+
+    /**
+     * Test interno de la clase: comprueba que cifra igual que el JCE con cada algoritmo
+     *
+     * @throws GeneralSecurityException GeneralSecurityException interna
+     */
+    private static void test() throws GeneralSecurityException {
+        byte[][] salts = {{0x00, 0x10, 0x21, 0x32, 0x43, 0x54, 0x65, 0x77}, {1, 2, 3, 4, 1, 2, 3, 4}};
+        byte[] data = "Bloques de prueba para comparar con el cifrador PBE del JCE".getBytes(StandardCharsets.US_ASCII);
+        for (String algorithm : Options.symmetricalAlgorithms) {
+            for (String password : new String[]{"", "Spike",
+                    "contrasena ASCII mas larga que un bloque de SHA-1, para que ocupe dos bloques"}) {
+                for (byte[] salt : salts) {
+                    for (int iterations : new int[]{1, 1024}) {
+                        SecretKey pbeKey = SecretKeyFactory.getInstance(algorithm)
+                                .generateSecret(new PBEKeySpec(password.toCharArray()));
+                        Cipher jce = Cipher.getInstance(algorithm);
+                        jce.init(Cipher.ENCRYPT_MODE, pbeKey, new PBEParameterSpec(salt, iterations));
+                        PbeKeyMaterial own = new PbeKeyMaterial(algorithm, password, salt, iterations);
+                        Cipher cipher = own.newCipher(Cipher.ENCRYPT_MODE, own.getIv(), "PKCS5Padding");
+                        if (!Arrays.equals(jce.doFinal(data), cipher.doFinal(data))) {
+                            System.out.println("Esto no funciona: " + algorithm + " / " + password + " / " + iterations);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Todo funciona guay");
+    }
+
+    /*
+    public static void main(String[] args) throws GeneralSecurityException {
+        test();
+    }
+    */
+}
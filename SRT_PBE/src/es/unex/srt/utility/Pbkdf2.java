@@ -0,0 +1,45 @@
+package es.unex.srt.utility;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * PBKDF2 con HMAC-SHA1 (RFC 8018) del JCE, compartido por las clases que derivan claves de una
+ * contraseña (<code>SimpleMAC</code>, <code>KeyMaterial</code>, <code>SpotCheck</code> y
+ * <code>AppendMAC</code>).
+ */
+public final class Pbkdf2 {
+
+    /**
+     * Nombre JCE del algoritmo
+     */
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    private Pbkdf2() {
+    }
+
+    /**
+     * Deriva una clave con <code>SecretKeyFactory("PBKDF2WithHmacSHA1")</code>. Como en el JCE, la
+     * longitud en bits se trunca a bytes completos.
+     *
+     * @param password       Contraseña
+     * @param salt           Sal
+     * @param iterationCount Iteraciones a realizar
+     * @param keyLength      Longitud de la clave en bits
+     * @return Clave derivada, de <code>keyLength / 8</code> bytes
+     * @throws GeneralSecurityException si los parámetros no son válidos
+     */
+    public static byte[] deriveKey(String password, byte[] salt, int iterationCount, int keyLength)
+            throws GeneralSecurityException {
+        if (keyLength / 8 <= 0 || iterationCount <= 0) {
+            throw new GeneralSecurityException("Longitud de clave o iteraciones no válidas");
+        }
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterationCount, keyLength);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
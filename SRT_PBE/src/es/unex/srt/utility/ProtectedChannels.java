@@ -0,0 +1,96 @@
+package es.unex.srt.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Adaptadores de canales NIO sobre <code>ProtectedOutputStream</code> y <code>ProtectedInputStream</code>,
+ * al estilo de <code>java.nio.channels.Channels</code>.
+ */
+public final class ProtectedChannels {
+
+    private ProtectedChannels() {
+    }
+
+    /**
+     * Canal que cifra o calcula el MAC de lo que se escribe en él
+     *
+     * @param ch             Canal de destino. Se cierra al cerrar el canal devuelto
+     * @param algorithm      Algoritmo de cifrado, MAC o hash
+     * @param password       Contraseña o secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @return Canal protector
+     * @throws GeneralSecurityException si el algoritmo o la clave no son válidos
+     */
+    public static WritableByteChannel newWritableChannel(WritableByteChannel ch, String algorithm, String password,
+                                                         Integer iterationCount) throws GeneralSecurityException {
+        return Channels.newChannel(new ProtectedOutputStream(Channels.newOutputStream(ch), algorithm, password,
+                iterationCount));
+    }
+
+    /**
+     * Canal que entrega en claro (y verificado) el contenido protegido leído de <code>ch</code>
+     *
+     * @param ch             Canal de origen. Se cierra al cerrar el canal devuelto
+     * @param password       Contraseña o secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @return Canal lector
+     */
+    public static ReadableByteChannel newReadableChannel(ReadableByteChannel ch, String password,
+                                                         Integer iterationCount) {
+        return Channels.newChannel(new ProtectedInputStream(Channels.newInputStream(ch), password, iterationCount));
+    }
+
+    /**
+     * Test interno de la clase: protege con cada algoritmo a través de los canales y lo recupera
+     *
+     * @throws IOException              IOException interna
+     * @throws GeneralSecurityException GeneralSecurityException interna
+     */
+    private static void test() throws IOException, GeneralSecurityException {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        String[][] families = {Options.symmetricalAlgorithms, Options.macAlgorithms, Options.hashAlgorithms};
+        for (String[] algorithms : families) {
+            for (String algorithm : algorithms) {
+                ByteArrayOutputStream protectedBytes = new ByteArrayOutputStream();
+                WritableByteChannel out = newWritableChannel(Channels.newChannel(protectedBytes), algorithm,
+                        "Spike", 1024);
+                for (int off = 0; off < data.length; off += 7000) {
+                    out.write(ByteBuffer.wrap(data, off, Math.min(7000, data.length - off)));
+                }
+                out.close();
+
+                ReadableByteChannel in = newReadableChannel(Channels.newChannel(
+                        new ByteArrayInputStream(protectedBytes.toByteArray())), "Spike", 1024);
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                while (in.read(buffer) >= 0) {
+                    plain.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                in.close();
+                if (!Arrays.equals(data, plain.toByteArray())) {
+                    System.out.println("Esto no funciona: " + algorithm);
+                    return;
+                }
+            }
+        }
+        System.out.println("Todo funciona guay");
+    }
+
+    /*
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
+        test();
+    }
+    */
+}
@@ -0,0 +1,294 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.Mac;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * InputStream que lee un contenido protegido y entrega el contenido en claro. La cabecera
+ * (<code>Header</code>) se analiza de forma perezosa en la primera lectura.
+ * <p>
+ * Con ficheros cifrados descifra al vuelo. Con ficheros hash/MAC entrega el contenido tal cual
+ * y, al llegar al final, comprueba el resumen: si no coincide, la última lectura lanza una
+ * <code>IOException</code>. Acepta tanto los ficheros de <code>SimpleHash</code>/<code>SimpleMAC</code>
+ * (resumen en la cabecera) como los de <code>ProtectedOutputStream</code> (resumen en cola).
+ */
+public class ProtectedInputStream extends FilterInputStream {
+
+    /**
+     * Tamaño del búfer de lectura adelantada
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Contraseña de usuario
+     */
+    private String password;
+    /**
+     * Iteraciones a realizar
+     */
+    private Integer iterationCount;
+    /**
+     * Cabecera leída, o null si aún no se ha leído
+     */
+    private Header header;
+    /**
+     * Origen de los datos en claro una vez leída la cabecera
+     */
+    private InputStream source;
+    /**
+     * Resumidor para el modo hash
+     */
+    private MessageDigest hasher;
+    /**
+     * MAC para el modo MAC
+     */
+    private Mac mac;
+    /**
+     * Longitud de la cola con el resumen, 0 si el resumen va en la cabecera
+     */
+    private int trailerLength;
+    /**
+     * Búfer que retiene los últimos bytes leídos, que podrían ser la cola
+     */
+    private byte[] window;
+    /**
+     * Inicio y fin de los datos pendientes en <code>window</code>
+     */
+    private int start, end;
+    /**
+     * Indica si se ha llegado al final del origen
+     */
+    private boolean eof;
+    /**
+     * Resultado de la verificación: null mientras no se haya terminado de leer
+     */
+    private Boolean verified;
+    /**
+     * Resumen guardado (cabecera o cola), conocido al terminar de leer
+     */
+    private byte[] authenticator;
+
+    /**
+     * Constructor
+     *
+     * @param in             InputStream con el contenido protegido
+     * @param password       Contraseña o secreto compartido
+     * @param iterationCount Iteraciones a realizar (cifrado y MAC) si la cabecera no las guarda
+     */
+    public ProtectedInputStream(InputStream in, String password, Integer iterationCount) {
+        super(in);
+        this.password = password;
+        this.iterationCount = iterationCount;
+    }
+
+    /**
+     * Devuelve la cabecera, leyéndola si aún no se ha hecho. Si la cabecera lleva valor de
+     * comprobación de clave, se comprueba aquí, antes de leer el contenido
+     *
+     * @return Cabecera del contenido protegido
+     * @throws IOException si no hay una cabecera válida, el algoritmo no está disponible o la
+     *                     contraseña no corresponde al fichero
+     */
+    public Header getHeader() throws IOException {
+        if (header == null) {
+            Header h = new Header();
+            if (!h.load(in)) {
+                throw new IOException("Cabecera no válida");
+            }
+            byte[] check = h.getExtension(Header.EXT_KEY_CHECK);
+            try {
+                if (h.getOperation() == Options.OP_SYMMETRIC_CIPHER) {
+                    PbeKeyMaterial keys = new PbeKeyMaterial(h.getAlgorithm1(), password, h.getData(),
+                            h.getIterationCount(iterationCount));
+                    if (check != null && !keys.matchesKeyCheck(check)) {
+                        throw new IOException("La contraseña no es válida para este fichero");
+                    }
+                    source = new CipherInputStream(in, keys.newCipher(Cipher.DECRYPT_MODE, keys.getIv(), "PKCS5Padding"));
+                    verified = Boolean.TRUE;
+                } else if (h.getOperation() == Options.OP_HASH_MAC) {
+                    if (Options.isTypeAlgorithm(Options.macAlgorithms, h.getAlgorithm2())) {
+                        mac = SimpleMAC.createMac(h.getAlgorithm2(), password, h.getIterationCount(iterationCount));
+                        trailerLength = h.getData().length == 0 ? mac.getMacLength() : 0;
+                        if (check != null && !MessageDigest.isEqual(check, SimpleMAC.keyCheck(mac))) {
+                            throw new IOException("El secreto no es válido para este fichero");
+                        }
+                    } else {
+                        hasher = SimpleHash.createDigest(h.getAlgorithm2(), password);
+                        trailerLength = h.getData().length == 0 ? hasher.getDigestLength() : 0;
+                        if (check != null
+                                && !MessageDigest.isEqual(check, SimpleHash.keyCheck(h.getAlgorithm2(), password))) {
+                            throw new IOException("El secreto no es válido para este fichero");
+                        }
+                    }
+                    window = new byte[BUFFER_SIZE + trailerLength];
+                    source = in;
+                } else {
+                    throw new IOException("Operación no soportada: " + h.getOperation());
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("No se pudo preparar el algoritmo", e);
+            }
+            header = h;
+        }
+        return header;
+    }
+
+    /**
+     * @return True si el contenido se leyó entero y el resumen coincide; false si aún no se ha
+     * terminado de leer o no coincide
+     */
+    public boolean isVerified() {
+        return Boolean.TRUE.equals(verified) && (window == null || eof);
+    }
+
+    /**
+     * @return Hash/MAC guardado en el fichero, o null si aún no se ha terminado de leer o no
+     * es un fichero hash/MAC
+     */
+    public byte[] getAuthenticator() {
+        return authenticator;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n;
+        do {
+            n = read(b, 0, 1);
+        } while (n == 0);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        getHeader();
+        if (window == null) {
+            return source.read(b, off, len);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof && end - start - trailerLength <= 0) {
+            fill();
+        }
+        int available = end - start - trailerLength;
+        if (available <= 0) {
+            checkTrailer();
+            return -1;
+        }
+        int n = Math.min(len, available);
+        System.arraycopy(window, start, b, off, n);
+        if (hasher != null) {
+            hasher.update(b, off, n);
+        } else {
+            mac.update(b, off, n);
+        }
+        start += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        getHeader();
+        if (window == null) {
+            return source.available();
+        }
+        return Math.max(0, end - start - trailerLength);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Saltar sin leer impediría verificar el resumen
+        byte[] b = new byte[(int) Math.min(n, BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (source != null && source != in) {
+            source.close();
+        } else {
+            in.close();
+        }
+    }
+
+    /**
+     * Lee más datos del origen en <code>window</code>, compactándolo si hace falta
+     */
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(window, start, window, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int n = source.read(window, end, window.length - end);
+        if (n < 0) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    /**
+     * Compara el resumen calculado con el de la cabecera o la cola
+     *
+     * @throws IOException si no coinciden
+     */
+    private void checkTrailer() throws IOException {
+        if (verified == null) {
+            authenticator = trailerLength == 0 ? header.getData() : Arrays.copyOfRange(window, start, end);
+            byte[] calculated = hasher != null ? hasher.digest() : mac.doFinal();
+            verified = MessageDigest.isEqual(authenticator, calculated);
+        }
+        if (!verified) {
+            throw new IOException("El hash/MAC no coincide: contenido alterado o secreto incorrecto");
+        }
+    }
+
+    /**
+     * Lee hasta el final un contenido con el resumen en cola (formato de <code>ProtectedOutputStream</code>),
+     * entregando todo menos la cola. Lo usan <code>SimpleHash</code> y <code>SimpleMAC</code> para
+     * verificar estos ficheros
+     *
+     * @param in     Contenido tras la cabecera
+     * @param length Longitud de la cola
+     * @param update Destino de los bytes anteriores a la cola
+     * @return Cola leída, o null si el contenido es más corto que ella
+     * @throws IOException si falla la lectura
+     */
+    static byte[] readTrailer(InputStream in, int length, SimpleCipher.BlockConsumer update) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE + length];
+        int held = 0;
+        int n;
+        while ((n = in.read(buffer, held, buffer.length - held)) >= 0) {
+            held += n;
+            int data = held - length;
+            if (data > 0) {
+                update.accept(buffer, 0, data);
+                System.arraycopy(buffer, data, buffer, 0, length);
+                held = length;
+            }
+        }
+        return held == length ? Arrays.copyOf(buffer, length) : null;
+    }
+}
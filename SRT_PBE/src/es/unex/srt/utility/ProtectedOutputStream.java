@@ -0,0 +1,167 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * OutputStream que protege al vuelo todo lo que se escribe en él: emite la cabecera
+ * (<code>Header</code>) y después cifra, hashea o calcula el MAC sin copias intermedias.
+ * <p>
+ * El cifrado produce exactamente el mismo formato que <code>SimpleCipher</code>, con el valor de
+ * comprobación de clave en la cabecera, que también llevan los de hash y MAC. Como en
+ * hash y MAC el resumen no se conoce hasta el final, se escribe una cabecera con datos
+ * vacíos y el resumen se añade tras el contenido (cola). <code>ProtectedInputStream</code>
+ * entiende ambos formatos.
+ */
+public class ProtectedOutputStream extends FilterOutputStream {
+
+    /**
+     * Cabecera que se emitirá antes del primer byte
+     */
+    private Header header;
+    /**
+     * Destino real de los datos: el propio flujo o un CipherOutputStream sobre él
+     */
+    private OutputStream sink;
+    /**
+     * Resumidor para el modo hash
+     */
+    private MessageDigest hasher;
+    /**
+     * MAC para el modo MAC
+     */
+    private Mac mac;
+    /**
+     * Indica si la cabecera ya se ha escrito
+     */
+    private boolean headerWritten;
+    /**
+     * Indica si el flujo ya se ha cerrado
+     */
+    private boolean closed;
+
+    /**
+     * Constructor para cifrado o MAC, según el tipo de <code>algorithm</code>
+     *
+     * @param out            OutputStream de destino. Se cierra al cerrar este flujo
+     * @param algorithm      Algoritmo de <code>Options.symmetricalAlgorithms</code> o <code>Options.macAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar
+     * @throws GeneralSecurityException si el algoritmo o la clave no son válidos
+     */
+    public ProtectedOutputStream(OutputStream out, String algorithm, String password, Integer iterationCount)
+            throws GeneralSecurityException {
+        super(out);
+        if (Options.isTypeAlgorithm(Options.symmetricalAlgorithms, algorithm)) {
+            byte[] sal = RandomPool.bytes(8);
+            header = new Header(Options.OP_SYMMETRIC_CIPHER, algorithm, Options.authenticationAlgorithms[0], sal);
+            header.setIterationCount(iterationCount);
+            PbeKeyMaterial keys = new PbeKeyMaterial(algorithm, password, sal, iterationCount);
+            header.setExtension(Header.EXT_KEY_CHECK, keys.keyCheck());
+            sink = new CipherOutputStream(out, keys.newCipher(Cipher.ENCRYPT_MODE, keys.getIv(), "PKCS5Padding"));
+        } else if (Options.isTypeAlgorithm(Options.macAlgorithms, algorithm)) {
+            header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], algorithm, new byte[0]);
+            header.setIterationCount(iterationCount);
+            mac = SimpleMAC.createMac(algorithm, password, iterationCount);
+            header.setExtension(Header.EXT_KEY_CHECK, SimpleMAC.keyCheck(mac));
+            sink = out;
+        } else {
+            initHash(algorithm, password);
+        }
+    }
+
+    /**
+     * Constructor para hash
+     *
+     * @param out       OutputStream de destino. Se cierra al cerrar este flujo
+     * @param algorithm Algoritmo hash utilizado
+     * @param secret    Secreto compartido utilizado
+     * @throws GeneralSecurityException si el algoritmo no existe
+     */
+    public ProtectedOutputStream(OutputStream out, String algorithm, String secret) throws GeneralSecurityException {
+        super(out);
+        initHash(algorithm, secret);
+    }
+
+    /**
+     * Prepara el modo hash
+     *
+     * @param algorithm Algoritmo hash utilizado
+     * @param secret    Secreto compartido utilizado
+     */
+    private void initHash(String algorithm, String secret) throws GeneralSecurityException {
+        header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], algorithm, new byte[0]);
+        hasher = SimpleHash.createDigest(algorithm, secret);
+        header.setExtension(Header.EXT_KEY_CHECK, SimpleHash.keyCheck(algorithm, secret));
+        sink = out;
+    }
+
+    /**
+     * @return Cabecera que emite (o ha emitido) este flujo
+     */
+    public Header getHeader() {
+        return header;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Flujo cerrado");
+        }
+        writeHeader();
+        if (hasher != null) {
+            hasher.update(b, off, len);
+        } else if (mac != null) {
+            mac.update(b, off, len);
+        }
+        sink.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeHeader();
+        sink.flush();
+    }
+
+    /**
+     * Termina la protección: vacía el cifrador o escribe la cola con el hash/MAC, y
+     * cierra el flujo de destino.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        writeHeader();
+        if (hasher != null) {
+            out.write(hasher.digest());
+        } else if (mac != null) {
+            out.write(mac.doFinal());
+        }
+        closed = true;
+        sink.close();
+    }
+
+    /**
+     * Escribe la cabecera si todavía no se ha hecho
+     */
+    private void writeHeader() throws IOException {
+        if (!headerWritten) {
+            headerWritten = true;
+            if (!header.save(out)) {
+                throw new IOException("No se pudo escribir la cabecera");
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package es.unex.srt.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publicador reactivo de <code>ByteBuffer</code> con contrapresión: solo lee del origen (y cifra,
+ * hashea o calcula el MAC) cuando el suscriptor ha pedido más bloques.
+ * <p>
+ * El proyecto compila para Java 8, así que <code>Subscriber</code> y <code>Subscription</code>
+ * reproducen el contrato de <code>java.util.concurrent.Flow</code>; adaptarlos a
+ * <code>Flow.Publisher&lt;ByteBuffer&gt;</code> es inmediato en Java 9 o superior.
+ * Admite un único suscriptor.
+ */
+public class ProtectedPublisher {
+
+    /**
+     * Tamaño de los bloques leídos del origen
+     */
+    private static final int CHUNK_SIZE = 16384;
+
+    /**
+     * Suscriptor, con la misma semántica que <code>Flow.Subscriber</code>
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(ByteBuffer item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Suscripción, con la misma semántica que <code>Flow.Subscription</code>
+     */
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * Origen de los datos
+     */
+    private InputStream source;
+    /**
+     * Flujo protector cuando se publica contenido protegido, null si se publica el origen tal cual
+     */
+    private ProtectedOutputStream protector;
+    /**
+     * Bytes ya protegidos pendientes de publicar
+     */
+    private ByteArrayOutputStream pending;
+    /**
+     * Ejecutor donde se lee y se entrega a los suscriptores
+     */
+    private Executor executor;
+    /**
+     * Indica si ya hay un suscriptor
+     */
+    private AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Constructor que publica el contenido de <code>source</code> tal cual. Con un
+     * <code>ProtectedInputStream</code> publica el contenido en claro de un fichero protegido.
+     *
+     * @param source   Origen de los datos. Se cierra al terminar o cancelar
+     * @param executor Ejecutor para las lecturas y las entregas
+     */
+    public ProtectedPublisher(InputStream source, Executor executor) {
+        this.source = source;
+        this.executor = executor;
+    }
+
+    /**
+     * Constructor que publica el contenido de <code>plain</code> protegido con
+     * <code>ProtectedOutputStream</code> (cabecera incluida).
+     *
+     * @param plain          Contenido en claro. Se cierra al terminar o cancelar
+     * @param algorithm      Algoritmo de cifrado, MAC o hash
+     * @param password       Contraseña o secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @param executor       Ejecutor para las lecturas y las entregas
+     * @throws GeneralSecurityException si el algoritmo o la clave no son válidos
+     */
+    public ProtectedPublisher(InputStream plain, String algorithm, String password, Integer iterationCount,
+                              Executor executor) throws GeneralSecurityException {
+        this(plain, executor);
+        pending = new ByteArrayOutputStream(CHUNK_SIZE + 64);
+        protector = new ProtectedOutputStream(pending, algorithm, password, iterationCount);
+    }
+
+    /**
+     * Suscribe a <code>subscriber</code>. Nada se lee hasta que pida bloques.
+     *
+     * @param subscriber Suscriptor
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Este publicador solo admite un suscriptor"));
+            return;
+        }
+        new Emitter(subscriber).start();
+    }
+
+    /**
+     * Suscripción que lee un bloque por cada unidad de demanda. Todas las señales al suscriptor,
+     * también <code>onError</code> y <code>onComplete</code>, salen del hilo que drena; las llamadas
+     * a <code>request</code> y <code>cancel</code> solo apuntan lo pedido y lo despiertan
+     */
+    private class Emitter implements Subscription {
+        private final Subscriber subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        /**
+         * Primer error de uso de la suscripción, pendiente de señalar
+         */
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private volatile boolean cancelled;
+        /**
+         * Ya se ha señalado el final o se ha cancelado. Solo lo cambia el hilo que drena
+         */
+        private volatile boolean done;
+        private boolean sourceFinished;
+
+        Emitter(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                error.compareAndSet(null, new IllegalArgumentException("La demanda debe ser positiva: " + n));
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Entrega bloques mientras haya demanda; un único hilo drena a la vez
+         */
+        private void drain() {
+            int missed = 1;
+            do {
+                try {
+                    while (!done) {
+                        if (cancelled) {
+                            finish();
+                            break;
+                        }
+                        Throwable e = error.get();
+                        if (e != null) {
+                            finish();
+                            subscriber.onError(e);
+                            break;
+                        }
+                        if (demand.get() == 0) {
+                            break;
+                        }
+                        ByteBuffer next = nextChunk();
+                        if (next == null) {
+                            finish();
+                            subscriber.onComplete();
+                            break;
+                        }
+                        if (demand.get() != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                        subscriber.onNext(next);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!done) {
+                        finish();
+                        subscriber.onError(e);
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Lee el siguiente bloque no vacío
+         *
+         * @return Bloque a publicar o null al terminar
+         */
+        private ByteBuffer nextChunk() throws IOException {
+            if (protector == null) {
+                int n = 0;
+                while (n == 0) {
+                    n = source.read(buffer);
+                }
+                return n < 0 ? null : ByteBuffer.wrap(buffer.clone(), 0, n);
+            }
+            while (pending.size() == 0 && !sourceFinished) {
+                int n = source.read(buffer);
+                if (n < 0) {
+                    sourceFinished = true;
+                    protector.close();
+                } else {
+                    protector.write(buffer, 0, n);
+                }
+            }
+            if (pending.size() == 0) {
+                return null;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(pending.toByteArray());
+            pending.reset();
+            return chunk;
+        }
+
+        /**
+         * Marca el final y cierra el origen, desde el hilo que drena
+         */
+        private void finish() {
+            done = true;
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Test interno de la clase: publica un contenido cifrado pidiendo los bloques de uno en uno y
+     * comprueba que se descifra igual
+     *
+     * @throws Exception Excepción interna
+     */
+    private static void test() throws Exception {
+        byte[] data = new byte[5 * CHUNK_SIZE + 123];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch finished = new CountDownLatch(1);
+        new ProtectedPublisher(new ByteArrayInputStream(data), Options.symmetricalAlgorithms[0], "Spike", 1024,
+                executor).subscribe(new Subscriber() {
+            private Subscription subscription;
+
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            public void onNext(ByteBuffer item) {
+                received.write(item.array(), item.position(), item.remaining());
+                subscription.request(1);
+            }
+
+            public void onError(Throwable throwable) {
+                failure.set(throwable);
+                finished.countDown();
+            }
+
+            public void onComplete() {
+                finished.countDown();
+            }
+        });
+        finished.await();
+        executor.shutdown();
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (InputStream in = new ProtectedInputStream(new ByteArrayInputStream(received.toByteArray()), "Spike",
+                1024)) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                plain.write(buffer, 0, n);
+            }
+        }
+        if (failure.get() == null && Arrays.equals(data, plain.toByteArray())) {
+            System.out.println("Todo funciona guay");
+        } else {
+            System.out.println("Esto no funciona");
+        }
+    }
+
+    /*
+    public static void main(String[] args) throws Exception {
+        test();
+    }
+    */
+}
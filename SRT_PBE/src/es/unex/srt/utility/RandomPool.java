@@ -0,0 +1,144 @@
+package es.unex.srt.utility;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Generador común de sales, vectores de inicialización y nonces.
+ * <p>
+ * Crear un <code>SecureRandom</code> por fichero obliga a sembrarlo cada vez, y con muchos hilos
+ * todos compiten por la fuente de entropía del sistema. Aquí cada hilo tiene su propio generador
+ * (DRBG si la máquina virtual lo tiene, si no SHA1PRNG), sembrado una vez desde un generador
+ * común y resembrado cada <code>RESEED_BYTES</code> bytes generados. Los bytes se generan por
+ * lotes de <code>BATCH</code> y se van entregando sin sincronizar nada; lo entregado se borra del
+ * lote. Los lotes solo se usan para valores que se guardan en claro en las cabeceras; las claves
+ * se generan directamente con {@link #generator()} y los demás secretos con
+ * {@link #secretBytes(int)}.
+ */
+public final class RandomPool {
+
+    /**
+     * Bytes que se generan de una vez
+     */
+    private static final int BATCH = 4096;
+    /**
+     * Bytes generados por un hilo entre dos resiembras
+     */
+    private static final long RESEED_BYTES = 1024 * 1024;
+    /**
+     * Bytes de semilla que se toman del generador común
+     */
+    private static final int SEED_BYTES = 32;
+
+    /**
+     * Generador común del que se siembran los de cada hilo
+     */
+    private static final SecureRandom seeder = new SecureRandom();
+
+    private static final ThreadLocal<Pool> pools = ThreadLocal.withInitial(Pool::new);
+
+    private RandomPool() {
+    }
+
+    /**
+     * Rellena un array con bytes aleatorios
+     *
+     * @param bytes Array a rellenar
+     */
+    public static void nextBytes(byte[] bytes) {
+        pools.get().next(bytes);
+    }
+
+    /**
+     * @param length Número de bytes
+     * @return Array nuevo de bytes aleatorios, por ejemplo una sal o un IV
+     */
+    public static byte[] bytes(int length) {
+        byte[] b = new byte[length];
+        nextBytes(b);
+        return b;
+    }
+
+    /**
+     * @param length Número de bytes
+     * @return Array nuevo de bytes aleatorios para un valor secreto, por ejemplo una ficha de
+     * acceso. Se generan directamente con el generador del hilo, sin pasar por el lote
+     */
+    public static byte[] secretBytes(int length) {
+        byte[] b = new byte[length];
+        generator().nextBytes(b);
+        return b;
+    }
+
+    /**
+     * @return Generador del hilo, para las API que piden un <code>SecureRandom</code>. Solo se debe
+     * usar desde el hilo que lo pide
+     */
+    public static SecureRandom generator() {
+        return pools.get().random;
+    }
+
+    /**
+     * Crea un generador para un hilo, sembrado desde el común
+     */
+    private static SecureRandom createGenerator() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance("DRBG"); // Desde Java 9
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e2) {
+                random = new SecureRandom();
+            }
+        }
+        random.setSeed(seed());
+        return random;
+    }
+
+    /**
+     * Semilla para un hilo. Sale de <code>nextBytes</code> del generador común, que ya está
+     * sembrado: <code>generateSeed</code> iría cada vez a la entropía del sistema, que puede
+     * bloquear, y los hilos se quedarían esperando aquí
+     */
+    private static byte[] seed() {
+        byte[] seed = new byte[SEED_BYTES];
+        seeder.nextBytes(seed);
+        return seed;
+    }
+
+    /**
+     * Generador y lote de un hilo
+     */
+    private static final class Pool {
+        private final SecureRandom random = createGenerator();
+        private final byte[] batch = new byte[BATCH];
+        private int position = BATCH;
+        private long generated;
+
+        void next(byte[] out) {
+            if (out.length > BATCH) {
+                random.nextBytes(out);
+                count(out.length);
+                return;
+            }
+            if (BATCH - position < out.length) {
+                random.nextBytes(batch);
+                position = 0;
+                count(BATCH);
+            }
+            System.arraycopy(batch, position, out, 0, out.length);
+            Arrays.fill(batch, position, position + out.length, (byte) 0);
+            position += out.length;
+        }
+
+        private void count(int n) {
+            generated += n;
+            if (generated >= RESEED_BYTES) {
+                random.setSeed(seed());
+                generated = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Presupuesto de recursos común a todas las operaciones del proceso: caudal de lectura, caudal de
+ * escritura y número de hilos que cifran o resumen a la vez.
+ * <p>
+ * <code>SimpleCipher</code>, <code>SimpleHash</code> y <code>SimpleMAC</code> leen y escriben a
+ * través de {@link #input(InputStream)} y {@link #output(OutputStream)}, y hacen el trabajo dentro
+ * de un {@link #enterWorker()}, así que un trabajo pesado se queda dentro del presupuesto sin
+ * tocar el resto del código. Los límites se pueden cambiar en cualquier momento; los flujos ya
+ * abiertos aplican los nuevos desde su siguiente reserva. Sin límites fijados, el coste es contar
+ * los bytes.
+ */
+public final class ResourceLimits {
+
+    /**
+     * Bytes que reserva cada flujo de una vez, para no sincronizar en cada lectura de un byte
+     */
+    private static final int CHUNK = 8192;
+
+    /**
+     * Caudal de lectura de las operaciones
+     */
+    public static final Throttle READ = new Throttle("lectura");
+    /**
+     * Caudal de escritura de las operaciones
+     */
+    public static final Throttle WRITE = new Throttle("escritura");
+
+    /**
+     * Hilos de trabajo permitidos a la vez (0 sin límite), activos ahora y máximo alcanzado
+     */
+    private static int maxWorkers = 0;
+    private static int activeWorkers = 0;
+    private static int peakWorkers = 0;
+    private static final AtomicLong workerWaitNanos = new AtomicLong();
+
+    private ResourceLimits() {
+    }
+
+    /**
+     * Fija los tres límites a la vez
+     *
+     * @param readBytesPerSecond  Caudal de lectura; 0 sin límite
+     * @param writeBytesPerSecond Caudal de escritura; 0 sin límite
+     * @param workers             Hilos de trabajo a la vez; 0 sin límite
+     */
+    public static void set(long readBytesPerSecond, long writeBytesPerSecond, int workers) {
+        READ.setRate(readBytesPerSecond);
+        WRITE.setRate(writeBytesPerSecond);
+        setWorkers(workers);
+    }
+
+    /**
+     * Cambia el número de hilos de trabajo permitidos a la vez. Si se reduce, los que ya trabajan
+     * terminan, pero no entran nuevos hasta bajar del límite
+     *
+     * @param workers Hilos a la vez; 0 sin límite
+     */
+    public static synchronized void setWorkers(int workers) {
+        maxWorkers = Math.max(0, workers);
+        ResourceLimits.class.notifyAll();
+    }
+
+    /**
+     * @return Hilos de trabajo permitidos a la vez; 0 si no hay límite
+     */
+    public static synchronized int getWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * @return True si hay algún límite fijado
+     */
+    public static boolean isLimited() {
+        return READ.getRate() > 0 || WRITE.getRate() > 0 || getWorkers() > 0;
+    }
+
+    /**
+     * Entra como hilo de trabajo, esperando turno si se ha alcanzado el límite. Se usa con
+     * try-with-resources para salir siempre
+     *
+     * @return Permiso, que se libera al cerrarlo
+     * @throws InterruptedIOException si se interrumpe la espera
+     */
+    public static Permit enterWorker() throws InterruptedIOException {
+        long start = System.nanoTime();
+        synchronized (ResourceLimits.class) {
+            while (maxWorkers > 0 && activeWorkers >= maxWorkers) {
+                try {
+                    ResourceLimits.class.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Espera de turno interrumpida");
+                }
+            }
+            activeWorkers++;
+            peakWorkers = Math.max(peakWorkers, activeWorkers);
+        }
+        workerWaitNanos.addAndGet(System.nanoTime() - start);
+        return new Permit();
+    }
+
+    private static synchronized void leaveWorker() {
+        activeWorkers--;
+        ResourceLimits.class.notifyAll();
+    }
+
+    /**
+     * Permiso de un hilo de trabajo
+     */
+    public static final class Permit implements Closeable {
+        private boolean released;
+
+        private Permit() {
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                leaveWorker();
+            }
+        }
+    }
+
+    /**
+     * @param in Flujo de entrada
+     * @return Flujo que descuenta lo leído del caudal de lectura
+     */
+    public static InputStream input(InputStream in) {
+        return new LimitedInputStream(in);
+    }
+
+    /**
+     * @param out Flujo de salida
+     * @return Flujo que descuenta lo escrito del caudal de escritura. Cerrarlo cierra <code>out</code>
+     */
+    public static OutputStream output(OutputStream out) {
+        return new LimitedOutputStream(out);
+    }
+
+    /**
+     * Pone a cero las estadísticas de los tres límites
+     */
+    public static void resetStats() {
+        READ.resetStats();
+        WRITE.resetStats();
+        workerWaitNanos.set(0);
+        synchronized (ResourceLimits.class) {
+            peakWorkers = activeWorkers;
+        }
+    }
+
+    /**
+     * @return Resumen de los límites y de lo que han frenado
+     */
+    public static String report() {
+        int max, peak;
+        synchronized (ResourceLimits.class) {
+            max = maxWorkers;
+            peak = peakWorkers;
+        }
+        return READ + "\n" + WRITE + "\n" + String.format("hilos: %s, máximo a la vez %d, %d ms esperando turno",
+                max == 0 ? "sin límite" : String.valueOf(max), peak, workerWaitNanos.get() / 1000000);
+    }
+
+    /**
+     * Reserva del cubo por bloques de CHUNK bytes y los gasta localmente
+     */
+    private static final class Credit {
+        private final Throttle throttle;
+        private long available;
+
+        Credit(Throttle throttle) {
+            this.throttle = throttle;
+        }
+
+        void charge(long n) throws InterruptedIOException {
+            if (n > available) {
+                long reserve = Math.max(n - available, CHUNK);
+                throttle.acquire(reserve);
+                available += reserve;
+            }
+            available -= n;
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final Credit credit = new Credit(READ);
+
+        LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                credit.charge(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                credit.charge(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            credit.charge(skipped);
+            return skipped;
+        }
+    }
+
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private final Credit credit = new Credit(WRITE);
+
+        LimitedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            credit.charge(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            credit.charge(len);
+            out.write(b, off, len);
+        }
+    }
+}
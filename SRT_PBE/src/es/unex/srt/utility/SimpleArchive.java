@@ -0,0 +1,380 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Archivo cifrado que empaqueta muchos ficheros pequeños en un único contenedor.
+ * <p>
+ * Con ficheros de pocos KB el coste de <code>SimpleCipher</code> lo domina la parte fija (derivación
+ * PBE, cabecera, apertura del fichero). Aquí la clave se deriva una sola vez por archivo y cada
+ * entrada se cifra con un IV propio y se autentica con HMAC. Al final va un índice cifrado con
+ * nombre, posición y tamaños, de modo que extraer una entrada solo lee el índice y esa entrada.
+ * <pre>
+ * |Header|Entrada 1|...|Entrada N|Indice|Posicion indice (8)|Longitud indice (4)|
+ * Entrada / Indice: |IV|Cifrado|HMAC|
+ * </pre>
+ */
+public class SimpleArchive implements Closeable {
+
+    /**
+     * Longitud del pie con la posición del índice
+     */
+    private static final int FOOTER_LENGTH = 12;
+    /**
+     * Nombre reservado con el que se autentica el índice
+     */
+    private static final String INDEX_NAME = "";
+    /**
+     * Tamaño del búfer de copia
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Posición, longitud cifrada y tamaño en claro de una entrada
+     */
+    private static class Entry {
+        long offset;
+        long length;
+        long size;
+    }
+
+    /**
+     * Claves derivadas de la contraseña
+     */
+    private KeyMaterial keys;
+    /**
+     * Índice: nombre de la entrada -> posición y tamaños
+     */
+    private Map<String, Entry> index = new LinkedHashMap<>();
+    /**
+     * Canal del fichero contenedor
+     */
+    private FileChannel channel;
+    /**
+     * Modo de operación. True implica creación, False implica lectura.
+     */
+    private boolean operationMode;
+
+    /**
+     * Constructor de un SimpleArchive para crear un archivo nuevo
+     *
+     * @param file           Fichero contenedor a crear (se sobrescribe)
+     * @param algorithm      Algoritmo de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar
+     * @throws IOException si no se puede crear el fichero o el algoritmo no es válido
+     */
+    public SimpleArchive(File file, String algorithm, String password, Integer iterationCount) throws IOException {
+        operationMode = true;
+        byte[] sal = RandomPool.bytes(8);
+        try {
+            keys = new KeyMaterial(algorithm, password, sal, iterationCount);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("El algoritmo no es válido: " + algorithm, e);
+        }
+        Header header = new Header(Options.OP_ARCHIVE, algorithm, KeyMaterial.MAC_ALGORITHM, sal);
+        header.setIterationCount(iterationCount);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        header.save(headerBytes);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            writeFully(ByteBuffer.wrap(headerBytes.toByteArray()));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Constructor de un SimpleArchive para leer un archivo existente. Carga y verifica el índice.
+     *
+     * @param file           Fichero contenedor
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @throws IOException si no es un archivo válido, la contraseña es incorrecta o el índice está alterado
+     */
+    public SimpleArchive(File file, String password, Integer iterationCount) throws IOException {
+        operationMode = false;
+        Header header = new Header();
+        try (InputStream in = new FileInputStream(file)) {
+            if (!header.load(in) || header.getOperation() != Options.OP_ARCHIVE) {
+                throw new IOException("No es un archivo cifrado");
+            }
+        }
+        try {
+            keys = new KeyMaterial(header.getAlgorithm1(), password, header.getData(),
+                    header.getIterationCount(iterationCount));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("El algoritmo no es válido: " + header.getAlgorithm1(), e);
+        }
+        channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            if (channel.size() < FOOTER_LENGTH) {
+                throw new IOException("Archivo truncado");
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+            readFully(footer, channel.size() - FOOTER_LENGTH);
+            footer.flip();
+            Entry indexEntry = new Entry();
+            indexEntry.offset = footer.getLong();
+            indexEntry.length = footer.getInt();
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            if (!readEntry(INDEX_NAME, indexEntry, plain)) {
+                throw new IOException("Contraseña incorrecta o índice alterado");
+            }
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(plain.toByteArray()));
+            int count = din.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = din.readUTF();
+                Entry entry = new Entry();
+                entry.offset = din.readLong();
+                entry.length = din.readLong();
+                entry.size = din.readLong();
+                index.put(name, entry);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Añade una entrada al archivo
+     *
+     * @param name Nombre de la entrada
+     * @param in   Contenido. Se devuelve sin cerrar
+     * @return True si se pudo añadir, false si no (nombre repetido, archivo en modo lectura o error)
+     */
+    public boolean add(String name, InputStream in) {
+        if (!operationMode || name.isEmpty() || index.containsKey(name)) {
+            return false;
+        }
+        try {
+            Entry entry = new Entry();
+            entry.offset = channel.position();
+            long[] sizes = writeEntry(name, in);
+            entry.length = sizes[0];
+            entry.size = sizes[1];
+            index.put(name, entry);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Añade un fichero al archivo con su nombre
+     *
+     * @param file Fichero a añadir
+     * @return True si se pudo añadir, false si no
+     */
+    public boolean add(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return add(file.getName(), in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return Nombres de las entradas, en el orden en que se añadieron
+     */
+    public List<String> list() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * @param name Nombre de la entrada
+     * @return Tamaño en claro de la entrada, o -1 si no existe
+     */
+    public long size(String name) {
+        Entry entry = index.get(name);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Extrae una entrada. Solo lee esa entrada del fichero, y la autentica antes de descifrarla.
+     *
+     * @param name Nombre de la entrada
+     * @param out  Destino del contenido en claro. Se devuelve sin cerrar
+     * @return True si se extrajo y es auténtica, false si no existe, está alterada o hay error
+     */
+    public boolean extract(String name, OutputStream out) {
+        Entry entry = index.get(name);
+        if (operationMode || entry == null) {
+            return false;
+        }
+        try {
+            return readEntry(name, entry, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Cierra el archivo. Al crear, escribe el índice cifrado y el pie.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (operationMode) {
+                ByteArrayOutputStream plain = new ByteArrayOutputStream();
+                DataOutputStream dout = new DataOutputStream(plain);
+                dout.writeInt(index.size());
+                for (Map.Entry<String, Entry> e : index.entrySet()) {
+                    dout.writeUTF(e.getKey());
+                    dout.writeLong(e.getValue().offset);
+                    dout.writeLong(e.getValue().length);
+                    dout.writeLong(e.getValue().size);
+                }
+                dout.flush();
+                long indexOffset = channel.position();
+                long[] sizes = writeEntry(INDEX_NAME, new ByteArrayInputStream(plain.toByteArray()));
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+                footer.putLong(indexOffset).putInt((int) sizes[0]).flip();
+                writeFully(footer);
+                channel.force(false);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo cifrar el índice", e);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Cifra y autentica una entrada al final del fichero
+     *
+     * @param name Nombre con el que se autentica
+     * @param in   Contenido en claro
+     * @return Longitud escrita (IV, cifrado y HMAC) y tamaño en claro
+     */
+    private long[] writeEntry(String name, InputStream in) throws IOException, GeneralSecurityException {
+        byte[] iv = RandomPool.bytes(keys.getIvLength());
+        Cipher cipher = keys.newCipher(Cipher.ENCRYPT_MODE, iv);
+        Mac mac = keys.newMac();
+        mac.update(name.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(iv);
+        long written = iv.length;
+        writeFully(ByteBuffer.wrap(iv));
+        long size = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            size += n;
+            written += writeAuthenticated(cipher.update(buffer, 0, n), mac);
+        }
+        written += writeAuthenticated(cipher.doFinal(), mac);
+        byte[] tag = mac.doFinal();
+        writeFully(ByteBuffer.wrap(tag));
+        return new long[]{written + tag.length, size};
+    }
+
+    /**
+     * Escribe un trozo cifrado y lo añade al HMAC
+     */
+    private int writeAuthenticated(byte[] chunk, Mac mac) throws IOException {
+        if (chunk == null || chunk.length == 0) {
+            return 0;
+        }
+        mac.update(chunk);
+        writeFully(ByteBuffer.wrap(chunk));
+        return chunk.length;
+    }
+
+    /**
+     * Autentica y, si es correcta, descifra una entrada
+     *
+     * @return True si el HMAC coincide y se descifró
+     */
+    private boolean readEntry(String name, Entry entry, OutputStream out) throws IOException {
+        try {
+            int ivLength = keys.getIvLength();
+            Mac mac = keys.newMac();
+            int tagLength = mac.getMacLength();
+            if (entry.offset < 0 || entry.length < ivLength + tagLength
+                    || entry.offset + entry.length > channel.size()) {
+                return false;
+            }
+            ByteBuffer iv = ByteBuffer.allocate(ivLength);
+            readFully(iv, entry.offset);
+            ByteBuffer tag = ByteBuffer.allocate(tagLength);
+            readFully(tag, entry.offset + entry.length - tagLength);
+            long start = entry.offset + ivLength;
+            long end = entry.offset + entry.length - tagLength;
+
+            // Primera pasada: autenticar sin sacar nada en claro
+            mac.update(name.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(iv.array());
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (long pos = start; pos < end; ) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - pos));
+                readFully(buffer, pos);
+                pos += buffer.limit();
+                mac.update(buffer.array(), 0, buffer.limit());
+            }
+            if (!MessageDigest.isEqual(mac.doFinal(), tag.array())) {
+                return false;
+            }
+
+            // Segunda pasada: descifrar
+            Cipher cipher = keys.newCipher(Cipher.DECRYPT_MODE, iv.array());
+            for (long pos = start; pos < end; ) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - pos));
+                readFully(buffer, pos);
+                pos += buffer.limit();
+                byte[] plain = cipher.update(buffer.array(), 0, buffer.limit());
+                if (plain != null) {
+                    out.write(plain);
+                }
+            }
+            out.write(cipher.doFinal());
+            return true;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Escribe todo el búfer en la posición actual del canal
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Llena el búfer leyendo desde una posición del canal
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Archivo truncado");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Cifrado por bloques que se puede actualizar reescribiendo solo los bloques que cambian.
+ * <p>
+ * El contenido se divide en bloques de tamaño fijo, cada uno cifrado con su propio IV en una de sus
+ * dos ranuras de posición fija. Para cada bloque se guarda un HMAC de su contenido en claro (con la clave de
+ * autenticación y el número de bloque), que sirve a la vez para autenticarlo al descifrar y para
+ * saber, al actualizar, si ha cambiado sin tener que descifrarlo. Al actualizar solo se cifran y
+ * escriben (con escrituras posicionales) los bloques distintos, con IV nuevo.
+ * <p>
+ * Los metadatos (longitud, número de bloques, ranura en uso de cada bloque y HMACs) tienen dos
+ * copias, A y B, con un contador de generación y un HMAC propio. Cada actualización escribe la copia
+ * inactiva y al abrir se usa la válida de mayor generación, de modo que un corte durante la
+ * escritura de los metadatos deja la versión anterior intacta. Los bloques que cambian se escriben
+ * en la ranura que no está en uso, y solo pasan a usarse al escribir los metadatos, cuando ya se ha
+ * leído y comprobado todo el contenido nuevo: ni un corte ni un contenido más largo o más corto de
+ * lo indicado tocan nada de la versión anterior.
+ * <pre>
+ * |Header|Metadatos A|Metadatos B|Ranuras del bloque 0 (2)|...|Ranuras del bloque N-1 (2)|
+ * Metadatos: |Generacion (8)|Longitud (8)|Bloques (4)|Ranura en uso (1 por bloque de capacidad)|
+ *            |HMAC bloque 0|...|HMAC (capacidad)|HMAC metadatos|
+ * Ranura:    |IV|Cifrado (bloque con relleno)|
+ * </pre>
+ */
+public class SimpleBlockCipher implements Closeable {
+
+    /**
+     * Tamaño de bloque por defecto
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    /**
+     * Longitud fija del principio de cada copia de metadatos
+     */
+    private static final int METADATA_PREFIX = 8 + 8 + 4;
+
+    /**
+     * Claves derivadas de la contraseña
+     */
+    private KeyMaterial keys;
+    /**
+     * Canal del fichero contenedor
+     */
+    private FileChannel channel;
+    /**
+     * Tamaño de bloque en claro y capacidad máxima en bloques
+     */
+    private int blockSize, capacity;
+    /**
+     * Longitud del HMAC
+     */
+    private int tagLength;
+    /**
+     * Posición de la copia A de los metadatos
+     */
+    private long metadataStart;
+    /**
+     * Posición de la primera ranura
+     */
+    private long dataStart;
+    /**
+     * Generación de la copia activa de los metadatos, y cuál es (0 = A, 1 = B)
+     */
+    private long generation;
+    private int active;
+    /**
+     * Longitud del contenido en claro
+     */
+    private long length;
+    /**
+     * Número de bloques en uso
+     */
+    private int blockCount;
+    /**
+     * HMAC en claro de cada bloque (capacidad * tagLength)
+     */
+    private byte[] tags;
+    /**
+     * Ranura en uso de cada bloque, 0 o 1 (capacidad)
+     */
+    private byte[] slots;
+
+    /**
+     * Constructor de un SimpleBlockCipher vacío. El contenido se escribe con <code>update</code>.
+     *
+     * @param file           Fichero contenedor a crear (se sobrescribe)
+     * @param algorithm      Algoritmo de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar
+     * @param blockSize      Tamaño de bloque en claro, múltiplo de 8
+     * @param maxLength      Longitud máxima que podrá tener el contenido
+     * @throws IOException si no se puede crear el fichero o los parámetros no son válidos
+     */
+    public SimpleBlockCipher(File file, String algorithm, String password, Integer iterationCount, int blockSize,
+                             long maxLength) throws IOException {
+        if (blockSize <= 0 || blockSize % 8 != 0 || maxLength < 0) {
+            throw new IOException("Tamaño de bloque o longitud máxima no válidos");
+        }
+        long blocks = (maxLength + blockSize - 1) / blockSize;
+        checkLayout(blocks);
+        this.blockSize = blockSize;
+        this.capacity = (int) Math.max(1, blocks);
+        byte[] sal = RandomPool.bytes(8);
+        initKeys(algorithm, password, sal, iterationCount);
+        Header header = new Header(Options.OP_BLOCKS, algorithm, KeyMaterial.MAC_ALGORITHM, sal);
+        header.setIterationCount(iterationCount);
+        header.setExtension(Header.EXT_BLOCK_LAYOUT, ByteBuffer.allocate(8).putInt(blockSize).putInt(capacity).array());
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        header.save(headerBytes);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            writeFully(ByteBuffer.wrap(headerBytes.toByteArray()), 0);
+            layout(headerBytes.size());
+            tags = new byte[capacity * tagLength];
+            slots = new byte[capacity];
+            generation = 0;
+            active = 1;
+            writeMetadata(0, 0, tags, slots); // Generación 1 en la copia A
+        } catch (IOException | GeneralSecurityException e) {
+            channel.close();
+            throw new IOException("No se pudieron escribir los metadatos", e);
+        }
+    }
+
+    /**
+     * Constructor de un SimpleBlockCipher existente. Carga los metadatos válidos más recientes.
+     *
+     * @param file           Fichero contenedor
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @throws IOException si no es un contenedor válido o la contraseña es incorrecta
+     */
+    public SimpleBlockCipher(File file, String password, Integer iterationCount) throws IOException {
+        Header header = new Header();
+        long headerLength;
+        try (CountingInputStream in = new CountingInputStream(new FileInputStream(file))) {
+            if (!header.load(in) || header.getOperation() != Options.OP_BLOCKS) {
+                throw new IOException("No es un cifrado por bloques");
+            }
+            headerLength = in.count;
+        }
+        byte[] layout = header.getExtension(Header.EXT_BLOCK_LAYOUT);
+        if (layout == null || layout.length != 8) {
+            throw new IOException("Falta la disposición de los bloques");
+        }
+        ByteBuffer bb = ByteBuffer.wrap(layout);
+        blockSize = bb.getInt();
+        capacity = bb.getInt();
+        if (blockSize <= 0 || blockSize % 8 != 0 || capacity <= 0) {
+            throw new IOException("Disposición de los bloques no válida");
+        }
+        checkLayout(capacity);
+        initKeys(header.getAlgorithm1(), password, header.getData(), header.getIterationCount(iterationCount));
+        layout(headerLength);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long[] best = null;
+        try {
+            if (channel.size() < dataStart) {
+                throw new IOException("Contenedor truncado");
+            }
+            for (int copy = 0; copy < 2; copy++) {
+                long[] loaded = readMetadata(copy);
+                if (loaded != null && (best == null || loaded[0] > best[0])) {
+                    best = loaded;
+                    active = copy;
+                }
+            }
+            if (best == null) {
+                throw new IOException("Contraseña incorrecta o metadatos alterados");
+            }
+            readMetadata(active); // Deja cargados los HMAC y las ranuras de la copia elegida
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        generation = best[0];
+        length = best[1];
+        blockCount = (int) best[2];
+    }
+
+    /**
+     * @return Longitud del contenido en claro
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return Número de bloques en uso
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Sustituye el contenido por el de un fichero, reescribiendo solo los bloques que cambian
+     *
+     * @param file Nuevo contenido en claro
+     * @return Número de bloques reescritos, o -1 si hubo error
+     */
+    public long update(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return update(in, file.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Sustituye el contenido, reescribiendo solo los bloques que cambian. El nuevo contenido se lee
+     * entero para compararlo, pero solo se cifran y escriben los bloques distintos, en su ranura
+     * libre. Si el contenido no tiene la longitud indicada, el contenedor queda como estaba.
+     *
+     * @param in        Nuevo contenido en claro. Se devuelve sin cerrar
+     * @param newLength Longitud exacta del nuevo contenido
+     * @return Número de bloques reescritos, o -1 si hubo error o no cabe
+     */
+    public long update(InputStream in, long newLength) {
+        long newCount = (newLength + blockSize - 1) / blockSize;
+        if (newLength < 0 || newCount > capacity) {
+            System.err.println("El contenido no cabe en el contenedor: hay que volver a crearlo");
+            return -1;
+        }
+        try {
+            byte[] block = new byte[blockSize];
+            byte[] index = new byte[8];
+            byte[] newTags = tags.clone();
+            byte[] newSlots = slots.clone();
+            Mac mac = keys.newMac();
+            long rewritten = 0;
+            for (int i = 0; i < newCount; i++) {
+                int n = (int) Math.min(blockSize, newLength - (long) i * blockSize);
+                readFully(in, block, n);
+                ByteBuffer.wrap(index).putLong(i);
+                mac.update(index);
+                mac.update(block, 0, n);
+                mac.doFinal(newTags, i * tagLength);
+                if (i >= blockCount || !equalTags(newTags, tags, i)) {
+                    newSlots[i] ^= 1;
+                    writeBlock(slotPosition(i, newSlots[i]), block, n);
+                    rewritten++;
+                }
+            }
+            if (in.read() >= 0) {
+                throw new IOException("El contenido es más largo de lo indicado");
+            }
+            channel.force(false);
+            writeMetadata(newLength, (int) newCount, newTags, newSlots);
+            tags = newTags;
+            slots = newSlots;
+            length = newLength;
+            blockCount = (int) newCount;
+            channel.truncate(blockCount == 0 ? dataStart : slotEnd(blockCount - 1));
+            return rewritten;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Descifra el contenido completo, verificando cada bloque
+     *
+     * @param out Destino del contenido en claro. Se devuelve sin cerrar
+     * @return True si todos los bloques son auténticos, false si alguno está alterado o hay error
+     */
+    public boolean save(OutputStream out) {
+        try {
+            Mac mac = keys.newMac();
+            byte[] index = new byte[8];
+            byte[] tag = new byte[tagLength];
+            ByteBuffer slot = ByteBuffer.allocate(slotSize());
+            int ivLength = keys.getIvLength();
+            for (int i = 0; i < blockCount; i++) {
+                int n = (int) Math.min(blockSize, length - (long) i * blockSize);
+                int cipherLength = (n / 8 + 1) * 8;
+                slot.clear().limit(ivLength + cipherLength);
+                readFully(slot, slotPosition(i, slots[i]));
+                byte[] iv = new byte[ivLength];
+                slot.flip();
+                slot.get(iv);
+                Cipher cipher = keys.newCipher(Cipher.DECRYPT_MODE, iv);
+                byte[] plain = cipher.doFinal(slot.array(), ivLength, cipherLength);
+                ByteBuffer.wrap(index).putLong(i);
+                mac.update(index);
+                mac.update(plain);
+                mac.doFinal(tag, 0);
+                if (plain.length != n || !MessageDigest.isEqual(tag, copyTag(tags, i))) {
+                    System.err.println("Bloque " + i + " alterado");
+                    return false;
+                }
+                out.write(plain);
+            }
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Comprueba que la capacidad no desborda los metadatos
+     *
+     * @throws IOException si hay demasiados bloques
+     */
+    private static void checkLayout(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE / 64) {
+            throw new IOException("Demasiados bloques: usa un tamaño de bloque mayor");
+        }
+    }
+
+    private void initKeys(String algorithm, String password, byte[] sal, Integer iterationCount) throws IOException {
+        try {
+            keys = new KeyMaterial(algorithm, password, sal, iterationCount);
+            tagLength = keys.newMac().getMacLength();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("El algoritmo no es válido: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Calcula las posiciones de metadatos y ranuras a partir de la longitud de la cabecera
+     */
+    private void layout(long headerLength) {
+        metadataStart = headerLength;
+        dataStart = metadataStart + 2 * metadataSize();
+    }
+
+    private long metadataSize() {
+        return METADATA_PREFIX + capacity + (long) (capacity + 1) * tagLength;
+    }
+
+    private int slotSize() {
+        return keys.getIvLength() + blockSize + 8;
+    }
+
+    /**
+     * @return Posición de la ranura <code>slot</code> (0 o 1) del bloque <code>i</code>
+     */
+    private long slotPosition(int i, int slot) {
+        return dataStart + (2L * i + slot) * slotSize();
+    }
+
+    /**
+     * @return Posición donde termina el bloque <code>i</code> escrito en su ranura en uso
+     */
+    private long slotEnd(int i) {
+        int n = (int) Math.min(blockSize, length - (long) i * blockSize);
+        return slotPosition(i, slots[i]) + keys.getIvLength() + (n / 8 + 1) * 8;
+    }
+
+    /**
+     * Cifra un bloque con IV nuevo y lo escribe en una ranura
+     *
+     * @param position Posición de la ranura, de <code>slotPosition</code>
+     */
+    private void writeBlock(long position, byte[] block, int n) throws IOException, GeneralSecurityException {
+        byte[] iv = RandomPool.bytes(keys.getIvLength());
+        Cipher cipher = keys.newCipher(Cipher.ENCRYPT_MODE, iv);
+        ByteBuffer slot = ByteBuffer.allocate(iv.length + cipher.getOutputSize(n));
+        slot.put(iv);
+        cipher.doFinal(ByteBuffer.wrap(block, 0, n), slot);
+        slot.flip();
+        writeFully(slot, position);
+    }
+
+    /**
+     * Escribe unos metadatos en la copia inactiva con la siguiente generación y la activa
+     *
+     * @param newLength Longitud del contenido en claro
+     * @param newCount  Número de bloques en uso
+     * @param newTags   HMAC en claro de cada bloque
+     * @param newSlots  Ranura en uso de cada bloque
+     */
+    private void writeMetadata(long newLength, int newCount, byte[] newTags, byte[] newSlots)
+            throws IOException, GeneralSecurityException {
+        int target = 1 - active;
+        ByteBuffer buffer = ByteBuffer.allocate((int) metadataSize());
+        buffer.putLong(generation + 1).putLong(newLength).putInt(newCount).put(newSlots).put(newTags);
+        Mac mac = keys.newMac();
+        mac.update(buffer.array(), 0, buffer.position());
+        buffer.put(mac.doFinal());
+        buffer.flip();
+        writeFully(buffer, metadataStart + target * metadataSize());
+        channel.force(false);
+        generation++;
+        active = target;
+    }
+
+    /**
+     * Lee y autentica una copia de los metadatos. Si es válida, deja sus HMAC en <code>tags</code> y
+     * sus ranuras en <code>slots</code>.
+     *
+     * @return Generación, longitud y número de bloques, o null si la copia no es válida
+     */
+    private long[] readMetadata(int copy) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) metadataSize());
+        try {
+            readFully(buffer, metadataStart + copy * metadataSize());
+            Mac mac = keys.newMac();
+            mac.update(buffer.array(), 0, buffer.capacity() - tagLength);
+            byte[] expected = mac.doFinal();
+            byte[] stored = new byte[tagLength];
+            System.arraycopy(buffer.array(), buffer.capacity() - tagLength, stored, 0, tagLength);
+            if (!MessageDigest.isEqual(expected, stored)) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+        buffer.flip();
+        long gen = buffer.getLong();
+        long len = buffer.getLong();
+        int count = buffer.getInt();
+        if (count < 0 || count > capacity || len < 0 || (len + blockSize - 1) / blockSize != count) {
+            return null;
+        }
+        byte[] loadedSlots = new byte[capacity];
+        buffer.get(loadedSlots);
+        for (byte slot : loadedSlots) {
+            if (slot != 0 && slot != 1) {
+                return null;
+            }
+        }
+        slots = loadedSlots;
+        tags = new byte[capacity * tagLength];
+        buffer.get(tags);
+        return new long[]{gen, len, count};
+    }
+
+    private boolean equalTags(byte[] a, byte[] b, int i) {
+        return MessageDigest.isEqual(copyTag(a, i), copyTag(b, i));
+    }
+
+    private byte[] copyTag(byte[] all, int i) {
+        byte[] tag = new byte[tagLength];
+        System.arraycopy(all, i * tagLength, tag, 0, tagLength);
+        return tag;
+    }
+
+    /**
+     * Lee exactamente <code>n</code> bytes del flujo
+     */
+    private static void readFully(InputStream in, byte[] buffer, int n) throws IOException {
+        int off = 0;
+        while (off < n) {
+            int r = in.read(buffer, off, n - off);
+            if (r < 0) {
+                throw new EOFException("El contenido es más corto de lo indicado");
+            }
+            off += r;
+        }
+    }
+
+    /**
+     * Escribe todo el búfer en una posición del canal
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Llena el búfer leyendo desde una posición del canal
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Contenedor truncado");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Flujo que cuenta los bytes leídos, para saber dónde acaba la cabecera
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Test interno de la clase: crea un contenedor, lo actualiza cambiando dos bytes y comprueba que
+     * solo se reescriben sus dos bloques, que una actualización con la longitud mal indicada no lo
+     * altera y que al reabrirlo se descifra el último contenido
+     *
+     * @throws IOException IOException interna
+     */
+    private static void test() throws IOException {
+        File file = new File("Tank.blk");
+        byte[] first = new byte[200000];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) (i * 31);
+        }
+        byte[] second = first.clone();
+        second[5000] ^= 1;
+        second[100000] ^= 1;
+        boolean ok;
+        try (SimpleBlockCipher blocks = new SimpleBlockCipher(file, Options.symmetricalAlgorithms[0], "Spike", 1024,
+                4096, 400000)) {
+            ok = blocks.update(new ByteArrayInputStream(first), first.length) == 49;
+            ok &= blocks.update(new ByteArrayInputStream(second), second.length + 1) == -1;
+            ok &= blocks.update(new ByteArrayInputStream(second), second.length) == 2;
+        }
+        try (SimpleBlockCipher blocks = new SimpleBlockCipher(file, "Spike", 1024)) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            ok &= blocks.save(plain) && Arrays.equals(second, plain.toByteArray());
+        }
+        if (ok) {
+            System.out.println("Todo funciona guay");
+        } else {
+            System.out.println("Esto no funciona");
+        }
+    }
+
+    /*
+    public static void main(String[] args) throws IOException {
+        test();
+    }
+    */
+}
@@ -1,16 +1,33 @@
 package es.unex.srt.utility;
 
 import javax.crypto.*;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.PBEParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Clase para facilitar al mximo las tareas de cifrado y descifrado
@@ -21,25 +38,27 @@ import java.security.spec.InvalidKeySpecException;
 public class SimpleCipher {
 
     /**
-     * Cifrador
-     */
-    private Cipher c;
-    /**
-     * Clave PBE
+     * Tamao de los bloques ledos al entregar a un consumidor
      */
-    private PBEKeySpec pbeKeySpec;
+    private static final int BLOCK_SIZE = 8192;
     /**
-     * Parmetros PBE
+     * Tamao mnimo de los segmentos del descifrado en paralelo, y bfer que pide cada uno
      */
-    private PBEParameterSpec pbeParameterSpec;
+    private static final long MIN_SEGMENT = 1024 * 1024;
+    private static final int SEGMENT_BUFFER = 256 * 1024;
+
     /**
-     * Fbrica de claves secretas
+     * Consumidor de los bloques cifrados/descifrados, en orden. El bloque solo es vlido durante
+     * la llamada
      */
-    private SecretKeyFactory keyFactory;
+    public interface BlockConsumer {
+        void accept(byte[] block, int offset, int length) throws IOException;
+    }
+
     /**
-     * Clave secreta
+     * Cifrador
      */
-    private SecretKey secretKey;
+    private Cipher c;
     /**
      * Cabecera del fichero a cifrar/descifrar
      */
@@ -58,7 +77,7 @@ public class SimpleCipher {
      *
      * @param in_buff        Bfer con el fichero cifrado abierto
      * @param password       Contrasea de usuario para PBE
-     * @param iterationCount Iteraciones a realizar
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
      */
     public SimpleCipher(InputStream in_buff, String password, Integer iterationCount) {
         try {
@@ -66,12 +85,8 @@ public class SimpleCipher {
             loaded_file = in_buff;
             header=new Header();
             header.load(in_buff);
-            pbeKeySpec = new PBEKeySpec(password.toCharArray());
-            pbeParameterSpec = new PBEParameterSpec(header.getData(), iterationCount);
-            keyFactory = SecretKeyFactory.getInstance(header.getAlgorithm1());
-            secretKey = keyFactory.generateSecret(pbeKeySpec);
-            c = Cipher.getInstance(header.getAlgorithm1());
-            c.init(Cipher.DECRYPT_MODE, secretKey, pbeParameterSpec);
+            init(new PbeKeyMaterial(header.getAlgorithm1(), password, header.getData(),
+                    header.getIterationCount(iterationCount)));
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso estn");
             e.printStackTrace();
@@ -87,7 +102,38 @@ public class SimpleCipher {
         } catch (InvalidKeyException e) {
             System.err.println("La clave no es vlida");
             e.printStackTrace();
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo comprobar la clave");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prepara el cifrador con la clave derivada. Al cifrar guarda en la cabecera el valor de
+     * comprobacin de la clave; al descifrar lo comprueba, si lo hay, antes de leer el contenido, y
+     * si no corresponde no prepara el cifrador para que <code>save</code> falle sin leer nada
+     *
+     * @param keys Clave e IV derivados de la contrasea
+     * @throws GeneralSecurityException si no se puede iniciar el cifrador o calcular la comprobacin
+     */
+    private void init(PbeKeyMaterial keys) throws GeneralSecurityException {
+        if (operationMode) {
+            header.setExtension(Header.EXT_KEY_CHECK, keys.keyCheck());
+        } else {
+            byte[] check = header.getExtension(Header.EXT_KEY_CHECK);
+            if (check != null && !keys.matchesKeyCheck(check)) {
+                System.err.println("La contrasea no es vlida para este fichero");
+                return;
+            }
         }
+        c = keys.newCipher(operationMode ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keys.getIv(), "PKCS5Padding");
+    }
+
+    /**
+     * @return True si el cifrador est listo; false si fall la derivacin o la contrasea no es vlida
+     */
+    public boolean isReady() {
+        return c != null;
     }
 
 	/**
@@ -101,16 +147,10 @@ public class SimpleCipher {
         try {
             operationMode=true;
             loaded_file = in_buff;
-            SecureRandom RNG = new SecureRandom(); //La sal se genera aleatoriamente
-            byte[] sal = new byte[8];
-            RNG.nextBytes(sal);
+            byte[] sal = RandomPool.bytes(8); //La sal se genera aleatoriamente
             header=new Header(Options.OP_SYMMETRIC_CIPHER, algorithm, Options.authenticationAlgorithms[0], sal);
-            pbeKeySpec = new PBEKeySpec(password.toCharArray());
-            pbeParameterSpec = new PBEParameterSpec(header.getData(), iterationCount);
-            keyFactory = SecretKeyFactory.getInstance(header.getAlgorithm1());
-            secretKey = keyFactory.generateSecret(pbeKeySpec);
-            c = Cipher.getInstance(header.getAlgorithm1());
-            c.init(Cipher.ENCRYPT_MODE, secretKey, pbeParameterSpec);
+            header.setIterationCount(iterationCount);
+            init(new PbeKeyMaterial(header.getAlgorithm1(), password, header.getData(), iterationCount));
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso estn");
             e.printStackTrace();
@@ -126,6 +166,39 @@ public class SimpleCipher {
         } catch (InvalidKeyException e) {
             System.err.println("La clave no es vlida");
             e.printStackTrace();
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo calcular la comprobacin de la clave");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Constructor de un SimpleCipher con la clave preparada de antemano por un <code>KeyPrefetch</code>:
+     * cifra si la preparacin es de cifrado y descifra si es de un fichero cifrado. Si lo preparado
+     * no sirve para el fichero, deriva la clave de la forma normal
+     *
+     * @param in_buff Bfer con el fichero abierto, en claro o cifrado
+     * @param key     Clave preparada
+     */
+    public SimpleCipher(InputStream in_buff, KeyPrefetch key) {
+        try {
+            operationMode = !key.isLoaded();
+            loaded_file = in_buff;
+            if (operationMode) {
+                header = key.getHeader();
+            } else {
+                header = new Header();
+                header.load(in_buff);
+            }
+            PbeKeyMaterial keys = key.takeKeys(operationMode ? null : header);
+            if (keys == null) {
+                keys = new PbeKeyMaterial(header.getAlgorithm1(), key.getPassword(), header.getData(),
+                        header.getIterationCount(key.getIterationCount()));
+            }
+            init(keys);
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo preparar el cifrador");
+            e.printStackTrace();
         }
     }
 
@@ -134,8 +207,14 @@ public class SimpleCipher {
      * @param out_buff Bfer con el archivo de salida. Se devuelve sin cerrar
      * @return True si se pudo guardar, false si no
      */
+    @SuppressWarnings("try")
     public boolean save(OutputStream out_buff) {
-        try {
+        if (c == null) {
+            return false;
+        }
+        try (ResourceLimits.Permit permit = ResourceLimits.enterWorker()) {
+            InputStream loaded_file = ResourceLimits.input(this.loaded_file);
+            out_buff = ResourceLimits.output(out_buff);
             //Guardando la cabecera sin cifrar si estamos cifrando
             //Si estamos descifrando, debe quedar en claro sin cabecera alguna
             if(operationMode) {
@@ -160,4 +239,262 @@ public class SimpleCipher {
         }
     }
     
+    /**
+     * Cifra/descifra entregando cada bloque a un consumidor, sin pasar por ningn fichero. Usa
+     * memoria acotada: un bloque cada vez. Al cifrar, el primer bloque es la cabecera
+     *
+     * @param consumer Consumidor de los bloques
+     * @return True si se proces todo, false si no (al descifrar, tambin si la contrasea no es vlida)
+     */
+    @SuppressWarnings("try")
+    public boolean save(BlockConsumer consumer) {
+        if (c == null) {
+            return false;
+        }
+        try (ResourceLimits.Permit permit = ResourceLimits.enterWorker()) {
+            InputStream in = ResourceLimits.input(loaded_file);
+            if (operationMode) {
+                byte[] head = headerBytes();
+                consumer.accept(head, 0, head.length);
+            }
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                byte[] block = c.update(buffer, 0, n);
+                if (block != null && block.length > 0) {
+                    consumer.accept(block, 0, block.length);
+                }
+            }
+            byte[] last = c.doFinal();
+            if (last.length > 0) {
+                consumer.accept(last, 0, last.length);
+            }
+            return true;
+        } catch (IOException | GeneralSecurityException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Cifra/descifra en un <code>ByteBuffer</code> del llamante, en el heap o fuera de l
+     * (<code>allocateDirect</code>). El bfer queda con la posicin al final de lo escrito
+     *
+     * @param target Bfer de destino; su espacio libre es el lmite de memoria
+     * @return True si se proces todo, false si no caba o hubo error
+     */
+    public boolean save(ByteBuffer target) {
+        return save((block, offset, length) -> {
+            if (length > target.remaining()) {
+                throw new IOException("El resultado no cabe en el bfer de " + target.capacity() + " bytes");
+            }
+            target.put(block, offset, length);
+        });
+    }
+
+    /**
+     * Vista del resultado como flujo de entrada: se cifra/descifra a medida que se lee, con
+     * memoria acotada. Si la contrasea no es vlida, la lectura final lanza una IOException
+     * (en ficheros sin valor de comprobacin de clave; en los dems se devuelve null)
+     *
+     * @return Flujo con el contenido descifrado (o la cabecera y el contenido cifrado al cifrar), o
+     * null si no se pudo preparar el cifrador
+     */
+    public InputStream getInputStream() {
+        if (c == null) {
+            return null;
+        }
+        InputStream content = new CipherInputStream(ResourceLimits.input(loaded_file), c);
+        if (!operationMode) {
+            return content;
+        }
+        try {
+            return new SequenceInputStream(new ByteArrayInputStream(headerBytes()), content);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Descifra un fichero cifrado con varios hilos, sin cambiar el formato. En CBC cada bloque se
+     * descifra con l mismo y con el bloque cifrado anterior, as que el contenido se parte en
+     * segmentos de bloques enteros y cada hilo descifra el suyo empezando con el ltimo bloque del
+     * segmento anterior como IV. La clave y el IV del primer bloque se derivan una sola vez de la
+     * cabecera; el relleno solo se comprueba y se quita al final del ltimo segmento. Cada segmento
+     * se escribe en su sitio del destino, en el orden en que se termina.
+     * <p>
+     * Cada segmento ocupa un hilo de trabajo de <code>ResourceLimits</code> mientras se descifra y
+     * pasa por sus lmites de lectura y escritura. Si el algoritmo de la cabecera no es uno de
+     * <code>Options.symmetricalAlgorithms</code>, se descifra de la forma normal, con un solo hilo.
+     *
+     * @param source         Fichero cifrado
+     * @param target         Fichero en claro. Si el descifrado falla, se borra
+     * @param password       Contrasea de usuario para PBE
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @param threads        Hilos que descifran a la vez
+     * @return True si se pudo guardar, false si no (tambin si la contrasea no es vlida)
+     */
+    public static boolean saveParallel(File source, File target, String password, Integer iterationCount,
+                                       int threads) {
+        return saveParallel(source, target, password, iterationCount, null, threads);
+    }
+
+    /**
+     * Descifrado en paralelo con la clave preparada de antemano por un <code>KeyPrefetch</code> de
+     * descifrado. Si lo preparado no sirve para el fichero, deriva la clave de la forma normal
+     *
+     * @param source  Fichero cifrado
+     * @param target  Fichero en claro. Si el descifrado falla, se borra
+     * @param key     Clave preparada con <code>KeyPrefetch.forDecryption</code>
+     * @param threads Hilos que descifran a la vez
+     * @return True si se pudo guardar, false si no (tambin si la contrasea no es vlida)
+     */
+    public static boolean saveParallel(File source, File target, KeyPrefetch key, int threads) {
+        return saveParallel(source, target, key.getPassword(), key.getIterationCount(), key, threads);
+    }
+
+    private static boolean saveParallel(File source, File target, String password, Integer iterationCount,
+                                        KeyPrefetch key, int threads) {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            Header header = new Header();
+            if (!header.load(Channels.newInputStream(in))) { // Lee justo la cabecera, sin adelantarse
+                System.err.println("El fichero no tiene una cabecera vlida");
+                return false;
+            }
+            if (!Options.isTypeAlgorithm(Options.symmetricalAlgorithms, header.getAlgorithm1())) {
+                return saveSequential(source, target, password, iterationCount, key);
+            }
+            long start = in.position();
+            long length = in.size() - start;
+            if (length == 0 || length % PbeKeyMaterial.BLOCK_LENGTH != 0) {
+                System.err.println("El contenido cifrado no es un nmero entero de bloques");
+                return false;
+            }
+            PbeKeyMaterial keys = key == null ? null : key.takeKeys(header);
+            if (keys == null) {
+                keys = new PbeKeyMaterial(header.getAlgorithm1(), password, header.getData(),
+                        header.getIterationCount(iterationCount));
+            }
+            PbeKeyMaterial derived = keys;
+            byte[] check = header.getExtension(Header.EXT_KEY_CHECK);
+            if (check != null && !keys.matchesKeyCheck(check)) {
+                System.err.println("La contrasea no es vlida para este fichero");
+                return false;
+            }
+            int n = Math.max(1, threads);
+            // Varios segmentos por hilo para repartir bien aunque unos hilos vayan ms lentos
+            long segment = Math.max(MIN_SEGMENT, length / (n * 4L));
+            segment -= segment % PbeKeyMaterial.BLOCK_LENGTH;
+            int count = (int) ((length + segment - 1) / segment);
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(n, count));
+            boolean ok = true;
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                List<Future<Boolean>> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long from = i * segment;
+                    long to = Math.min(length, from + segment);
+                    results.add(pool.submit(() -> decryptSegment(derived, in, out, start, from, to, to == length)));
+                }
+                for (Future<Boolean> f : results) {
+                    try {
+                        ok &= f.get();
+                    } catch (ExecutionException e) {
+                        System.err.println("No se pudo descifrar un segmento: " + e.getCause());
+                        ok = false;
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            if (!ok) {
+                target.delete(); // No se deja un resultado a medias
+            }
+            return ok;
+        } catch (IOException | GeneralSecurityException ex) {
+            ex.printStackTrace();
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Descifrado normal de <code>source</code> en <code>target</code>, para los algoritmos que no se
+     * pueden partir
+     */
+    private static boolean saveSequential(File source, File target, String password, Integer iterationCount,
+                                          KeyPrefetch key) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            SimpleCipher cipher = key != null ? new SimpleCipher(in, key) : new SimpleCipher(in, password, iterationCount);
+            return cipher.save(out);
+        }
+    }
+
+    /**
+     * Descifra los bytes <code>[from, to)</code> del contenido cifrado, que empieza en
+     * <code>start</code>, y los escribe en la misma posicin de <code>out</code>. Si es el ltimo
+     * segmento, comprueba y quita el relleno PKCS5. Ocupa un hilo de trabajo mientras descifra
+     */
+    @SuppressWarnings("try")
+    private static boolean decryptSegment(PbeKeyMaterial keys, FileChannel in, FileChannel out, long start,
+                                          long from, long to, boolean last)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = keys.getIv();
+        if (from > 0) {
+            readFully(in, iv, iv.length, start + from - iv.length);
+        }
+        Cipher cipher = keys.newCipher(Cipher.DECRYPT_MODE, iv, "NoPadding");
+        try (ResourceLimits.Permit permit = ResourceLimits.enterWorker();
+             MemoryBudget.Lease lease = MemoryBudget.acquire(SEGMENT_BUFFER)) {
+            byte[] buffer = lease.buffer(); // Potencia de dos: siempre bloques enteros
+            for (long pos = from; pos < to; ) {
+                int n = (int) Math.min(buffer.length, to - pos);
+                ResourceLimits.READ.acquire(n);
+                readFully(in, buffer, n, start + pos);
+                cipher.update(buffer, 0, n, buffer, 0);
+                int plain = n;
+                if (last && pos + n == to) {
+                    int pad = buffer[n - 1] & 0xff;
+                    boolean valid = pad >= 1 && pad <= PbeKeyMaterial.BLOCK_LENGTH;
+                    for (int i = n - pad; valid && i < n; i++) {
+                        valid = buffer[i] == (byte) pad;
+                    }
+                    if (!valid) {
+                        System.err.println("Relleno incorrecto: la contrasea no es vlida o el fichero est daado");
+                        return false;
+                    }
+                    plain -= pad;
+                }
+                ResourceLimits.WRITE.acquire(plain);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, plain);
+                for (long position = pos; chunk.hasRemaining(); ) {
+                    position += out.write(chunk, position);
+                }
+                pos += n;
+            }
+            return true;
+        }
+    }
+
+    private static void readFully(FileChannel in, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(buffer, 0, length);
+        while (b.hasRemaining()) {
+            if (in.read(b, position + b.position()) < 0) {
+                throw new EOFException("El fichero ha cambiado mientras se descifraba");
+            }
+        }
+    }
+
+    private byte[] headerBytes() throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        if (!header.save(head)) {
+            throw new IOException("No se pudo guardar la cabecera");
+        }
+        return head.toByteArray();
+    }
+
 }
@@ -33,13 +33,21 @@ public class SimpleHash {
      */
     private DigestInputStream hashStream;
     /**
-     * OutputStream "limpio" para volver a guardar lo cargado
+     * Copia "limpia" de lo cargado para volver a guardarlo, en memoria del presupuesto o en disco
      */
-    private ByteArrayOutputStream auxStream;
+    private Spool auxStream;
     /**
      * Cabecera del fichero con hash
      */
     private Header header;
+    /**
+     * Valor de comprobación del secreto, calculado antes de leer el contenido
+     */
+    private byte[] keyCheck;
+    /**
+     * Resumen leído de la cola en los ficheros de <code>ProtectedOutputStream</code>
+     */
+    private byte[] trailer;
     /**
      * Algoritmo utilizado
      */
@@ -60,9 +68,9 @@ public class SimpleHash {
         try {
             this.algorithm = algorithm;
             operationMode = HASH_MODE;
-            hasher = MessageDigest.getInstance(algorithm);
-            hasher.update(secret.getBytes());
-            hashStream = new DigestInputStream(buffer, hasher);
+            hasher = createDigest(algorithm, secret);
+            keyCheck = keyCheck(algorithm, secret);
+            hashStream = new DigestInputStream(ResourceLimits.input(buffer), hasher);
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso están");
             e.printStackTrace();
@@ -80,15 +88,36 @@ public class SimpleHash {
             header = new Header();
             header.load(buffer);
             operationMode = VERIFY_MODE;
-            hasher = MessageDigest.getInstance(header.getAlgorithm2());
-            hasher.update(secret.getBytes());
-            hashStream = new DigestInputStream(buffer, hasher);
+            hasher = createDigest(header.getAlgorithm2(), secret);
+            keyCheck = keyCheck(header.getAlgorithm2(), secret);
+            hashStream = new DigestInputStream(ResourceLimits.input(buffer), hasher);
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso están");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Crea un resumidor ya alimentado con el secreto compartido.
+     * Compartido con los flujos protegidos para que todos calculen el hash igual.
+     *
+     * @param algorithm Algoritmo hash utilizado
+     * @param secret    Secreto compartido utilizado
+     * @return Resumidor listo para usar
+     */
+    static MessageDigest createDigest(String algorithm, String secret) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        digest.update(secret.getBytes());
+        return digest;
+    }
+
+    /**
+     * Valor de comprobación del secreto: hash de secreto y <code>KEY_CHECK_BLOCK</code>, truncado
+     */
+    static byte[] keyCheck(String algorithm, String secret) throws NoSuchAlgorithmException {
+        return Arrays.copyOf(createDigest(algorithm, secret).digest(Header.KEY_CHECK_BLOCK), Header.KEY_CHECK_LENGTH);
+    }
+
     /**
      * Guarda un archivo con su código hash
      *
@@ -98,17 +127,21 @@ public class SimpleHash {
     public boolean save(OutputStream buffer) {
         if (Objects.equals(operationMode, HASH_MODE)) {
             try {
+                auxStream = new Spool();
                 header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], algorithm,
                         calculateHash()); //Guardamos el hash como datos del header
+                header.setExtension(Header.EXT_KEY_CHECK, keyCheck);
                 boolean headerSave = header.save(buffer);
                 if (!headerSave) {
                     return false;
                 }
-                buffer.write(auxStream.toByteArray());
+                auxStream.writeTo(ResourceLimits.output(buffer));
                 return true;
             } catch (IOException ex) {
                 ex.printStackTrace();
                 return false;
+            } finally {
+                closeAuxStream();
             }
         } else {
             return false;
@@ -116,15 +149,21 @@ public class SimpleHash {
     }
 
     /**
-     * Verifica el código hash del archivo cargado
+     * Verifica el código hash del archivo cargado. Acepta también los ficheros de
+     * <code>ProtectedOutputStream</code>, con datos vacíos en la cabecera y el hash en cola
      *
      * @return True si es válido, false si no
      */
     public boolean verify() {
         if (Objects.equals(operationMode, VERIFY_MODE)) {
+            byte[] check = header.getExtension(Header.EXT_KEY_CHECK);
+            if (check != null && !MessageDigest.isEqual(check, keyCheck)) {
+                System.err.println("El secreto no es válido para este fichero");
+                return false; // Sin leer el contenido
+            }
             try {
                 byte[] calculatedHash = calculateHash();
-                byte[] loadedHash = header.getData();
+                byte[] loadedHash = isTrailed() ? trailer : header.getData();
                 return Arrays.equals(calculatedHash, loadedHash);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -136,20 +175,46 @@ public class SimpleHash {
     }
 
     /**
-     * Método auxiliar que calcula el hash. Utiliza el DigestInputStream, pero lo carga en auxStream
+     * Método auxiliar que calcula el hash. Utiliza el DigestInputStream y, al guardar, lo carga en auxStream
      *
      * @return Código hash calculado
      * @throws IOException IOException interna
      */
+    @SuppressWarnings("try")
     private byte[] calculateHash() throws IOException {
-        auxStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1];
-        Integer loop_check = hashStream.read(buffer);
-        while (loop_check > 0) {
-            auxStream.write(buffer);
-            loop_check = hashStream.read(buffer);
+        try (ResourceLimits.Permit permit = ResourceLimits.enterWorker()) {
+            if (isTrailed()) {
+                hashStream.on(false);
+                trailer = ProtectedInputStream.readTrailer(hashStream, hasher.getDigestLength(), hasher::update);
+                return hasher.digest();
+            }
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = hashStream.read(buffer)) >= 0) {
+                if (auxStream != null) {
+                    auxStream.write(buffer, 0, n);
+                }
+            }
+            return hashStream.getMessageDigest().digest();
+        }
+    }
+
+    /**
+     * @return True si se verifica un fichero con el hash en cola
+     */
+    private boolean isTrailed() {
+        return Objects.equals(operationMode, VERIFY_MODE) && header.getData().length == 0;
+    }
+
+    private void closeAuxStream() {
+        if (auxStream != null) {
+            try {
+                auxStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            auxStream = null;
         }
-        return hashStream.getMessageDigest().digest();
     }
 
     /**
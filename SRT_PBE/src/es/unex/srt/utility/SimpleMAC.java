@@ -1,11 +1,11 @@
 package es.unex.srt.utility;
 
 import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
@@ -32,13 +32,17 @@ public class SimpleMAC {
      */
     private Mac mac;
     /**
-     * OutputStream "limpio" para volver a guardar lo cargado
+     * Copia "limpia" de lo cargado para volver a guardarlo, en memoria del presupuesto o en disco
      */
-    private ByteArrayOutputStream auxStream;
+    private Spool auxStream;
     /**
      * Cabecera del fichero con MAC
      */
     private Header header;
+    /**
+     * MAC leído de la cola en los ficheros de <code>ProtectedOutputStream</code>
+     */
+    private byte[] trailer;
     /**
      * Algoritmo utilizado
      */
@@ -51,6 +55,10 @@ public class SimpleMAC {
      * InputStream del archivo a leer
      */
     private InputStream openFile;
+    /**
+     * Iteraciones de la derivación de clave
+     */
+    private Integer iterationCount;
 
     /**
      * Constructor de un SimpleMAC para cálculo de MAC
@@ -63,13 +71,10 @@ public class SimpleMAC {
     public SimpleMAC(InputStream stream, String algorithm, String secret, Integer iterationCount) {
         try {
             this.algorithm = algorithm;
+            this.iterationCount = iterationCount;
             openFile = stream;
             operationMode = MAC_MODE;
-            mac = Mac.getInstance(algorithm);
-            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            PBEKeySpec keySpec = new PBEKeySpec(secret.toCharArray(), sal, iterationCount, mac.getMacLength());
-            SecretKey key = secretKeyFactory.generateSecret(keySpec);
-            mac.init(key);
+            mac = createMac(algorithm, secret, iterationCount);
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso están");
             e.printStackTrace();
@@ -87,7 +92,7 @@ public class SimpleMAC {
      *
      * @param stream         Búfer de entrada con el archivo abierto
      * @param secret         Secreto compartido utilizado
-     * @param iterationCount Iteraciones a realizar
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
      */
     public SimpleMAC(InputStream stream, String secret, Integer iterationCount) {
         try {
@@ -96,11 +101,8 @@ public class SimpleMAC {
             openFile = stream;
             operationMode = VERIFY_MODE;
             algorithm = header.getAlgorithm2();
-            mac = Mac.getInstance(algorithm);
-            SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            PBEKeySpec keySpec = new PBEKeySpec(secret.toCharArray(), sal, iterationCount, mac.getMacLength());
-            SecretKey key = secretKeyFactory.generateSecret(keySpec);
-            mac.init(key);
+            this.iterationCount = header.getIterationCount(iterationCount);
+            mac = createMac(algorithm, secret, this.iterationCount);
         } catch (NoSuchAlgorithmException e) {
             System.err.println("El algoritmo no existe. Usa las constantes de Options, para eso están");
             e.printStackTrace();
@@ -113,6 +115,70 @@ public class SimpleMAC {
         }
     }
 
+    /**
+     * Constructor de un SimpleMAC con la clave preparada de antemano por un <code>KeyPrefetch</code>:
+     * verifica si la preparación es de un fichero con MAC y lo calcula si no. Si lo preparado no
+     * sirve para el fichero, deriva la clave de la forma normal
+     *
+     * @param stream Búfer de entrada con el archivo abierto
+     * @param key    Clave preparada
+     */
+    public SimpleMAC(InputStream stream, KeyPrefetch key) {
+        try {
+            openFile = stream;
+            if (key.isLoaded()) {
+                header = new Header();
+                header.load(stream);
+                operationMode = VERIFY_MODE;
+                algorithm = header.getAlgorithm2();
+                iterationCount = header.getIterationCount(key.getIterationCount());
+            } else {
+                operationMode = MAC_MODE;
+                algorithm = key.getHeader().getAlgorithm2();
+                iterationCount = key.getIterationCount();
+            }
+            mac = key.takeMac(key.isLoaded() ? header : null);
+            if (mac == null) {
+                mac = createMac(algorithm, key.getPassword(), iterationCount);
+            }
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo preparar el MAC");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Valor de comprobación de la clave: MAC de <code>KEY_CHECK_BLOCK</code>, truncado. Tras
+     * <code>doFinal</code> el MAC vuelve a su estado inicial
+     */
+    static byte[] keyCheck(Mac mac) {
+        return Arrays.copyOf(mac.doFinal(Header.KEY_CHECK_BLOCK), Header.KEY_CHECK_LENGTH);
+    }
+
+    /**
+     * Crea e inicia un MAC con la clave derivada del secreto mediante PBKDF2.
+     * Compartido con los flujos protegidos para que todos deriven la clave igual.
+     *
+     * @param algorithm      Algoritmo MAC/HMAC utilizado
+     * @param secret         Secreto compartido utilizado
+     * @param iterationCount Iteraciones a realizar
+     * @return MAC listo para usar
+     */
+    static Mac createMac(String algorithm, String secret, Integer iterationCount)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        Mac mac = Mac.getInstance(algorithm);
+        // Misma clave que PBKDF2WithHmacSHA1 con getMacLength() como longitud en bits
+        byte[] derived;
+        try {
+            derived = Pbkdf2.deriveKey(secret, sal, iterationCount, mac.getMacLength());
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeySpecException(e.getMessage());
+        }
+        mac.init(new SecretKeySpec(derived, Pbkdf2.ALGORITHM));
+        Arrays.fill(derived, (byte) 0);
+        return mac;
+    }
+
     /**
      * Guarda un archivo con su código MAC
      *
@@ -122,16 +188,21 @@ public class SimpleMAC {
     public boolean save(OutputStream buffer) {
         if (Objects.equals(operationMode, MAC_MODE)) {
             try {
+                auxStream = new Spool();
                 header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], algorithm, calculateMac());
+                header.setIterationCount(iterationCount);
+                header.setExtension(Header.EXT_KEY_CHECK, keyCheck(mac));
                 boolean headerSave = header.save(buffer);
                 if (!headerSave) {
                     return false;
                 }
-                buffer.write(auxStream.toByteArray());
+                auxStream.writeTo(ResourceLimits.output(buffer));
                 return true;
             } catch (IOException e) {
                 e.printStackTrace();
                 return false;
+            } finally {
+                closeAuxStream();
             }
         } else {
             return false;
@@ -139,15 +210,21 @@ public class SimpleMAC {
     }
 
     /**
-     * Verifica el código MAC del archivo cargado
+     * Verifica el código MAC del archivo cargado. Acepta también los ficheros de
+     * <code>ProtectedOutputStream</code>, con datos vacíos en la cabecera y el MAC en cola
      *
      * @return True si es válido, false si no
      */
     public boolean verify() {
         if (Objects.equals(operationMode, VERIFY_MODE)) {
+            byte[] check = header.getExtension(Header.EXT_KEY_CHECK);
+            if (check != null && !MessageDigest.isEqual(check, keyCheck(mac))) {
+                System.err.println("El secreto no es válido para este fichero");
+                return false; // Sin leer el contenido
+            }
             try {
                 byte[] calculatedMac = calculateMac();
-                byte[] loadedMac = header.getData();
+                byte[] loadedMac = isTrailed() ? trailer : header.getData();
                 return Arrays.equals(calculatedMac, loadedMac);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -159,21 +236,47 @@ public class SimpleMAC {
     }
 
     /**
-     * Método auxiliar que calcula el MAC. Utiliza el InputStream, pero lo carga en auxStream
+     * Método auxiliar que calcula el MAC. Utiliza el InputStream y, al guardar, lo carga en auxStream
      *
      * @return Código MAC calculado
      * @throws IOException IOException interna
      */
+    @SuppressWarnings("try")
     private byte[] calculateMac() throws IOException {
-        auxStream = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1];
-        Integer loop_check = openFile.read(buffer);
-        while (loop_check > 0) {
-            auxStream.write(buffer);
-            mac.update(buffer);
-            loop_check = openFile.read(buffer);
+        try (ResourceLimits.Permit permit = ResourceLimits.enterWorker()) {
+            InputStream openFile = ResourceLimits.input(this.openFile);
+            if (isTrailed()) {
+                trailer = ProtectedInputStream.readTrailer(openFile, mac.getMacLength(), mac::update);
+                return mac.doFinal();
+            }
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = openFile.read(buffer)) >= 0) {
+                if (auxStream != null) {
+                    auxStream.write(buffer, 0, n);
+                }
+                mac.update(buffer, 0, n);
+            }
+            return mac.doFinal();
+        }
+    }
+
+    /**
+     * @return True si se verifica un fichero con el MAC en cola
+     */
+    private boolean isTrailed() {
+        return Objects.equals(operationMode, VERIFY_MODE) && header.getData().length == 0;
+    }
+
+    private void closeAuxStream() {
+        if (auxStream != null) {
+            try {
+                auxStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            auxStream = null;
         }
-        return mac.doFinal();
     }
 
     /**
@@ -0,0 +1,226 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+
+/**
+ * Clase para facilitar el cifrado de clave pública (<code>Options.OP_PUBLIC_CIPHER</code>).
+ * <p>
+ * Cifrar todo el contenido con RSA sería lentísimo, así que el cifrado es híbrido: por cada
+ * fichero se genera una clave de sesión AES aleatoria, el contenido se cifra con ella en flujo, y
+ * solo la clave de sesión se cifra con la clave pública RSA del destinatario y se guarda en la
+ * cabecera, junto con el alias del par de claves. Las claves y los cifradores RSA se toman de un
+ * <code>KeyStoreCache</code>, de modo que el coste por fichero es prácticamente el del cifrado
+ * simétrico.
+ * <p>
+ * El contenido se autentica con cifrar-y-luego-MAC, como en <code>SimpleArchive</code>: junto a la
+ * clave de sesión se envuelve una clave HMAC aleatoria, y el HMAC de la cabecera y del contenido
+ * cifrado va al final. Al descifrar, un fichero truncado o alterado hace que <code>save</code>
+ * devuelva false.
+ * <pre>
+ * |Header (RSA, HmacSHA256, IV, claves de sesión y HMAC envueltas, alias)|Contenido cifrado con AES/CBC|HMAC|
+ * </pre>
+ */
+public class SimplePublicCipher {
+
+    /**
+     * Cifrado del contenido con la clave de sesión
+     */
+    private static final String SESSION_ALGORITHM = "AES";
+    private static final String SESSION_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int SESSION_KEY_BITS = 128;
+    /**
+     * Autenticación de la cabecera y el contenido cifrado
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_KEY_BITS = 256;
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Cifrador del contenido
+     */
+    private Cipher c;
+    /**
+     * HMAC de la cabecera y el contenido cifrado
+     */
+    private Mac mac;
+    /**
+     * Cabecera del fichero a cifrar/descifrar
+     */
+    private Header header;
+    /**
+     * InputStream del archivo cargado
+     */
+    private InputStream loadedFile;
+    /**
+     * Modo de operación. True implica cifrado, False implica descifrado.
+     */
+    private boolean operationMode;
+
+    /**
+     * Constructor de un SimplePublicCipher para cifrado
+     *
+     * @param in    Búfer con el fichero en claro abierto
+     * @param keys  Almacén con el certificado del destinatario
+     * @param alias Alias del destinatario en el almacén
+     */
+    public SimplePublicCipher(InputStream in, KeyStoreCache keys, String alias) {
+        try {
+            operationMode = true;
+            loadedFile = in;
+            KeyGenerator generator = KeyGenerator.getInstance(SESSION_ALGORITHM);
+            generator.init(SESSION_KEY_BITS, RandomPool.generator());
+            SecretKey sessionKey = generator.generateKey();
+            KeyGenerator macGenerator = KeyGenerator.getInstance(MAC_ALGORITHM);
+            macGenerator.init(MAC_KEY_BITS, RandomPool.generator());
+            SecretKey macKey = macGenerator.generateKey();
+            byte[] iv = RandomPool.bytes(16);
+            header = new Header(Options.OP_PUBLIC_CIPHER, Options.publicAlgorithms[0], MAC_ALGORITHM, iv);
+            header.setExtension(Header.EXT_WRAPPED_KEY, keys.wrap(alias, sessionKey));
+            header.setExtension(Header.EXT_WRAPPED_MAC_KEY, keys.wrap(alias, macKey));
+            header.setExtension(Header.EXT_KEY_ALIAS, alias.getBytes(StandardCharsets.UTF_8));
+            c = Cipher.getInstance(SESSION_TRANSFORMATION);
+            c.init(Cipher.ENCRYPT_MODE, sessionKey, new IvParameterSpec(iv));
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(macKey);
+        } catch (GeneralSecurityException e) {
+            System.err.println("No se pudo preparar el cifrado para " + alias);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Constructor de un SimplePublicCipher para descifrado. El alias se lee de la cabecera.
+     *
+     * @param in          Búfer con el fichero cifrado abierto
+     * @param keys        Almacén con la clave privada del destinatario
+     * @param keyPassword Contraseña de la clave privada
+     */
+    public SimplePublicCipher(InputStream in, KeyStoreCache keys, char[] keyPassword) {
+        try {
+            operationMode = false;
+            loadedFile = in;
+            header = new Header();
+            if (!header.load(in) || header.getOperation() != Options.OP_PUBLIC_CIPHER) {
+                System.err.println("No es un fichero cifrado con clave pública");
+                return;
+            }
+            if (!MAC_ALGORITHM.equals(header.getAlgorithm2())) {
+                System.err.println("El fichero no está autenticado con " + MAC_ALGORITHM);
+                return;
+            }
+            byte[] wrapped = header.getExtension(Header.EXT_WRAPPED_KEY);
+            byte[] wrappedMac = header.getExtension(Header.EXT_WRAPPED_MAC_KEY);
+            byte[] alias = header.getExtension(Header.EXT_KEY_ALIAS);
+            if (wrapped == null || wrappedMac == null || alias == null) {
+                System.err.println("Falta la clave de sesión en la cabecera");
+                return;
+            }
+            String name = new String(alias, StandardCharsets.UTF_8);
+            Key sessionKey = keys.unwrap(name, keyPassword, wrapped, SESSION_ALGORITHM);
+            Key macKey = keys.unwrap(name, keyPassword, wrappedMac, MAC_ALGORITHM);
+            mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(macKey);
+            ByteArrayOutputStream loaded = new ByteArrayOutputStream();
+            header.save(loaded);
+            mac.update(loaded.toByteArray());
+            c = Cipher.getInstance(SESSION_TRANSFORMATION);
+            c.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(header.getData()));
+        } catch (GeneralSecurityException e) {
+            System.err.println("La clave privada no es válida para este fichero");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Alias del destinatario guardado en la cabecera, o null si no lo hay
+     */
+    public String getAlias() {
+        byte[] alias = header == null ? null : header.getExtension(Header.EXT_KEY_ALIAS);
+        return alias == null ? null : new String(alias, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Método que guarda el archivo cifrado/descifrado. Al descifrar, lo escrito solo es válido si
+     * devuelve true: el HMAC se comprueba al llegar al final
+     *
+     * @param out Búfer con el archivo de salida. Se cierra al terminar
+     * @return True si se pudo guardar, false si no o si el fichero cifrado está truncado o alterado
+     */
+    public boolean save(OutputStream out) {
+        if (c == null || mac == null) {
+            return false;
+        }
+        try {
+            return operationMode ? encrypt(out) : decrypt(out);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Escribe la cabecera, el contenido cifrado y el HMAC de ambos
+     */
+    private boolean encrypt(OutputStream out) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        if (!header.save(saved)) {
+            return false;
+        }
+        writeAuthenticated(out, saved.toByteArray());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = loadedFile.read(buffer)) >= 0) {
+            writeAuthenticated(out, c.update(buffer, 0, n));
+        }
+        writeAuthenticated(out, c.doFinal());
+        out.write(mac.doFinal());
+        return true;
+    }
+
+    /**
+     * Escribe un trozo y lo añade al HMAC
+     */
+    private void writeAuthenticated(OutputStream out, byte[] chunk) throws IOException {
+        if (chunk != null && chunk.length > 0) {
+            mac.update(chunk);
+            out.write(chunk);
+        }
+    }
+
+    /**
+     * Descifra el contenido reservando el HMAC del final, y lo compara con el calculado
+     */
+    private boolean decrypt(OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] tag = ProtectedInputStream.readTrailer(loadedFile, mac.getMacLength(), (block, offset, length) -> {
+            mac.update(block, offset, length);
+            byte[] plain = c.update(block, offset, length);
+            if (plain != null) {
+                out.write(plain);
+            }
+        });
+        if (tag == null || !MessageDigest.isEqual(mac.doFinal(), tag)) {
+            System.err.println("El fichero cifrado está truncado o alterado");
+            return false;
+        }
+        out.write(c.doFinal());
+        return true;
+    }
+}
@@ -0,0 +1,321 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cifrado en varios volúmenes de tamaño fijo (<code>nombre.cph.001</code>, <code>.002</code>, ...)
+ * que se escriben y se leen en paralelo.
+ * <p>
+ * La clave se deriva una sola vez y cada volumen se cifra por separado con su propio IV, así que
+ * cada hilo trabaja con su trozo del fichero en claro sin esperar a los demás, y cada volumen se
+ * puede copiar a un disco o punto de montaje distinto. Cada volumen lleva una cabecera completa que
+ * dice qué número es, cuántos forman el conjunto y la longitud total, y un HMAC que también cubre
+ * esos datos, de modo que no se pueden reordenar ni mezclar volúmenes de conjuntos distintos.
+ * <pre>
+ * Volumen: |Header (OP_VOLUME, algoritmo, sal; iteraciones, EXT_VOLUME)|IV|Cifrado|HMAC|
+ * HMAC: HMAC(EXT_VOLUME || IV || cifrado)
+ * </pre>
+ */
+public class SimpleVolumes {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Claves derivadas de la contraseña
+     */
+    private KeyMaterial keys;
+    /**
+     * Algoritmo, sal e iteraciones, comunes a todos los volúmenes
+     */
+    private String algorithm;
+    private byte[] sal;
+    private Integer iterationCount;
+    /**
+     * Tamaño en claro de cada volumen (el último puede ser menor) y número de volúmenes
+     */
+    private long volumeSize;
+    private int count;
+    /**
+     * Longitud total en claro
+     */
+    private long length;
+    /**
+     * Fichero en claro (al cifrar) o primer volumen (al descifrar)
+     */
+    private File source;
+    /**
+     * Modo de operación. True implica cifrado, False implica descifrado.
+     */
+    private boolean operationMode;
+
+    /**
+     * Constructor de un SimpleVolumes para cifrado
+     *
+     * @param source         Fichero en claro
+     * @param algorithm      Algoritmo de <code>Options.symmetricalAlgorithms</code>
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar
+     * @param volumeSize     Tamaño en claro de cada volumen
+     * @throws IOException si el algoritmo o el tamaño no son válidos
+     */
+    public SimpleVolumes(File source, String algorithm, String password, Integer iterationCount, long volumeSize)
+            throws IOException {
+        if (volumeSize <= 0) {
+            throw new IOException("Tamaño de volumen no válido");
+        }
+        operationMode = true;
+        this.source = source;
+        this.algorithm = algorithm;
+        this.iterationCount = iterationCount;
+        this.volumeSize = volumeSize;
+        length = source.length();
+        long volumes = Math.max(1, (length + volumeSize - 1) / volumeSize);
+        if (volumes > 999) {
+            throw new IOException("Demasiados volúmenes: usa un tamaño mayor");
+        }
+        count = (int) volumes;
+        sal = RandomPool.bytes(8);
+        try {
+            keys = new KeyMaterial(algorithm, password, sal, iterationCount);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("El algoritmo no es válido: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Constructor de un SimpleVolumes para descifrado
+     *
+     * @param firstVolume    Primer volumen (<code>nombre.001</code>)
+     * @param password       Contraseña de usuario
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @throws IOException si no es un volumen válido o el algoritmo no es válido
+     */
+    public SimpleVolumes(File firstVolume, String password, Integer iterationCount) throws IOException {
+        operationMode = false;
+        source = firstVolume;
+        Header header = readHeader(firstVolume);
+        ByteBuffer volume = ByteBuffer.wrap(header.getExtension(Header.EXT_VOLUME));
+        if (volume.getInt() != 0) {
+            throw new IOException("No es el primer volumen");
+        }
+        count = volume.getInt();
+        volumeSize = volume.getLong();
+        length = volume.getLong();
+        algorithm = header.getAlgorithm1();
+        sal = header.getData();
+        this.iterationCount = header.getIterationCount(iterationCount);
+        try {
+            keys = new KeyMaterial(algorithm, password, sal, this.iterationCount);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("El algoritmo no es válido: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Nombre de un volumen
+     *
+     * @param base  Nombre base, por ejemplo <code>datos.cph</code>
+     * @param index Número de volumen, desde 0
+     * @return <code>base.001</code>, <code>base.002</code>, ...
+     */
+    public static File volume(File base, int index) {
+        return new File(String.format("%s.%03d", base.getPath(), index + 1));
+    }
+
+    /**
+     * @return Número de volúmenes del conjunto
+     */
+    public int getVolumeCount() {
+        return count;
+    }
+
+    /**
+     * Cifra en volúmenes o descifra el conjunto, con varios hilos
+     *
+     * @param target  Al cifrar, nombre base de los volúmenes; al descifrar, fichero en claro
+     * @param threads Hilos que escriben o leen volúmenes a la vez
+     * @return True si se pudo guardar, false si no (al descifrar, también si algún volumen está alterado)
+     */
+    public boolean save(File target, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, count)));
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(count);
+            if (operationMode) {
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    results.add(pool.submit(() -> encryptVolume(index, volume(target, index))));
+                }
+                return all(results);
+            }
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                File base = new File(source.getPath().substring(0, source.getPath().length() - 4));
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    results.add(pool.submit(() -> decryptVolume(index, volume(base, index), out)));
+                }
+                if (all(results)) {
+                    return true;
+                }
+            }
+            target.delete(); // No se deja nada en claro sin autenticar
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static boolean all(List<Future<Boolean>> results) {
+        boolean ok = true;
+        for (Future<Boolean> f : results) {
+            try {
+                ok &= f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Datos de EXT_VOLUME de un volumen
+     */
+    private byte[] volumeInfo(int index) {
+        return ByteBuffer.allocate(24).putInt(index).putInt(count).putLong(volumeSize).putLong(length).array();
+    }
+
+    /**
+     * Cifra un trozo del fichero en claro en su volumen
+     */
+    private boolean encryptVolume(int index, File file) throws IOException, GeneralSecurityException {
+        byte[] info = volumeInfo(index);
+        Header header = new Header(Options.OP_VOLUME, algorithm, KeyMaterial.MAC_ALGORITHM, sal);
+        header.setIterationCount(iterationCount);
+        header.setExtension(Header.EXT_VOLUME, info);
+        byte[] iv = RandomPool.bytes(keys.getIvLength());
+        Cipher cipher = keys.newCipher(Cipher.ENCRYPT_MODE, iv);
+        Mac mac = keys.newMac();
+        mac.update(info);
+        mac.update(iv);
+        long start = index * volumeSize;
+        long end = Math.min(length, start + volumeSize);
+        try (MemoryBudget.Lease lease = MemoryBudget.acquire(BUFFER_SIZE);
+             FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+            if (!header.save(out)) {
+                return false;
+            }
+            out.write(iv);
+            ByteBuffer buffer = ByteBuffer.wrap(lease.buffer());
+            for (long pos = start; pos < end; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - pos));
+                int n = in.read(buffer, pos);
+                if (n < 0) {
+                    throw new EOFException("El fichero ha cambiado mientras se cifraba");
+                }
+                pos += n;
+                writeAuthenticated(cipher.update(buffer.array(), 0, n), mac, out);
+            }
+            writeAuthenticated(cipher.doFinal(), mac, out);
+            out.write(mac.doFinal());
+        }
+        return true;
+    }
+
+    private static void writeAuthenticated(byte[] chunk, Mac mac, OutputStream out) throws IOException {
+        if (chunk != null && chunk.length > 0) {
+            mac.update(chunk);
+            out.write(chunk);
+        }
+    }
+
+    /**
+     * Descifra un volumen en su sitio del fichero en claro, autenticándolo al terminar
+     */
+    private boolean decryptVolume(int index, File file, FileChannel out) throws IOException, GeneralSecurityException {
+        byte[] info = volumeInfo(index);
+        Header header = readHeader(file);
+        if (!Arrays.equals(header.getExtension(Header.EXT_VOLUME), info) || !Arrays.equals(header.getData(), sal)) {
+            System.err.println("El volumen " + file + " no pertenece a este conjunto");
+            return false;
+        }
+        Mac mac = keys.newMac();
+        int tagLength = mac.getMacLength();
+        long position = index * volumeSize;
+        try (MemoryBudget.Lease lease = MemoryBudget.acquire(BUFFER_SIZE);
+             InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            new Header().load(in);
+            byte[] iv = new byte[keys.getIvLength()];
+            new DataInputStream(in).readFully(iv);
+            mac.update(info);
+            mac.update(iv);
+            Cipher cipher = keys.newCipher(Cipher.DECRYPT_MODE, iv);
+            // Se retienen los últimos bytes leídos, que son el HMAC
+            byte[] buffer = lease.buffer();
+            int held = 0;
+            int n;
+            while ((n = in.read(buffer, held, buffer.length - tagLength)) >= 0) {
+                held += n;
+                int data = held - tagLength;
+                if (data > 0) {
+                    mac.update(buffer, 0, data);
+                    position += write(cipher.update(buffer, 0, data), out, position);
+                    System.arraycopy(buffer, data, buffer, 0, tagLength);
+                    held = tagLength;
+                }
+            }
+            if (held != tagLength) {
+                System.err.println("El volumen " + file + " está truncado");
+                return false;
+            }
+            byte[] tag = Arrays.copyOf(buffer, tagLength);
+            if (!MessageDigest.isEqual(mac.doFinal(), tag)) {
+                System.err.println("El volumen " + file + " está alterado");
+                return false;
+            }
+            write(cipher.doFinal(), out, position);
+            return true;
+        }
+    }
+
+    private static int write(byte[] chunk, FileChannel out, long position) throws IOException {
+        if (chunk == null) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return chunk.length;
+    }
+
+    private static Header readHeader(File file) throws IOException {
+        Header header = new Header();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            if (!header.load(in) || header.getOperation() != Options.OP_VOLUME
+                    || header.getExtension(Header.EXT_VOLUME) == null
+                    || header.getExtension(Header.EXT_VOLUME).length != 24) {
+                throw new IOException("No es un volumen cifrado: " + file);
+            }
+        }
+        return header;
+    }
+}
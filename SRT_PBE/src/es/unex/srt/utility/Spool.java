@@ -0,0 +1,113 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Copia temporal de un contenido que hay que escribir después de calcular algo sobre él (el hash o
+ * el MAC van en la cabecera, delante). Lo que cabe en un búfer de {@link MemoryBudget} se queda en
+ * memoria; el resto va a un fichero temporal, que se borra al cerrar.
+ */
+final class Spool extends OutputStream {
+
+    /**
+     * Memoria que se pide para la copia
+     */
+    static final int PREFERRED_SIZE = 1024 * 1024;
+
+    private final MemoryBudget.Lease lease;
+    private final byte[] buffer;
+    private int count;
+    private Path file;
+    private OutputStream spill;
+
+    /**
+     * Constructor: pide el búfer al presupuesto, esperando si hace falta
+     *
+     * @throws InterruptedIOException si se interrumpe la espera
+     */
+    Spool() throws InterruptedIOException {
+        lease = MemoryBudget.acquire(PREFERRED_SIZE);
+        buffer = lease.buffer();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            spill();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                spill();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Pasa el búfer lleno al fichero temporal
+     */
+    private void spill() throws IOException {
+        if (spill == null) {
+            file = Files.createTempFile("srt-spool", ".tmp");
+            file.toFile().deleteOnExit();
+            spill = Files.newOutputStream(file);
+        }
+        spill.write(buffer, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Escribe todo el contenido en <code>out</code>, usando el mismo búfer
+     *
+     * @param out Destino. Se devuelve sin cerrar
+     * @throws IOException si falla la lectura del temporal o la escritura
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (spill == null) {
+            out.write(buffer, 0, count);
+            return;
+        }
+        spill();
+        spill.close();
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        count = 0;
+    }
+
+    /**
+     * @return True si el contenido no cupo en memoria
+     */
+    boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * Borra el temporal y devuelve el búfer al presupuesto
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (spill != null) {
+                spill.close();
+                Files.deleteIfExists(file);
+            }
+        } finally {
+            lease.close();
+        }
+    }
+}
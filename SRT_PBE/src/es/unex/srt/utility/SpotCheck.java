@@ -0,0 +1,339 @@
+package es.unex.srt.utility;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Verificación por muestreo de ficheros grandes.
+ * <p>
+ * Junto al fichero se guarda un HMAC por bloque de tamaño fijo (<code>nombre.bmac</code>). La
+ * comprobación elige al azar, a partir de una semilla, una fracción de los bloques y solo lee y
+ * autentica esos, de modo que la E/S de cada pasada la fija un presupuesto y no el tamaño total.
+ * Con la misma semilla se repite exactamente la misma comprobación. Si todos los bloques
+ * muestreados son correctos, se informa de la probabilidad con que se habría detectado un daño de
+ * un tamaño dado.
+ * <pre>
+ * nombre.bmac: |Header (OP_HASH_MAC, HmacSHA256, sal; iteraciones, EXT_BLOCK_LAYOUT)|Longitud (8)|
+ *              |HMAC bloque 0|...|HMAC bloque N-1|HMAC de todo lo anterior|
+ * HMAC bloque i: HMAC(i (8) || longitud (8) || bloque)
+ * </pre>
+ */
+public class SpotCheck {
+
+    /**
+     * Extensión del fichero de autenticadores
+     */
+    public static final String SUFFIX = ".bmac";
+    /**
+     * Tamaño de bloque por defecto
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int TAG_LENGTH = 32;
+
+    /**
+     * Resultado de una comprobación
+     */
+    public static class Result {
+        /**
+         * Bloques del fichero y bloques comprobados
+         */
+        public final long blocks, checked;
+        /**
+         * Bloques que no coinciden
+         */
+        public final List<Long> failed;
+        /**
+         * Bytes leídos del fichero
+         */
+        public final long bytesRead;
+        /**
+         * Semilla usada
+         */
+        public final long seed;
+
+        Result(long blocks, long checked, List<Long> failed, long bytesRead, long seed) {
+            this.blocks = blocks;
+            this.checked = checked;
+            this.failed = failed;
+            this.bytesRead = bytesRead;
+            this.seed = seed;
+        }
+
+        /**
+         * @return True si ningún bloque muestreado falla
+         */
+        public boolean isValid() {
+            return failed.isEmpty();
+        }
+
+        /**
+         * Probabilidad de que la muestra hubiera encontrado al menos un bloque dañado si hubiera
+         * <code>corrupt</code> bloques dañados (muestreo sin reemplazo)
+         *
+         * @param corrupt Bloques dañados supuestos
+         * @return Probabilidad entre 0 y 1
+         */
+        public double detectionProbability(long corrupt) {
+            if (corrupt <= 0) {
+                return 0;
+            }
+            if (corrupt > blocks - checked) {
+                return 1;
+            }
+            double miss = 1;
+            for (long i = 0; i < checked && miss > 0; i++) {
+                miss *= (double) (blocks - corrupt - i) / (blocks - i);
+            }
+            return 1 - miss;
+        }
+    }
+
+    private final File file;
+    private final Mac mac;
+    private final int blockSize;
+    private final long length;
+    private final long blockCount;
+    private final byte[] tags;
+
+    /**
+     * Constructor. Carga y autentica el fichero de autenticadores.
+     *
+     * @param file           Fichero protegido
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones a realizar si la cabecera no las guarda
+     * @throws IOException si no hay autenticadores, el secreto no es correcto o están alterados
+     */
+    public SpotCheck(File file, String secret, Integer iterationCount) throws IOException {
+        this.file = file;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar(file))))) {
+            Header header = new Header();
+            if (!header.load(in) || header.getOperation() != Options.OP_HASH_MAC) {
+                throw new IOException("No es un fichero de autenticadores");
+            }
+            byte[] layout = header.getExtension(Header.EXT_BLOCK_LAYOUT);
+            if (layout == null || layout.length != 8) {
+                throw new IOException("Falta el tamaño de bloque");
+            }
+            blockSize = ByteBuffer.wrap(layout).getInt();
+            mac = createMac(secret, header.getData(), header.getIterationCount(iterationCount));
+            length = in.readLong();
+            if (blockSize <= 0 || length < 0) {
+                throw new IOException("Fichero de autenticadores dañado");
+            }
+            blockCount = blocks(length, blockSize);
+            if (blockCount * TAG_LENGTH > Math.min(Integer.MAX_VALUE - TAG_LENGTH, sidecar(file).length())) {
+                throw new IOException("Fichero de autenticadores dañado");
+            }
+            tags = new byte[(int) blockCount * TAG_LENGTH];
+            in.readFully(tags);
+            byte[] stored = new byte[TAG_LENGTH];
+            in.readFully(stored);
+            if (!MessageDigest.isEqual(stored, summaryTag(mac, length, tags))) {
+                throw new IOException("Secreto incorrecto o autenticadores alterados");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo preparar el MAC", e);
+        }
+    }
+
+    /**
+     * @param file Fichero protegido
+     * @return Su fichero de autenticadores
+     */
+    public static File sidecar(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Calcula y guarda los autenticadores por bloque de un fichero
+     *
+     * @param file           Fichero protegido
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones a realizar
+     * @param blockSize      Tamaño de bloque
+     * @return True si se guardaron, false si hubo error
+     */
+    public static boolean create(File file, String secret, Integer iterationCount, int blockSize) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] sal = RandomPool.bytes(8);
+            Mac mac = createMac(secret, sal, iterationCount);
+            long length = channel.size();
+            long count = blocks(length, blockSize);
+            ByteArrayOutputStream tags = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, count * TAG_LENGTH));
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (long i = 0; i < count; i++) {
+                readBlock(channel, block, i, blockSize, length);
+                tags.write(blockTag(mac, i, length, block));
+            }
+            Header header = new Header(Options.OP_HASH_MAC, Options.cipherAlgorithms[0], MAC_ALGORITHM, sal);
+            header.setIterationCount(iterationCount);
+            header.setExtension(Header.EXT_BLOCK_LAYOUT, ByteBuffer.allocate(8).putInt(blockSize).putInt(0).array());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar(file))))) {
+                if (!header.save(out)) {
+                    return false;
+                }
+                out.writeLong(length);
+                tags.writeTo(out);
+                out.write(summaryTag(mac, length, tags.toByteArray()));
+            }
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Comprueba una fracción de los bloques elegidos al azar
+     *
+     * @param seed     Semilla de la selección
+     * @param fraction Fracción de bloques a comprobar, entre 0 y 1 (al menos uno si hay bloques)
+     * @return Resultado
+     * @throws IOException si no se puede leer el fichero
+     */
+    public Result check(long seed, double fraction) throws IOException {
+        long sample = blockCount == 0 ? 0 : Math.max(1, Math.min(blockCount, (long) Math.ceil(fraction * blockCount)));
+        List<Long> failed = new ArrayList<>();
+        long bytesRead = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != length) {
+                failed.add(Math.min(channel.size(), length) / blockSize);
+                return new Result(blockCount, 0, failed, 0, seed);
+            }
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (long i : select(seed, blockCount, sample)) {
+                readBlock(channel, block, i, blockSize, length);
+                bytesRead += block.remaining();
+                byte[] expected = Arrays.copyOfRange(tags, (int) i * TAG_LENGTH, (int) (i + 1) * TAG_LENGTH);
+                if (!MessageDigest.isEqual(expected, blockTag(mac, i, length, block))) {
+                    failed.add(i);
+                }
+            }
+        }
+        return new Result(blockCount, sample, failed, bytesRead, seed);
+    }
+
+    /**
+     * Comprueba por muestreo todos los ficheros con autenticadores de un directorio, repartiendo un
+     * presupuesto de lectura en proporción al tamaño de cada fichero
+     *
+     * @param root           Directorio
+     * @param secret         Secreto compartido
+     * @param iterationCount Iteraciones si la cabecera no las guarda
+     * @param budget         Bytes a leer en total
+     * @param seed           Semilla de la pasada; cada fichero usa una derivada de ella y de su nombre
+     * @param out            Destino del informe (TSV). Se devuelve sin cerrar
+     * @return True si ningún bloque muestreado falla
+     * @throws IOException si no se puede recorrer el directorio o escribir el informe
+     */
+    public static boolean sweep(Path root, String secret, Integer iterationCount, long budget, long seed, Writer out)
+            throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(p -> Files.isRegularFile(p) && sidecar(p.toFile()).isFile())
+                    .sorted().collect(Collectors.toList());
+        }
+        long total = 0;
+        for (Path p : files) {
+            total += Files.size(p);
+        }
+        double fraction = total == 0 ? 1 : Math.min(1, budget / (double) total);
+        boolean valid = true;
+        long read = 0;
+        out.write("# ruta\tveredicto\tbloques\tcomprobados\tfallidos\tdeteccion_1_bloque\tdeteccion_1_por_ciento\n");
+        for (Path p : files) {
+            String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+            try {
+                Result r = new SpotCheck(p.toFile(), secret, iterationCount).check(seed ^ name.hashCode(), fraction);
+                read += r.bytesRead;
+                valid &= r.isValid();
+                out.write(String.format("%s\t%s\t%d\t%d\t%s\t%.4f\t%.4f%n", name,
+                        r.isValid() ? IntegrityAudit.VALID : IntegrityAudit.ALTERED, r.blocks, r.checked,
+                        r.failed.isEmpty() ? "-" : r.failed.toString().replace(" ", ""),
+                        r.detectionProbability(1), r.detectionProbability(Math.max(1, r.blocks / 100))));
+            } catch (IOException e) {
+                valid = false;
+                out.write(name + "\t" + IntegrityAudit.ERROR + "\t" + e.getMessage() + "\n");
+            }
+        }
+        out.write(String.format("# ficheros=%d bytes=%d leidos=%d fraccion=%.6f semilla=%d%n", files.size(), total,
+                read, fraction, seed));
+        out.flush();
+        return valid;
+    }
+
+    /**
+     * Elige <code>sample</code> bloques distintos de <code>count</code> (algoritmo de Floyd), en orden
+     * creciente para leer secuencialmente
+     */
+    private static long[] select(long seed, long count, long sample) {
+        Random random = new Random(seed);
+        Set<Long> chosen = new HashSet<>();
+        for (long j = count - sample; j < count; j++) {
+            long t = (long) (random.nextDouble() * (j + 1));
+            if (!chosen.add(t)) {
+                chosen.add(j);
+            }
+        }
+        long[] sorted = new long[chosen.size()];
+        int k = 0;
+        for (long i : chosen) {
+            sorted[k++] = i;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static long blocks(long length, int blockSize) {
+        return length == 0 ? 0 : (length - 1) / blockSize + 1;
+    }
+
+    private static Mac createMac(String secret, byte[] sal, Integer iterationCount) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(Pbkdf2.deriveKey(secret, sal, iterationCount, TAG_LENGTH * 8), MAC_ALGORITHM));
+        return mac;
+    }
+
+    private static void readBlock(FileChannel channel, ByteBuffer block, long i, int blockSize, long length)
+            throws IOException {
+        block.clear().limit((int) Math.min(blockSize, length - i * blockSize));
+        long position = i * blockSize;
+        while (block.hasRemaining()) {
+            int n = channel.read(block, position);
+            if (n < 0) {
+                throw new EOFException("Fichero truncado");
+            }
+            position += n;
+        }
+        block.flip();
+    }
+
+    private static byte[] blockTag(Mac mac, long i, long length, ByteBuffer block) {
+        mac.update(ByteBuffer.allocate(16).putLong(i).putLong(length).array());
+        mac.update(block.duplicate());
+        return mac.doFinal();
+    }
+
+    private static byte[] summaryTag(Mac mac, long length, byte[] tags) {
+        mac.update(ByteBuffer.allocate(16).putLong(-1).putLong(length).array());
+        mac.update(tags);
+        return mac.doFinal();
+    }
+}
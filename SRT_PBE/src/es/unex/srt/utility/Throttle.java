@@ -0,0 +1,128 @@
+package es.unex.srt.utility;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cubo de fichas para limitar un caudal en bytes por segundo, ajustable en caliente.
+ * <p>
+ * Cada llamada reserva sus bytes aunque deje el cubo en deuda, y duerme lo que tarde el cubo en
+ * volver a cero; así varios hilos se reparten el caudal sin colas ni hilos auxiliares, y el cubo
+ * admite ráfagas de hasta un segundo de caudal. Con caudal 0 no se limita nada, solo se cuenta.
+ */
+public class Throttle {
+
+    /**
+     * Nombre del recurso limitado, para el informe
+     */
+    private final String name;
+    /**
+     * Caudal en bytes por segundo; 0 es sin límite
+     */
+    private long rate;
+    /**
+     * Fichas disponibles (negativo si hay deuda) y momento de la última reposición
+     */
+    private double tokens;
+    private long lastNanos = System.nanoTime();
+    /**
+     * Estadísticas: bytes que han pasado, esperas y tiempo total esperado
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    /**
+     * Constructor, sin límite
+     *
+     * @param name Nombre del recurso limitado
+     */
+    public Throttle(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Cambia el caudal. Las esperas ya en curso terminan con el caudal anterior
+     *
+     * @param bytesPerSecond Bytes por segundo; 0 quita el límite
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+        tokens = rate;
+        lastNanos = System.nanoTime();
+    }
+
+    /**
+     * @return Caudal en bytes por segundo; 0 si no hay límite
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Reserva bytes del caudal, esperando si hace falta
+     *
+     * @param n Bytes a reservar
+     * @throws InterruptedIOException si se interrumpe la espera
+     */
+    public void acquire(long n) throws InterruptedIOException {
+        bytes.addAndGet(n);
+        long sleepNanos;
+        synchronized (this) {
+            if (rate == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastNanos) * rate / 1e9);
+            lastNanos = now;
+            tokens -= n;
+            if (tokens >= 0) {
+                return;
+            }
+            sleepNanos = (long) (-tokens * 1e9 / rate);
+        }
+        waits.incrementAndGet();
+        waitedNanos.addAndGet(sleepNanos);
+        try {
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Espera de " + name + " interrumpida");
+        }
+    }
+
+    /**
+     * @return Bytes que han pasado por el límite
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Milisegundos esperados en total por el límite
+     */
+    public long getWaitedMillis() {
+        return waitedNanos.get() / 1000000;
+    }
+
+    /**
+     * Pone a cero las estadísticas
+     */
+    public void resetStats() {
+        bytes.set(0);
+        waits.set(0);
+        waitedNanos.set(0);
+    }
+
+    /**
+     * @return Resumen del límite y lo que ha frenado
+     */
+    @Override
+    public String toString() {
+        long r = getRate();
+        return String.format("%s: %s, %d bytes, %d esperas, %d ms esperados", name,
+                r == 0 ? "sin límite" : String.format("%.2f MB/s", r / (1024.0 * 1024)), bytes.get(), waits.get(),
+                getWaitedMillis());
+    }
+}
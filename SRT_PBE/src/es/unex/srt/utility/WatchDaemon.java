@@ -0,0 +1,371 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Vigilancia de un directorio que cifra o protege con hash/MAC los ficheros que van llegando, con
+ * los algoritmos de unas <code>Options</code>.
+ * <p>
+ * Un hilo recibe los avisos de <code>WatchService</code> (también de los subdirectorios) y
+ * apunta cada fichero con la hora del último cambio. Un fichero se da por terminado cuando lleva
+ * <code>quietMillis</code> sin avisos y sin cambiar de tamaño; entonces se pone en la cola de
+ * trabajo, de capacidad fija: si está llena, el hilo espera a que haya hueco, y los avisos se
+ * acumulan mientras tanto. Un número fijo de hilos escribe el resultado junto al original
+ * (<code>nombre.cph</code>, <code>.hsh</code> o <code>.mac</code>), como {@link Worker}.
+ * <p>
+ * Al arrancar, y si el sistema avisa de que ha perdido avisos, se recorre el directorio entero y
+ * se encolan los ficheros sin proteger: los que no empiezan por la marca de <code>Header</code> y
+ * no tienen un resultado más reciente que ellos. Así se recupera lo que llegó con el proceso parado.
+ * <p>
+ * Un fichero que cambia mientras está en cola sigue apuntado, y se vuelve a encolar cuando termina
+ * el trabajo en curso. Si cambia mientras se está leyendo, el resultado se fecha con la versión
+ * leída, así que se ve más antiguo que el fichero y se protege otra vez.
+ */
+public class WatchDaemon implements Closeable {
+
+    /**
+     * Operaciones: cifrar con el algoritmo simétrico, o proteger con el autenticador (hash o MAC)
+     */
+    public static final String ENCRYPT = "cifrar";
+    public static final String PROTECT = "proteger";
+
+    /**
+     * Tiempo sin cambios por defecto para dar un fichero por terminado
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 1000;
+    private static final long TICK_MILLIS = 200;
+
+    private final Path root;
+    private final String operation, algorithm, secret;
+    private final Integer iterationCount;
+    private final long quietMillis;
+    private final WatchService watcher;
+    private final ExecutorService workers;
+    /**
+     * Huecos de la cola de trabajo, incluidos los que se están procesando
+     */
+    private final Semaphore slots;
+    /**
+     * Ficheros con cambios recientes, aún sin encolar
+     */
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    /**
+     * Ficheros encolados o en proceso, para no encolarlos dos veces
+     */
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong done = new AtomicLong(), failed = new AtomicLong(), rescans = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param root           Directorio a vigilar
+     * @param operation      <code>ENCRYPT</code> o <code>PROTECT</code>
+     * @param options        Algoritmos: el simétrico para cifrar, el autenticador para proteger
+     * @param secret         Contraseña o secreto compartido
+     * @param iterationCount Iteraciones de la derivación de clave
+     * @param threads        Hilos de trabajo
+     * @param capacity       Ficheros en cola como mucho, además de los que se procesan
+     * @param quietMillis    Tiempo sin cambios para dar un fichero por terminado
+     * @throws IOException si no se puede vigilar el directorio
+     * @throws IllegalArgumentException si la operación o el algoritmo no son válidos
+     */
+    public WatchDaemon(Path root, String operation, Options options, String secret, Integer iterationCount,
+                       int threads, int capacity, long quietMillis) throws IOException {
+        this.root = root;
+        this.secret = secret;
+        this.iterationCount = iterationCount;
+        this.quietMillis = quietMillis;
+        if (operation.equals(ENCRYPT)) {
+            this.operation = Coordinator.CIPHER;
+            algorithm = options.getSymmetricalCipher();
+        } else if (operation.equals(PROTECT)) {
+            algorithm = options.getAuthenticator();
+            this.operation = Options.isTypeAlgorithm(Options.macAlgorithms, algorithm) ? Coordinator.MAC
+                    : Coordinator.HASH;
+        } else {
+            throw new IllegalArgumentException("Operación desconocida: " + operation);
+        }
+        if (!Options.isTypeAlgorithm(Options.cipherAlgorithms, algorithm)
+                && !Options.isTypeAlgorithm(Options.hashmacAlgorithms, algorithm)) {
+            throw new IllegalArgumentException("Algoritmo desconocido: " + algorithm);
+        }
+        int n = Math.max(1, threads);
+        workers = Executors.newFixedThreadPool(n);
+        slots = new Semaphore(n + Math.max(0, capacity));
+        watcher = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Empieza a vigilar: registra el árbol, recorre lo que ya hay y arranca el hilo de avisos
+     *
+     * @throws IOException si no se puede registrar el directorio
+     */
+    public synchronized void start() throws IOException {
+        register(root);
+        running = true;
+        thread = new Thread(this::watch, "WatchDaemon");
+        thread.start();
+        rescan();
+    }
+
+    /**
+     * Deja de vigilar y espera a que terminen los ficheros encolados
+     */
+    @Override
+    public void close() {
+        running = false;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        try {
+            watcher.close();
+            if (t != null) {
+                t.join();
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Ficheros protegidos y fallidos, tiempo desde la llegada, cola y esperas por cola llena
+     */
+    public String report() {
+        return String.format("protegidos %d, fallidos %d, pendientes %d, en cola %d; desde la llegada: media %.0f ms,"
+                        + " p99 %d ms, max %d ms; %d ms esperando hueco en la cola, %d recorridos completos",
+                done.get(), failed.get(), pending.size(), queued.size(), latency.getMean() / 1e6,
+                latency.getValueAtPercentile(99) / 1000000, latency.getMax() / 1000000,
+                blockedNanos.get() / 1000000, rescans.get());
+    }
+
+    /**
+     * Hilo de avisos: apunta los cambios y encola los ficheros que ya no cambian
+     */
+    private void watch() {
+        while (running) {
+            try {
+                WatchKey key = watcher.poll(TICK_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handle(key);
+                }
+                flushQuiet();
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                System.err.println("Error vigilando " + root + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                rescan(); // Se han perdido avisos
+                continue;
+            }
+            Path p = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                pending.remove(p);
+            } else if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    register(p);
+                    scan(p); // Lo copiado dentro antes de registrarlo
+                }
+            } else if (!isOutput(p)) {
+                touch(p);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Encola los ficheros que llevan <code>quietMillis</code> sin cambiar
+     */
+    private void flushQuiet() throws InterruptedException {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending p = e.getValue();
+            if (now - p.changed < TimeUnit.MILLISECONDS.toNanos(quietMillis)) {
+                continue;
+            }
+            long size = size(e.getKey());
+            if (size != p.size) {
+                p.size = size; // Sigue creciendo aunque no llegue aviso (copias por red, por ejemplo)
+                p.changed = now;
+                continue;
+            }
+            if (size < 0) {
+                it.remove();
+            } else if (!queued.contains(e.getKey())) {
+                it.remove();
+                enqueue(e.getKey(), p.arrived);
+            }
+            // Si ya está en cola se deja pendiente: el trabajo en curso puede haber leído una versión anterior
+        }
+    }
+
+    private void enqueue(Path file, long arrived) throws InterruptedException {
+        if (!queued.add(file)) {
+            return;
+        }
+        long start = System.nanoTime();
+        slots.acquire();
+        blockedNanos.addAndGet(System.nanoTime() - start);
+        workers.execute(() -> {
+            try {
+                if (needsProtection(file)) {
+                    FileTime version = Files.getLastModifiedTime(file);
+                    if (Worker.protect(file, operation, algorithm, secret, iterationCount)) {
+                        done.incrementAndGet();
+                        latency.record(System.nanoTime() - arrived);
+                        System.out.println("Protegido: " + root.relativize(file));
+                        if (!Files.getLastModifiedTime(file).equals(version)) {
+                            // Ha cambiado mientras se leía: el resultado toma la fecha de la versión
+                            // leída, para que se vea más antiguo que el fichero y se repita
+                            Files.setLastModifiedTime(target(file), version);
+                            touch(file);
+                        }
+                    } else {
+                        failed.incrementAndGet();
+                        System.err.println("No se pudo proteger " + file);
+                    }
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                System.err.println("No se pudo proteger " + file + ": " + e.getMessage());
+            } finally {
+                queued.remove(file);
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * Apunta un cambio en un fichero
+     */
+    private void touch(Path file) {
+        long now = System.nanoTime();
+        pending.compute(file, (k, p) -> {
+            if (p == null) {
+                p = new Pending(now);
+            }
+            p.changed = now;
+            p.size = size(file);
+            return p;
+        });
+    }
+
+    /**
+     * Recorre todo el árbol y apunta los ficheros sin proteger
+     */
+    private void rescan() throws IOException {
+        rescans.incrementAndGet();
+        scan(root);
+    }
+
+    private void scan(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.filter(p -> Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS) && !isOutput(p))
+                    .forEach(files::add);
+        }
+        for (Path p : files) {
+            if (needsProtection(p)) {
+                touch(p);
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return True si es un resultado o un temporal de este proceso
+     */
+    private boolean isOutput(Path p) {
+        String name = p.getFileName().toString();
+        return name.endsWith(Worker.suffix(operation)) || name.endsWith(".tmp");
+    }
+
+    /**
+     * Un fichero está sin proteger si no empieza por la marca de <code>Header</code> y no tiene un
+     * resultado al menos tan reciente como él
+     */
+    private boolean needsProtection(Path file) {
+        try {
+            Path target = target(file);
+            if (Files.isRegularFile(target)
+                    && Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                return false;
+            }
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                return !new Header().load(in);
+            }
+        } catch (IOException e) {
+            return false; // Borrado o inaccesible: si vuelve, llegará otro aviso
+        }
+    }
+
+    private Path target(Path file) {
+        return Paths.get(file + Worker.suffix(operation));
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fichero con cambios recientes: llegada, último cambio y tamaño entonces
+     */
+    private static final class Pending {
+        final long arrived;
+        volatile long changed;
+        volatile long size;
+
+        Pending(long arrived) {
+            this.arrived = arrived;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package es.unex.srt.utility;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Proceso trabajador de un {@link Coordinator}: se conecta, presenta la ficha del trabajo, recibe
+ * la configuración y va pidiendo tareas hasta que el coordinador le dice que no quedan. El secreto
+ * lo recibe quien lo lanza, no el socket.
+ * <p>
+ * Cifrar, calcular el hash o el MAC escribe el fichero resultado junto al original con
+ * <code>SimpleCipher</code>, <code>SimpleHash</code> o <code>SimpleMAC</code>, primero en un
+ * temporal que se renombra al terminar, para que una tarea repetida en otro trabajador no deje un
+ * fichero a medias. <code>resumen</code> devuelve al coordinador el resumen SHA-256 de un trozo.
+ */
+public class Worker {
+
+    private final String host;
+    private final int port;
+    private final String name;
+    private final String token, secret;
+    /**
+     * Temporales que se están escribiendo, para borrarlos si se para el proceso a medias
+     */
+    private static final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Path p : inProgress) {
+                p.toFile().delete();
+            }
+        }));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param host   Máquina del coordinador
+     * @param port   Puerto del coordinador
+     * @param token  Ficha del trabajo, de <code>Coordinator.getToken()</code>
+     * @param secret Contraseña o secreto compartido; no se recibe por el socket
+     */
+    public Worker(String host, int port, String token, String secret) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.secret = secret;
+        name = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * @param operation Operación del coordinador
+     * @return Extensión del fichero que escribe la operación, o null si no escribe ninguno
+     */
+    public static String suffix(String operation) {
+        switch (operation) {
+            case Coordinator.CIPHER:
+                return ".cph";
+            case Coordinator.HASH:
+                return ".hsh";
+            case Coordinator.MAC:
+                return ".mac";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Atiende al coordinador hasta que no queden tareas
+     *
+     * @return Tareas terminadas bien
+     * @throws IOException si se pierde la conexión
+     */
+    public int run() throws IOException {
+        int done = 0;
+        try (Socket s = new Socket(host, port);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            out.writeUTF("HOLA");
+            out.writeUTF(name);
+            out.writeUTF(token);
+            out.flush();
+            Path root = Paths.get(in.readUTF());
+            String operation = in.readUTF();
+            String algorithm = in.readUTF();
+            Integer iterationCount = in.readInt();
+            while (in.readUTF().equals("TAREA")) {
+                int id = in.readInt();
+                Path file = root.resolve(in.readUTF());
+                long start = in.readLong();
+                long length = in.readLong();
+                byte[] result = new byte[0];
+                String error = "";
+                try {
+                    result = execute(file, start, length, operation, algorithm, secret, iterationCount);
+                } catch (IOException | RuntimeException e) {
+                    error = e.toString();
+                }
+                boolean ok = result != null && error.isEmpty();
+                if (ok) {
+                    done++;
+                } else if (error.isEmpty()) {
+                    error = "La operación no terminó bien";
+                }
+                out.writeUTF("HECHO");
+                out.writeInt(id);
+                out.writeBoolean(ok);
+                out.writeInt(ok ? result.length : 0);
+                out.write(ok ? result : new byte[0]);
+                out.writeUTF(error);
+                out.flush();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Ejecuta una tarea
+     *
+     * @return Resultado para el coordinador (vacío si escribe un fichero), o null si el motor falló
+     */
+    private static byte[] execute(Path file, long start, long length, String operation, String algorithm,
+                                  String secret, Integer iterationCount) throws IOException {
+        if (operation.equals(Coordinator.DIGEST)) {
+            return digest(file, start, length);
+        }
+        return protect(file, operation, algorithm, secret, iterationCount) ? new byte[0] : null;
+    }
+
+    /**
+     * Cifra, calcula el hash o el MAC de un fichero y escribe el resultado junto a él, a través de
+     * un temporal que se renombra al terminar
+     *
+     * @param file      Fichero original
+     * @param operation <code>Coordinator.CIPHER</code>, <code>HASH</code> o <code>MAC</code>
+     * @return True si se escribió el resultado, false si el motor falló
+     * @throws IOException si no se puede leer el original o escribir el resultado
+     */
+    static boolean protect(Path file, String operation, String algorithm, String secret, Integer iterationCount)
+            throws IOException {
+        String suffix = suffix(operation);
+        if (suffix == null) {
+            throw new IOException("Operación desconocida: " + operation);
+        }
+        Path target = Paths.get(file + suffix);
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        inProgress.add(tmp);
+        boolean ok = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+             OutputStream o = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            switch (operation) {
+                case Coordinator.CIPHER:
+                    ok = new SimpleCipher(in, algorithm, secret, iterationCount).save(o);
+                    break;
+                case Coordinator.HASH:
+                    ok = new SimpleHash(in, algorithm, secret).save(o);
+                    break;
+                default:
+                    ok = new SimpleMAC(in, algorithm, secret, iterationCount).save(o);
+                    break;
+            }
+        } finally {
+            if (!ok) {
+                Files.deleteIfExists(tmp);
+                inProgress.remove(tmp);
+            }
+        }
+        if (!ok) {
+            return false;
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            inProgress.remove(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * Resumen de un trozo de fichero
+     */
+    @SuppressWarnings("try")
+    private static byte[] digest(Path file, long start, long length) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(MerkleTree.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (MemoryBudget.Lease lease = MemoryBudget.acquire(64 * 1024);
+             ResourceLimits.Permit p = ResourceLimits.enterWorker();
+             FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = ResourceLimits.input(Channels.newInputStream(ch.position(start)))) {
+            byte[] buffer = lease.buffer();
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) {
+                    throw new EOFException("Fichero más corto de lo esperado: " + file);
+                }
+                md.update(buffer, 0, n);
+                left -= n;
+            }
+        }
+        return md.digest();
+    }
+}